@@ -0,0 +1,128 @@
+package com.mistraltech.smog.benchmarks;
+
+import com.mistraltech.smog.examples.simple.matcher.PersonMatcher;
+import com.mistraltech.smog.proxy.javassist.JavassistMatcherGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of {@link JavassistMatcherGenerator#matcherOf(Class)} when the matcher class has to be
+ * generated, and when it has already been generated, with each code generation backend.
+ * <p>
+ * The cold case loads the matcher interface in a new class loader before each call, so that every call generates a
+ * matcher class, as the first call for each interface does in a test run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MatcherGenerationBenchmark {
+    private static final String EXAMPLES_PACKAGE = "com.mistraltech.smog.examples";
+
+    @Param({"source", "bytecode"})
+    private String backend;
+
+    private Class<?> coldMatcherInterface;
+
+    @Setup
+    public void setUpBackend() {
+        System.setProperty("smog.javassist.backend", backend);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpColdMatcherInterface() throws ClassNotFoundException {
+        final ClassLoader classLoader = new ExamplesClassLoader(MatcherGenerationBenchmark.class.getClassLoader());
+        coldMatcherInterface = Class.forName(PersonMatcher.class.getName(), false, classLoader);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 20)
+    @Measurement(iterations = 100)
+    public Object coldMatcherOf() {
+        return JavassistMatcherGenerator.matcherOf(coldMatcherInterface);
+    }
+
+    @Benchmark
+    public PersonMatcher warmMatcherOf() {
+        return JavassistMatcherGenerator.matcherOf(PersonMatcher.class);
+    }
+
+    /**
+     * A class loader that defines its own copy of the example classes, so that matchers are generated for them
+     * again.
+     */
+    private static class ExamplesClassLoader extends ClassLoader {
+        ExamplesClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith(EXAMPLES_PACKAGE + ".")) {
+                return super.loadClass(name, resolve);
+            }
+
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> clazz = findLoadedClass(name);
+
+                if (clazz == null) {
+                    clazz = findClass(name);
+                }
+
+                if (resolve) {
+                    resolveClass(clazz);
+                }
+
+                return clazz;
+            }
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            final InputStream inputStream = getParent().getResourceAsStream(name.replace('.', '/') + ".class");
+
+            if (inputStream == null) {
+                throw new ClassNotFoundException(name);
+            }
+
+            try {
+                final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[4096];
+
+                int count;
+                while ((count = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, count);
+                }
+
+                final byte[] bytecode = outputStream.toByteArray();
+                return defineClass(name, bytecode, 0, bytecode.length);
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            } finally {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.mistraltech.smog.benchmarks;
+
+import com.mistraltech.smog.examples.simple.matcher.PersonMatcher;
+import com.mistraltech.smog.proxy.javassist.JavassistMatcherGenerator;
+import com.mistraltech.smog.proxy.javassist.util.JavaReflectionUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares creating matchers through {@link JavassistMatcherGenerator#matcherOf(Class)}, which uses the factory
+ * implemented by the generated class, with creating them by invoking the constructor reflectively, as
+ * matcherOf did previously.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MatcherInstantiationBenchmark {
+    private Class<? extends PersonMatcher> matcherClass;
+
+    @Setup
+    public void setUp() {
+        matcherClass = JavassistMatcherGenerator.matcherOf(PersonMatcher.class).getClass();
+    }
+
+    @Benchmark
+    public PersonMatcher matcherOf() {
+        return JavassistMatcherGenerator.matcherOf(PersonMatcher.class);
+    }
+
+    @Benchmark
+    public PersonMatcher reflectiveConstructor() {
+        return JavaReflectionUtils.createInstance(matcherClass);
+    }
+}
@@ -0,0 +1,142 @@
+package com.mistraltech.smog.benchmarks;
+
+import com.mistraltech.smog.examples.generics.matcher.MatcherFactory;
+import com.mistraltech.smog.examples.model.Address;
+import com.mistraltech.smog.examples.model.Person;
+import com.mistraltech.smog.examples.model.PostCode;
+import com.mistraltech.smog.examples.model.generics.Box;
+import com.mistraltech.smog.proxy.javassist.JavassistMatcherGenerator;
+import com.mistraltech.smog.proxy.javassist.MatcherPredicate;
+import org.hamcrest.Matcher;
+import org.hamcrest.StringDescription;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.mistraltech.smog.examples.simple.matcher.MatcherFactory.aPersonThat;
+import static com.mistraltech.smog.examples.simple.matcher.MatcherFactory.aPostCodeThat;
+import static com.mistraltech.smog.examples.simple.matcher.MatcherFactory.anAddressThat;
+
+/**
+ * Measures the throughput of matching with a flat matcher of a single object, a nested matcher of an object
+ * graph, and a matcher of a generic type, and the cost of describing a mismatch with the flat and nested matchers.
+ * The nested matcher is also tested as a predicate, against objects that it matches and does not match, and as a
+ * predicate that has been specialized for its configuration.
+ * <p>
+ * Each matcher is matched against an object that it matches, and described against one that it does not. Run with
+ * {@code -prof gc} to also see how much each operation allocates.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MatcherMatchingBenchmark {
+    @Param({"source", "bytecode"})
+    private String backend;
+
+    private Matcher<PostCode> flatMatcher;
+    private Matcher<Person> nestedMatcher;
+    private Matcher<Box<Integer>> genericMatcher;
+    private MatcherPredicate<Person> nestedPredicate;
+    private MatcherPredicate<Person> specializedNestedPredicate;
+
+    private PostCode matchingPostCode;
+    private PostCode mismatchingPostCode;
+    private Person matchingPerson;
+    private Person mismatchingPerson;
+    private Box<Integer> matchingBox;
+
+    @Setup
+    public void setUp() {
+        System.setProperty("smog.javassist.backend", backend);
+
+        flatMatcher = aPostCodeThat().hasOuter("AB1").hasInner("2CD");
+        nestedMatcher = aNestedMatcher();
+        genericMatcher = MatcherFactory.<Integer>aBoxThat().hasContents(5);
+        nestedPredicate = JavassistMatcherGenerator.toPredicate(nestedMatcher);
+
+        matchingPostCode = new PostCode("AB1", "2CD");
+        mismatchingPostCode = new PostCode("AB1", "3EF");
+        matchingPerson = new Person("Bob", 42, new Address(3, matchingPostCode));
+        mismatchingPerson = new Person("Bob", 43, new Address(3, mismatchingPostCode));
+        matchingBox = new Box<Integer>(5);
+
+        // Specialize the predicate on its first test, before the measurements start
+        System.setProperty("smog.javassist.specializationThreshold", "1");
+        try {
+            specializedNestedPredicate = JavassistMatcherGenerator.toPredicate(aNestedMatcher());
+            specializedNestedPredicate.test(matchingPerson);
+        } finally {
+            System.clearProperty("smog.javassist.specializationThreshold");
+        }
+    }
+
+    private static Matcher<Person> aNestedMatcher() {
+        return aPersonThat()
+                .hasName("Bob")
+                .hasAge(42)
+                .hasAddress(anAddressThat()
+                        .hasHouseNumber(3)
+                        .hasPostCode(aPostCodeThat().hasOuter("AB1").hasInner("2CD")));
+    }
+
+    @Benchmark
+    public boolean matchesFlat() {
+        return flatMatcher.matches(matchingPostCode);
+    }
+
+    @Benchmark
+    public boolean matchesNested() {
+        return nestedMatcher.matches(matchingPerson);
+    }
+
+    @Benchmark
+    public boolean matchesGeneric() {
+        return genericMatcher.matches(matchingBox);
+    }
+
+    @Benchmark
+    public boolean testNested() {
+        return nestedPredicate.test(matchingPerson);
+    }
+
+    @Benchmark
+    public boolean testNestedMismatch() {
+        return nestedPredicate.test(mismatchingPerson);
+    }
+
+    @Benchmark
+    public boolean testNestedSpecialized() {
+        return specializedNestedPredicate.test(matchingPerson);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String describeMismatchFlat() {
+        final StringDescription description = new StringDescription();
+        flatMatcher.describeMismatch(mismatchingPostCode, description);
+        return description.toString();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String describeMismatchNested() {
+        final StringDescription description = new StringDescription();
+        nestedMatcher.describeMismatch(mismatchingPerson, description);
+        return description.toString();
+    }
+}
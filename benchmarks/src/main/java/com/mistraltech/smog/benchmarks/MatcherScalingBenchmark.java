@@ -0,0 +1,324 @@
+package com.mistraltech.smog.benchmarks;
+
+import com.mistraltech.smog.core.annotation.Matches;
+import com.mistraltech.smog.proxy.javassist.JavassistMatcherGenerator;
+import com.mistraltech.smog.proxy.javassist.util.ClassPoolRegistry;
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewMethod;
+import javassist.LoaderClassPath;
+import javassist.NotFoundException;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.annotation.Annotation;
+import javassist.bytecode.annotation.ClassMemberValue;
+import javassist.bytecode.annotation.StringMemberValue;
+import org.hamcrest.Matcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.reflect.Field;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A macro benchmark of how matcher class generation scales with the number of matcher interfaces, the number of
+ * properties they match and the depth of their hierarchies.
+ * <p>
+ * Matcher interfaces and the classes they match are synthesized, and then each interface is passed to
+ * {@link JavassistMatcherGenerator#matcherOf(Class)} in turn. After every sample of interfaces a CSV row is printed
+ * giving the mean generation time of the sample, the heap and metaspace in use after a garbage collection, the number
+ * of loaded classes and the number of classes cached by the Javassist class pools. The synthesized classes are spread
+ * over a number of class loaders, each with its own class pool, so the effect of class pool growth can be seen by
+ * comparing runs with one loader and with several.
+ * <p>
+ * The benchmark is run from the benchmarks jar, with optional arguments of the form name=value:
+ * <pre>
+ * java -cp target/benchmarks.jar com.mistraltech.smog.benchmarks.MatcherScalingBenchmark interfaces=4000 properties=10
+ * </pre>
+ * The arguments are <i>interfaces</i> (default 1000), <i>properties</i> per level of the hierarchy (default 5),
+ * <i>depth</i> of the hierarchy (default 2), <i>loaders</i> (default 1) and <i>sample</i>, the number of interfaces
+ * per row (default 100).
+ */
+public final class MatcherScalingBenchmark {
+    private static final String SYNTHETIC_PACKAGE = "com.mistraltech.smog.synthetic";
+
+    private final int interfaceCount;
+    private final int propertyCount;
+    private final int depth;
+    private final int loaderCount;
+    private final int sampleSize;
+
+    private MatcherScalingBenchmark(Map<String, Integer> arguments) {
+        this.interfaceCount = getArgument(arguments, "interfaces", 1000);
+        this.propertyCount = getArgument(arguments, "properties", 5);
+        this.depth = getArgument(arguments, "depth", 2);
+        this.loaderCount = getArgument(arguments, "loaders", 1);
+        this.sampleSize = getArgument(arguments, "sample", 100);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, Integer> arguments = new HashMap<String, Integer>();
+
+        for (String arg : args) {
+            final String[] nameAndValue = arg.split("=", 2);
+
+            if (nameAndValue.length != 2) {
+                throw new IllegalArgumentException("Expected name=value but was " + arg);
+            }
+
+            arguments.put(nameAndValue[0], Integer.valueOf(nameAndValue[1]));
+        }
+
+        new MatcherScalingBenchmark(arguments).run();
+    }
+
+    private void run() throws Exception {
+        System.out.printf("# interfaces=%d properties=%d depth=%d loaders=%d backend=%s%n", interfaceCount,
+                propertyCount, depth, loaderCount, System.getProperty("smog.javassist.backend", "source"));
+
+        final List<SyntheticClassLoader> classLoaders = synthesize();
+        final MemoryPoolMXBean metaspace = findMetaspace();
+
+        System.out.println("interfaces,meanGenerationMicros,heapUsedKB,metaspaceUsedKB,loadedClasses,classPoolClasses");
+
+        long sampleNanos = 0;
+
+        for (int i = 0; i < interfaceCount; i++) {
+            final SyntheticClassLoader classLoader = classLoaders.get(i % loaderCount);
+            final Class<?> matcherInterface = classLoader.loadClass(getMatcherInterfaceName(i, depth - 1));
+
+            final long startNanos = System.nanoTime();
+            final Object matcher = JavassistMatcherGenerator.matcherOf(matcherInterface);
+            sampleNanos += System.nanoTime() - startNanos;
+
+            checkMatches(matcher, classLoader.loadClass(getModelClassName(i, depth - 1)));
+
+            if ((i + 1) % sampleSize == 0 || i + 1 == interfaceCount) {
+                final int sampleCount = i % sampleSize + 1;
+                collectGarbage();
+
+                System.out.printf("%d,%d,%d,%d,%d,%d%n", i + 1, sampleNanos / sampleCount / 1000,
+                        ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1024,
+                        metaspace != null ? metaspace.getUsage().getUsed() / 1024 : -1,
+                        ManagementFactory.getClassLoadingMXBean().getLoadedClassCount(),
+                        countClassPoolClasses(classLoaders));
+
+                sampleNanos = 0;
+            }
+        }
+    }
+
+    /**
+     * Synthesize the model classes and matcher interfaces, and give them to the class loaders.
+     */
+    private List<SyntheticClassLoader> synthesize() throws Exception {
+        final ClassPool classPool = new ClassPool(true);
+        classPool.appendClassPath(new LoaderClassPath(MatcherScalingBenchmark.class.getClassLoader()));
+
+        final List<SyntheticClassLoader> classLoaders = new ArrayList<SyntheticClassLoader>();
+        for (int loader = 0; loader < loaderCount; loader++) {
+            classLoaders.add(new SyntheticClassLoader(MatcherScalingBenchmark.class.getClassLoader()));
+        }
+
+        for (int i = 0; i < interfaceCount; i++) {
+            final SyntheticClassLoader classLoader = classLoaders.get(i % loaderCount);
+
+            for (int level = 0; level < depth; level++) {
+                classLoader.addClass(synthesizeModelClass(classPool, i, level));
+                classLoader.addClass(synthesizeMatcherInterface(classPool, i, level));
+            }
+        }
+
+        return classLoaders;
+    }
+
+    /**
+     * Synthesize a model class, which extends the model class of the level above and adds properties that
+     * alternate between int and String.
+     */
+    private CtClass synthesizeModelClass(ClassPool classPool, int index, int level)
+            throws NotFoundException, CannotCompileException {
+        final CtClass superclass = level == 0 ? classPool.get(Object.class.getName())
+                : classPool.get(getModelClassName(index, level - 1));
+        final CtClass modelClass = classPool.makeClass(getModelClassName(index, level), superclass);
+
+        for (int property = 0; property < propertyCount; property++) {
+            final String body = property % 2 == 0 ? "return " + property + ";" : "return \"value" + property + "\";";
+            final String type = property % 2 == 0 ? "int" : "String";
+
+            modelClass.addMethod(CtNewMethod.make(String.format("public %s get%s() { %s }", type,
+                    getPropertyName(level, property), body), modelClass));
+        }
+
+        return modelClass;
+    }
+
+    /**
+     * Synthesize a matcher interface, which extends the matcher interface of the level above and adds a pair of
+     * matcher methods for each property of the model class of its level. The interface of the last level is
+     * annotated with {@link Matches}.
+     */
+    private CtClass synthesizeMatcherInterface(ClassPool classPool, int index, int level)
+            throws NotFoundException, CannotCompileException {
+        final CtClass superInterface = level == 0 ? classPool.get(Matcher.class.getName())
+                : classPool.get(getMatcherInterfaceName(index, level - 1));
+        final CtClass matcherInterface = classPool.makeInterface(getMatcherInterfaceName(index, level), superInterface);
+        final CtClass hamcrestMatcher = classPool.get(Matcher.class.getName());
+
+        for (int property = 0; property < propertyCount; property++) {
+            final String methodName = "has" + getPropertyName(level, property);
+            final CtClass valueType = property % 2 == 0 ? CtClass.intType : classPool.get(String.class.getName());
+
+            matcherInterface.addMethod(CtNewMethod.abstractMethod(matcherInterface, methodName,
+                    new CtClass[]{valueType}, null, matcherInterface));
+            matcherInterface.addMethod(CtNewMethod.abstractMethod(matcherInterface, methodName,
+                    new CtClass[]{hamcrestMatcher}, null, matcherInterface));
+        }
+
+        if (level == depth - 1) {
+            final ClassFile classFile = matcherInterface.getClassFile();
+            final ConstPool constPool = classFile.getConstPool();
+            final Annotation annotation = new Annotation(Matches.class.getName(), constPool);
+            annotation.addMemberValue("value", new ClassMemberValue(getModelClassName(index, level), constPool));
+            annotation.addMemberValue("description", new StringMemberValue("a Model" + index, constPool));
+
+            final AnnotationsAttribute annotationsAttribute = new AnnotationsAttribute(constPool,
+                    AnnotationsAttribute.visibleTag);
+            annotationsAttribute.addAnnotation(annotation);
+            classFile.addAttribute(annotationsAttribute);
+        }
+
+        return matcherInterface;
+    }
+
+    /**
+     * Check that a matcher with no properties configured matches an instance of its model class, so that a broken
+     * matcher class is not mistaken for a fast one.
+     */
+    private static void checkMatches(Object matcher, Class<?> modelClass) throws Exception {
+        if (!((Matcher<?>) matcher).matches(modelClass.newInstance())) {
+            throw new IllegalStateException("Matcher for " + modelClass.getName() + " did not match");
+        }
+    }
+
+    private static MemoryPoolMXBean findMetaspace() {
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getName().equals("Metaspace")) {
+                return memoryPool;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Count the classes cached by the class pools of the class loaders, or return -1 if they cannot be counted.
+     */
+    private static int countClassPoolClasses(List<SyntheticClassLoader> classLoaders) {
+        try {
+            final Field classesField = ClassPool.class.getDeclaredField("classes");
+            classesField.setAccessible(true);
+
+            int count = 0;
+            for (SyntheticClassLoader classLoader : classLoaders) {
+                count += ((Map<?, ?>) classesField.get(ClassPoolRegistry.getClassPool(classLoader))).size();
+            }
+
+            return count;
+        } catch (ReflectiveOperationException e) {
+            return -1;
+        }
+    }
+
+    private static void collectGarbage() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+    }
+
+    private static String getModelClassName(int index, int level) {
+        return SYNTHETIC_PACKAGE + ".Model" + index + "Level" + level;
+    }
+
+    private static String getMatcherInterfaceName(int index, int level) {
+        return SYNTHETIC_PACKAGE + ".Model" + index + "Level" + level + "Matcher";
+    }
+
+    private static String getPropertyName(int level, int property) {
+        return "Level" + level + "Property" + property;
+    }
+
+    private static int getArgument(Map<String, Integer> arguments, String name, int defaultValue) {
+        final Integer value = arguments.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * A class loader for synthesized classes, which also serves their class files as resources, so that Javassist
+     * can read them when generating matcher classes.
+     */
+    private static final class SyntheticClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classFiles = new HashMap<String, byte[]>();
+
+        private SyntheticClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        private void addClass(CtClass ctClass) throws IOException, CannotCompileException {
+            classFiles.put(ctClass.getName().replace('.', '/') + ".class", ctClass.toBytecode());
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            final byte[] classFile = classFiles.get(name.replace('.', '/') + ".class");
+
+            if (classFile == null) {
+                throw new ClassNotFoundException(name);
+            }
+
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+
+        @Override
+        protected URL findResource(final String name) {
+            final byte[] classFile = classFiles.get(name);
+
+            if (classFile == null) {
+                return null;
+            }
+
+            try {
+                return new URL("synthetic", null, -1, "/" + name, new URLStreamHandler() {
+                    @Override
+                    protected URLConnection openConnection(URL url) {
+                        return new URLConnection(url) {
+                            @Override
+                            public void connect() {
+                            }
+
+                            @Override
+                            public InputStream getInputStream() {
+                                return new ByteArrayInputStream(classFile);
+                            }
+                        };
+                    }
+                });
+            } catch (MalformedURLException e) {
+                throw new IllegalStateException("Failed to create URL for " + name, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import org.hamcrest.Matcher;
+import org.hamcrest.StringDescription;
+
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of matching one matcher against many objects, as returned by
+ * {@link BulkMatching#matchAll(Matcher, Iterable)} and
+ * {@link BulkMatching#matchAllInParallel(Matcher, java.util.Collection)}.
+ * <p>
+ * Mismatches are numbered from 0 in the order of the objects. The objects that did not match are kept, so that their
+ * mismatch descriptions can be rendered when they are asked for.
+ *
+ * @param <T> the type of the matched objects
+ */
+public final class BulkMatchReport<T> {
+    private final Matcher<? super T> matcher;
+    private final int itemCount;
+    private final int[] mismatchIndices;
+    private final List<T> mismatchedItems;
+    private final long elapsedNanos;
+    private final int parallelism;
+
+    BulkMatchReport(Matcher<? super T> matcher, int itemCount, int[] mismatchIndices, List<T> mismatchedItems,
+                    long elapsedNanos, int parallelism) {
+        this.matcher = matcher;
+        this.itemCount = itemCount;
+        this.mismatchIndices = mismatchIndices;
+        this.mismatchedItems = Collections.unmodifiableList(mismatchedItems);
+        this.elapsedNanos = elapsedNanos;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return the number of objects matched
+     */
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * @return the number of objects that matched
+     */
+    public int getMatchCount() {
+        return itemCount - mismatchIndices.length;
+    }
+
+    /**
+     * @return the number of objects that did not match
+     */
+    public int getMismatchCount() {
+        return mismatchIndices.length;
+    }
+
+    /**
+     * @return true if all the objects matched
+     */
+    public boolean isAllMatched() {
+        return mismatchIndices.length == 0;
+    }
+
+    /**
+     * @return the indices of the objects that did not match, in ascending order
+     */
+    public int[] getMismatchIndices() {
+        return mismatchIndices.clone();
+    }
+
+    /**
+     * @return the objects that did not match, in the order of their indices
+     */
+    public List<T> getMismatchedItems() {
+        return mismatchedItems;
+    }
+
+    /**
+     * Render the description of a mismatch.
+     *
+     * @param mismatch the number of the mismatch, from 0 to one less than the mismatch count
+     * @return the description of why the object did not match
+     */
+    public String describeMismatch(int mismatch) {
+        final StringDescription description = new StringDescription();
+        matcher.describeMismatch(mismatchedItems.get(mismatch), description);
+        return description.toString();
+    }
+
+    /**
+     * Get the descriptions of all the mismatches. Each description is rendered when it is got from the list, and
+     * is not kept.
+     *
+     * @return the mismatch descriptions, in the order of the mismatched objects
+     */
+    public List<String> getMismatchDescriptions() {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return describeMismatch(index);
+            }
+
+            @Override
+            public int size() {
+                return mismatchIndices.length;
+            }
+        };
+    }
+
+    /**
+     * @return the wall clock time taken to match all the objects, in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return the number of threads that matched the objects
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Matched %d of %d items in %d ms on %d threads%s", getMatchCount(), itemCount,
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos), parallelism,
+                mismatchIndices.length == 0 ? "" : String.format(", first mismatch at index %d: %s",
+                        mismatchIndices[0], describeMismatch(0)));
+    }
+}
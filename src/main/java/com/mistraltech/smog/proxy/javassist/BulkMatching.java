@@ -0,0 +1,184 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import org.hamcrest.Matcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Matches one matcher against many objects, such as the rows of a large result set, and reports which of them did
+ * not match.
+ * <p>
+ * The objects can be matched one after another, or split between threads. A configured matcher generated by
+ * {@link JavassistMatcherGenerator} can be used by several threads at once, provided that the matchers given for its
+ * properties can too, as Hamcrest's own matchers can. It must not be configured further while it is being used.
+ * <p>
+ * Mismatch descriptions are not rendered while matching. They are rendered from the mismatched objects when they are
+ * asked for, by {@link BulkMatchReport#describeMismatch(int)}, so the objects must not be changed in the meantime.
+ */
+public final class BulkMatching {
+    /**
+     * The smallest number of objects matched by a thread in one go. Smaller slices cost more to hand between threads
+     * than to match.
+     */
+    private static final int MIN_SLICE_SIZE = 1024;
+
+    /**
+     * The number of slices given to each thread, so that threads that finish early can take work from the others.
+     */
+    private static final int SLICES_PER_THREAD = 4;
+
+    private BulkMatching() {
+    }
+
+    /**
+     * Match a matcher against each object in turn, on the calling thread.
+     *
+     * @param matcher the matcher
+     * @param items the objects to match, in the order that they are indexed in the report
+     * @param <T> the type of the objects
+     * @return the outcome of the matching
+     */
+    public static <T> BulkMatchReport<T> matchAll(Matcher<? super T> matcher, Iterable<? extends T> items) {
+        final long startNanos = System.nanoTime();
+        final Mismatches<T> mismatches = new Mismatches<T>();
+        int index = 0;
+
+        for (T item : items) {
+            if (!matcher.matches(item)) {
+                mismatches.add(index, item);
+            }
+
+            index++;
+        }
+
+        return new BulkMatchReport<T>(matcher, index, mismatches.getIndices(), mismatches.items,
+                System.nanoTime() - startNanos, 1);
+    }
+
+    /**
+     * Match a matcher against each object, split between the threads of a pool that is shared by all callers, with a
+     * thread for each available processor.
+     *
+     * @param matcher the matcher
+     * @param items the objects to match, in the order that they are indexed in the report
+     * @param <T> the type of the objects
+     * @return the outcome of the matching
+     * @see #matchAllInParallel(Matcher, Collection, ForkJoinPool)
+     */
+    public static <T> BulkMatchReport<T> matchAllInParallel(Matcher<? super T> matcher, Collection<? extends T> items) {
+        return matchAllInParallel(matcher, items, SharedForkJoinPool.get());
+    }
+
+    /**
+     * Match a matcher against each object, split between the threads of a fork/join pool.
+     * <p>
+     * The objects are divided into slices that are matched by the pool, whose threads take work from each other when
+     * they finish early. Objects that fit in a single slice are matched on the calling thread instead. The report is
+     * the same as {@link #matchAll(Matcher, Iterable)} would give. If matching an object fails with an exception, the
+     * exception is thrown once the other threads have stopped.
+     *
+     * @param matcher the matcher, which must be safe to use from several threads at once
+     * @param items the objects to match, in the order that they are indexed in the report
+     * @param pool the pool to match the objects on, which is left running
+     * @param <T> the type of the objects
+     * @return the outcome of the matching
+     */
+    public static <T> BulkMatchReport<T> matchAllInParallel(Matcher<? super T> matcher, Collection<? extends T> items,
+                                                            ForkJoinPool pool) {
+        final long startNanos = System.nanoTime();
+        final Object[] itemArray = items.toArray();
+        final int parallelism = pool.getParallelism();
+        final int sliceSize = Math.max(MIN_SLICE_SIZE, itemArray.length / (parallelism * SLICES_PER_THREAD));
+        final MatchTask<T> task = new MatchTask<T>(matcher, itemArray, 0, itemArray.length, sliceSize);
+
+        if (itemArray.length <= sliceSize) {
+            final Mismatches<T> mismatches = task.compute();
+
+            return new BulkMatchReport<T>(matcher, itemArray.length, mismatches.getIndices(), mismatches.items,
+                    System.nanoTime() - startNanos, 1);
+        }
+
+        final Mismatches<T> mismatches = pool.invoke(task);
+
+        return new BulkMatchReport<T>(matcher, itemArray.length, mismatches.getIndices(), mismatches.items,
+                System.nanoTime() - startNanos, parallelism);
+    }
+
+    /**
+     * Matches a range of objects, splitting it in two until it is no larger than a slice.
+     */
+    private static final class MatchTask<T> extends RecursiveTask<Mismatches<T>> {
+        private final Matcher<? super T> matcher;
+        private final Object[] items;
+        private final int from;
+        private final int to;
+        private final int sliceSize;
+
+        private MatchTask(Matcher<? super T> matcher, Object[] items, int from, int to, int sliceSize) {
+            this.matcher = matcher;
+            this.items = items;
+            this.from = from;
+            this.to = to;
+            this.sliceSize = sliceSize;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected Mismatches<T> compute() {
+            if (to - from <= sliceSize) {
+                final Mismatches<T> mismatches = new Mismatches<T>();
+
+                for (int index = from; index < to; index++) {
+                    if (!matcher.matches(items[index])) {
+                        mismatches.add(index, (T) items[index]);
+                    }
+                }
+
+                return mismatches;
+            }
+
+            final int middle = (from + to) >>> 1;
+            final MatchTask<T> secondHalf = new MatchTask<T>(matcher, items, middle, to, sliceSize);
+            secondHalf.fork();
+
+            final Mismatches<T> mismatches = new MatchTask<T>(matcher, items, from, middle, sliceSize).compute();
+            mismatches.addAll(secondHalf.join());
+            return mismatches;
+        }
+    }
+
+    /**
+     * The indices of the objects that did not match, in ascending order, along with the objects themselves.
+     */
+    private static final class Mismatches<T> {
+        private final List<T> items = new ArrayList<T>();
+        private int[] indices = new int[16];
+
+        private void add(int index, T item) {
+            ensureCapacity(items.size() + 1);
+            indices[items.size()] = index;
+            items.add(item);
+        }
+
+        private void addAll(Mismatches<T> later) {
+            ensureCapacity(items.size() + later.items.size());
+            System.arraycopy(later.indices, 0, indices, items.size(), later.items.size());
+            items.addAll(later.items);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > indices.length) {
+                indices = Arrays.copyOf(indices, Math.max(capacity, indices.length * 2));
+            }
+        }
+
+        private int[] getIndices() {
+            return Arrays.copyOf(indices, items.size());
+        }
+    }
+}
@@ -0,0 +1,1295 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.core.MatchAccumulator;
+import com.mistraltech.smog.core.PropertyMatcher;
+import com.mistraltech.smog.core.ReflectingPropertyMatcher;
+import com.mistraltech.smog.proxy.javassist.SpecializedMatcherLayout.SpecializedProperty;
+import com.mistraltech.smog.proxy.javassist.util.JavassistClassUtils;
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.CtMethod;
+import javassist.CtPrimitiveType;
+import javassist.Modifier;
+import javassist.NotFoundException;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.Descriptor;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import org.hamcrest.CoreMatchers;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.mistraltech.smog.proxy.javassist.MatcherClassLayout.getExpectedValueFieldName;
+import static com.mistraltech.smog.proxy.javassist.MatcherClassLayout.getHasExpectedValueFieldName;
+import static com.mistraltech.smog.proxy.javassist.MatcherClassLayout.getPropertyMatcherFieldName;
+
+/**
+ * Generates the code of a matcher class by writing its bytecode directly, which avoids parsing and compiling
+ * Java source. The classes it generates behave identically to those of {@link SourceMatcherCodeBackend}, and the
+ * comments there describe what each generated method does.
+ * <p>
+ * The methods of library classes that generated code calls are found by their argument types, in the same way as
+ * the compiler would, rather than assuming their descriptors.
+ */
+final class BytecodeMatcherCodeBackend implements MatcherCodeBackend {
+    private static final String CONFIGURED_PROPERTIES_FIELD_DESCRIPTOR = "[I";
+
+    @Override
+    public void generateConstructor(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final ClassPool classPool = generatedClass.getClassPool();
+        final Bytecode code = newBytecode(generatedClass, 1);
+
+        code.addAload(0);
+        code.addLdc(layout.getMatcherInterface().getMatchedClassDescription());
+
+        final List<CtClass> argumentTypes = new ArrayList<CtClass>();
+        argumentTypes.add(getCtClass(classPool, String.class));
+
+        if (layout.isPassingMatchedType()) {
+            code.addLdc(code.getConstPool().addClassInfo(layout.getMatchedClass()));
+            argumentTypes.add(getCtClass(classPool, Class.class));
+        }
+
+        addInvokeConstructor(code, layout.getMatcherCtSuperClass(), argumentTypes.toArray(new CtClass[argumentTypes.size()]));
+        code.addOpcode(Opcode.RETURN);
+
+        final CtConstructor constructor = new CtConstructor(new CtClass[0], generatedClass);
+        constructor.setModifiers(Modifier.PUBLIC);
+        setCode(generatedClass, constructor.getMethodInfo(), code);
+
+        try {
+            generatedClass.addConstructor(constructor);
+        } catch (CannotCompileException e) {
+            throw new RuntimeException("Failed to compile class constructor", e);
+        }
+    }
+
+    @Override
+    public void generateConfiguredPropertyTracking(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        // Locals: this, the property index, the position it is inserted at
+        final Bytecode code = newBytecode(generatedClass, 3);
+
+        code.addAload(0);
+        code.addGetfield(generatedClass, "configuredProperties", CONFIGURED_PROPERTIES_FIELD_DESCRIPTOR);
+        final int allocatedBranch = addBranch(code, Opcode.IFNONNULL);
+        code.addAload(0);
+        code.addNewarray(Opcode.T_INT, layout.getDirectProperties().size());
+        code.addPutfield(generatedClass, "configuredProperties", CONFIGURED_PROPERTIES_FIELD_DESCRIPTOR);
+        setBranchTarget(code, allocatedBranch);
+
+        // Move the later properties up to keep the array in index order
+        code.addAload(0);
+        code.addGetfield(generatedClass, "configuredPropertyCount", "I");
+        code.addIstore(2);
+
+        final int loopStart = code.currentPc();
+        code.addIload(2);
+        final int startBranch = addBranch(code, Opcode.IFLE);
+        addGetPreviousConfiguredProperty(code, generatedClass);
+        code.addIload(1);
+        final int orderBranch = addBranch(code, Opcode.IF_ICMPLE);
+        code.addAload(0);
+        code.addGetfield(generatedClass, "configuredProperties", CONFIGURED_PROPERTIES_FIELD_DESCRIPTOR);
+        code.addIload(2);
+        addGetPreviousConfiguredProperty(code, generatedClass);
+        code.addOpcode(Opcode.IASTORE);
+        code.addOpcode(Opcode.IINC);
+        code.add(2);
+        code.add(-1);
+        final int loopBranch = addBranch(code, Opcode.GOTO);
+        code.write16bit(loopBranch + 1, loopStart - loopBranch);
+        setBranchTargets(code, Arrays.asList(startBranch, orderBranch));
+
+        code.addAload(0);
+        code.addGetfield(generatedClass, "configuredProperties", CONFIGURED_PROPERTIES_FIELD_DESCRIPTOR);
+        code.addIload(2);
+        code.addIload(1);
+        code.addOpcode(Opcode.IASTORE);
+
+        code.addAload(0);
+        code.addOpcode(Opcode.DUP);
+        code.addGetfield(generatedClass, "configuredPropertyCount", "I");
+        code.addIconst(1);
+        code.addOpcode(Opcode.IADD);
+        code.addPutfield(generatedClass, "configuredPropertyCount", "I");
+        code.addOpcode(Opcode.RETURN);
+
+        addMethod(generatedClass, AccessFlag.PRIVATE, "addConfiguredProperty", "(I)V", code);
+    }
+
+    @Override
+    public void generateMatcherMethod(MatcherClassLayout layout, MatcherMethodWrapper matcherMethodDecl) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final ClassPool classPool = generatedClass.getClassPool();
+        final String descriptor = matcherMethodDecl.getCtMethod().getSignature();
+        final Bytecode code = newBytecode(generatedClass, 1 + Descriptor.paramSize(descriptor));
+
+        final String propertyName = matcherMethodDecl.getMatchedPropertyName();
+        final String propertyMatcherFieldName = getPropertyMatcherFieldName(propertyName);
+        final String propertyMatcherFieldDescriptor = Descriptor.of(PropertyMatcher.class.getName());
+        final CtClass parameterType = matcherMethodDecl.getParameterType();
+
+        // Refuse to configure a frozen matcher
+        code.addAload(0);
+        code.addGetfield(generatedClass, MatcherClassLayout.FROZEN_FIELD_NAME, "Z");
+        addInvokeStatic(code, getCtClass(classPool, FrozenMatcher.class), "checkConfigurable", CtClass.booleanType);
+
+        // Counting the configurations of a fail-fast matcher stops a mismatch recorded before it was configured
+        // again from being used to describe it
+        if (layout.isFailFast()) {
+            code.addAload(0);
+            code.addOpcode(Opcode.DUP);
+            code.addGetfield(generatedClass, MatcherClassLayout.CONFIGURATION_COUNT_FIELD_NAME, "I");
+            code.addIconst(1);
+            code.addOpcode(Opcode.IADD);
+            code.addPutfield(generatedClass, MatcherClassLayout.CONFIGURATION_COUNT_FIELD_NAME, "I");
+        }
+
+        // Create the property matcher when its property is first configured
+        code.addAload(0);
+        code.addGetfield(generatedClass, propertyMatcherFieldName, propertyMatcherFieldDescriptor);
+        final int createdBranch = addBranch(code, Opcode.IFNONNULL);
+
+        addPropertyMatcherCreation(code, layout, propertyName, 0);
+        setBranchTarget(code, createdBranch);
+
+        // Give the property matcher the supplied matcher, or an equalTo matcher for the expected value
+        code.addAload(0);
+        code.addGetfield(generatedClass, propertyMatcherFieldName, propertyMatcherFieldDescriptor);
+
+        final CtClass matcherType;
+        if (matcherMethodDecl.takesHamcrestMatcher()) {
+            code.addAload(1);
+            matcherType = parameterType;
+        } else {
+            code.addLoad(1, parameterType);
+            addBox(code, parameterType);
+            matcherType = addInvokeStatic(code, getCtClass(classPool, CoreMatchers.class), "equalTo",
+                    getBoxedType(classPool, parameterType));
+        }
+
+        addPop(code, addInvokeVirtual(code, getCtClass(classPool, PropertyMatcher.class), "setMatcher", matcherType));
+
+        if (layout.isPrimitiveProperty(propertyName)) {
+            final boolean hasExpectedValue = layout.takesPrimitiveExpectedValue(matcherMethodDecl);
+
+            if (hasExpectedValue) {
+                code.addAload(0);
+                code.addLoad(1, parameterType);
+                code.addPutfield(generatedClass, getExpectedValueFieldName(propertyName), Descriptor.of(parameterType));
+            }
+
+            code.addAload(0);
+            code.addIconst(hasExpectedValue ? 1 : 0);
+            code.addPutfield(generatedClass, getHasExpectedValueFieldName(propertyName), "Z");
+        }
+
+        code.addAload(0);
+        code.addOpcode(Opcode.ARETURN);
+
+        addMethod(generatedClass, AccessFlag.PUBLIC, matcherMethodDecl.getName(), descriptor, code);
+    }
+
+    @Override
+    public void generateLikeMethod(MatcherClassLayout layout, CtMethod likeMethod,
+                                   Map<MatcherMethodWrapper, CtMethod> propertyCopies) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final CtClass likeMethodParameterCtClass = JavassistClassUtils.getSingleParameterType(likeMethod);
+        final Bytecode code = newBytecode(generatedClass, 2);
+
+        for (Map.Entry<MatcherMethodWrapper, CtMethod> propertyCopy : propertyCopies.entrySet()) {
+            final CtMethod matcherMethod = propertyCopy.getKey().getCtMethod();
+
+            code.addAload(0);
+            code.addAload(1);
+            addInvoke(code, likeMethodParameterCtClass, propertyCopy.getValue());
+            code.addInvokevirtual(generatedClass, matcherMethod.getName(), matcherMethod.getSignature());
+            addPop(code, JavassistClassUtils.getReturnType(matcherMethod));
+        }
+
+        code.addAload(0);
+        code.addOpcode(Opcode.ARETURN);
+
+        addMethod(generatedClass, AccessFlag.PUBLIC, likeMethod.getName(), likeMethod.getSignature(), code);
+    }
+
+    @Override
+    public void generateDescribeToMethod(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final ClassPool classPool = generatedClass.getClassPool();
+        final CtClass propertyMatcherCtClass = getCtClass(classPool, PropertyMatcher.class);
+        final Bytecode code = newBytecode(generatedClass, 2);
+
+        code.addAload(1);
+        code.addLdc(layout.getMatcherInterface().getMatchedClassDescription());
+
+        int index = 0;
+        code.addAnewarray(propertyMatcherCtClass, layout.getPropertyNames().size());
+        for (String propertyName : layout.getPropertyNames()) {
+            code.addOpcode(Opcode.DUP);
+            code.addIconst(index++);
+            addGetPropertyMatcher(code, generatedClass, propertyName);
+            code.addOpcode(Opcode.AASTORE);
+        }
+
+        addInvokeStatic(code, getCtClass(classPool, MatcherDescriptions.class), "describeTo",
+                SmogTypes.getHamcrestDescriptionCtClass(classPool), getCtClass(classPool, String.class),
+                JavassistClassUtils.getCtClass(classPool, PropertyMatcher.class.getName() + "[]"));
+        code.addOpcode(Opcode.RETURN);
+
+        addMethod(generatedClass, AccessFlag.PUBLIC, "describeTo",
+                "(" + Descriptor.of(Description.class.getName()) + ")V", code);
+    }
+
+    @Override
+    public void generateMatchesSafelyMethod(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final CtClass matchedCtClass = layout.getMatchedClass();
+        final CtClass matchAccumulatorCtClass = SmogTypes.getMatchAccumulatorCtClass(generatedClass.getClassPool());
+
+        // Locals: this, item, accumulator, loop index, then the primitive property values, then the first position,
+        // then the property times and the start time of a property
+        final int startLocal = 4 + getPrimitiveValueLocalsSize(layout);
+        final int timesLocal = startLocal + 1;
+        final Bytecode code = newBytecode(generatedClass, timesLocal + getPropertyTimingLocalsSize(layout));
+
+        // The property times are taken before the reflectively read properties are matched, whose matchers may time
+        // matches of their own
+        addPropertyTimingStart(code, layout, timesLocal);
+
+        code.addAload(0);
+        code.addAload(1);
+        code.addAload(2);
+        addPop(code, addInvokeSpecial(code, layout.getMatcherCtSuperClass(), "matchesSafely", matchedCtClass, matchAccumulatorCtClass));
+
+        if (layout.hasDirectProperties()) {
+            if (layout.isFailFast()) {
+                addRecordedPositionLoop(code, layout, startLocal, timesLocal);
+            } else {
+                addConfiguredPropertyLoop(code, layout, 1, 2, -1, 3, timesLocal, false);
+            }
+        }
+
+        code.addOpcode(Opcode.RETURN);
+
+        final String descriptor = Descriptor.ofMethod(CtClass.voidType, new CtClass[]{matchedCtClass, matchAccumulatorCtClass});
+        addMethod(generatedClass, AccessFlag.PROTECTED, "matchesSafely", descriptor, code);
+
+        if (layout.hasDirectProperties()) {
+            generateMatchesSafelyBridgeMethod(layout, descriptor);
+        }
+    }
+
+    private static void generateMatchesSafelyBridgeMethod(MatcherClassLayout layout, String matchesSafelyDescriptor) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final ClassPool classPool = generatedClass.getClassPool();
+        final Bytecode code = newBytecode(generatedClass, 3);
+
+        code.addAload(0);
+        code.addAload(1);
+        code.addCheckcast(layout.getMatchedClass());
+        code.addAload(2);
+        code.addInvokevirtual(generatedClass, "matchesSafely", matchesSafelyDescriptor);
+        code.addOpcode(Opcode.RETURN);
+
+        final String descriptor = Descriptor.ofMethod(CtClass.voidType, new CtClass[]{
+                getCtClass(classPool, Object.class), SmogTypes.getMatchAccumulatorCtClass(classPool)});
+        addMethod(generatedClass, AccessFlag.PROTECTED | AccessFlag.BRIDGE | AccessFlag.SYNTHETIC, "matchesSafely",
+                descriptor, code);
+    }
+
+    @Override
+    public void generateFailFastMatchesSafelyMethod(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final ClassPool classPool = generatedClass.getClassPool();
+        final CtClass objectCtClass = getCtClass(classPool, Object.class);
+        final CtClass descriptionCtClass = SmogTypes.getHamcrestDescriptionCtClass(classPool);
+
+        // Locals: this, item, description, cast item, loop index, then the primitive property values, then the
+        // value of a non-primitive property, then the property times and the start time of a property
+        final int timesLocal = 6 + getPrimitiveValueLocalsSize(layout);
+        final Bytecode code = newBytecode(generatedClass, timesLocal + getPropertyTimingLocalsSize(layout));
+
+        code.addAload(2);
+        code.addInstanceof(Description.NullDescription.class.getName());
+        final List<Integer> superBranches = new ArrayList<Integer>();
+        superBranches.add(addBranch(code, Opcode.IFEQ));
+
+        if (layout.isTrackingReflectingProperties()) {
+            code.addAload(0);
+            code.addGetfield(generatedClass, "reflectingPropertyConfigured", "Z");
+            superBranches.add(addBranch(code, Opcode.IFNE));
+        }
+
+        code.addAload(1);
+        code.addCheckcast(layout.getMatchedClass());
+        code.addAstore(3);
+        addPropertyTimingStart(code, layout, timesLocal);
+        addConfiguredPropertyLoop(code, layout, 3, -1, -1, 4, timesLocal, true);
+        code.addIconst(1);
+        code.addOpcode(Opcode.IRETURN);
+
+        setBranchTargets(code, superBranches);
+        code.addAload(0);
+        code.addAload(1);
+        code.addAload(2);
+        addInvokeSpecial(code, layout.getMatcherCtSuperClass(), "matchesSafely", objectCtClass, descriptionCtClass);
+        code.addOpcode(Opcode.IRETURN);
+
+        final String descriptor = Descriptor.ofMethod(CtClass.booleanType, new CtClass[]{objectCtClass, descriptionCtClass});
+
+        if (layout.isInstrumented()) {
+            addMethod(generatedClass, AccessFlag.PRIVATE, MatcherClassLayout.FAIL_FAST_METHOD_NAME, descriptor, code);
+        } else {
+            addMethod(generatedClass, AccessFlag.PROTECTED | AccessFlag.BRIDGE | AccessFlag.SYNTHETIC, "matchesSafely",
+                    descriptor, code);
+        }
+    }
+
+    @Override
+    public void generatePredicateMethod(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final ClassPool classPool = generatedClass.getClassPool();
+
+        // Locals: this, item, cast item, loop index, then the primitive property values, then the value of a
+        // non-primitive property
+        final Bytecode code = newBytecode(generatedClass, 5 + getPrimitiveValueLocalsSize(layout));
+
+        if (layout.isFailFast()) {
+            final List<Integer> matchesBranches = new ArrayList<Integer>();
+
+            code.addAload(1);
+            code.addInstanceof(layout.getMatchedClass().getName());
+            matchesBranches.add(addBranch(code, Opcode.IFEQ));
+
+            if (layout.isTrackingReflectingProperties()) {
+                code.addAload(0);
+                code.addGetfield(generatedClass, "reflectingPropertyConfigured", "Z");
+                matchesBranches.add(addBranch(code, Opcode.IFNE));
+            }
+
+            code.addAload(1);
+            code.addCheckcast(layout.getMatchedClass());
+            code.addAstore(2);
+            addConfiguredPropertyLoop(code, layout, 2, -1, -1, 3, -1, false);
+            code.addIconst(1);
+            code.addOpcode(Opcode.IRETURN);
+
+            setBranchTargets(code, matchesBranches);
+        }
+
+        code.addAload(0);
+        code.addAload(1);
+        addInvokeVirtual(code, layout.getMatcherCtSuperClass(), "matches", getCtClass(classPool, Object.class));
+        code.addOpcode(Opcode.IRETURN);
+
+        addMethod(generatedClass, AccessFlag.PUBLIC, "test", "(Ljava/lang/Object;)Z", code);
+    }
+
+    @Override
+    public void generateFrozenCopyMethod(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final ClassPool classPool = generatedClass.getClassPool();
+        final CtClass propertyMatcherCtClass = getCtClass(classPool, PropertyMatcher.class);
+        final String propertyMatcherFieldDescriptor = Descriptor.of(PropertyMatcher.class.getName());
+
+        // Locals: this, the copy
+        final Bytecode code = newBytecode(generatedClass, 2);
+
+        code.addNew(generatedClass);
+        code.addOpcode(Opcode.DUP);
+        code.addInvokespecial(generatedClass, MethodInfo.nameInit, "()V");
+        code.addAstore(1);
+
+        for (String propertyName : layout.getPropertyNames()) {
+            final String propertyMatcherFieldName = getPropertyMatcherFieldName(propertyName);
+
+            addGetPropertyMatcher(code, generatedClass, propertyName);
+            final int unconfiguredBranch = addBranch(code, Opcode.IFNULL);
+
+            addPropertyMatcherCreation(code, layout, propertyName, 1);
+
+            code.addAload(1);
+            code.addGetfield(generatedClass, propertyMatcherFieldName, propertyMatcherFieldDescriptor);
+            addGetPropertyMatcher(code, generatedClass, propertyName);
+            final CtClass matcherType = addInvokeStatic(code, getCtClass(classPool, FrozenMatcher.class),
+                    "copyPropertyMatcher", propertyMatcherCtClass);
+            addPop(code, addInvokeVirtual(code, propertyMatcherCtClass, "setMatcher", matcherType));
+
+            if (layout.isPrimitiveProperty(propertyName)) {
+                final String expectedValueDescriptor = Descriptor.of(layout.getPropertyType(propertyName));
+
+                code.addAload(1);
+                code.addAload(0);
+                code.addGetfield(generatedClass, getExpectedValueFieldName(propertyName), expectedValueDescriptor);
+                code.addPutfield(generatedClass, getExpectedValueFieldName(propertyName), expectedValueDescriptor);
+                code.addAload(1);
+                code.addAload(0);
+                code.addGetfield(generatedClass, getHasExpectedValueFieldName(propertyName), "Z");
+                code.addPutfield(generatedClass, getHasExpectedValueFieldName(propertyName), "Z");
+            }
+
+            setBranchTarget(code, unconfiguredBranch);
+        }
+
+        code.addAload(1);
+        code.addIconst(1);
+        code.addPutfield(generatedClass, MatcherClassLayout.FROZEN_FIELD_NAME, "Z");
+        code.addAload(1);
+        code.addOpcode(Opcode.ARETURN);
+
+        addMethod(generatedClass, AccessFlag.PUBLIC, "frozenCopy", "()Ljava/lang/Object;", code);
+    }
+
+    @Override
+    public void generateNewMatcherMethod(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final Bytecode code = newBytecode(generatedClass, 1);
+
+        code.addNew(generatedClass);
+        code.addOpcode(Opcode.DUP);
+        code.addInvokespecial(generatedClass, MethodInfo.nameInit, "()V");
+        code.addOpcode(Opcode.ARETURN);
+
+        addMethod(generatedClass, AccessFlag.PUBLIC, "newMatcher", "()Ljava/lang/Object;", code);
+    }
+
+    @Override
+    public void generateSpecializedInitializer(SpecializedMatcherLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final ClassPool classPool = generatedClass.getClassPool();
+
+        // Locals: the array of constants
+        final Bytecode code = newBytecode(generatedClass, 1);
+
+        code.addLdc(layout.getConstantsKey());
+        addInvokeStatic(code, getCtClass(classPool, FrozenMatcher.class), "takeSpecializationConstants",
+                getCtClass(classPool, String.class));
+        code.addAstore(0);
+
+        addPutConstant(code, generatedClass, SpecializedMatcherLayout.FALLBACK_FIELD_NAME, 0, Matcher.class);
+
+        for (SpecializedProperty property : layout.getProperties()) {
+            if (!property.isComparedWithExpectedValue()) {
+                addPutConstant(code, generatedClass, property.getConstantFieldName(), property.getConstantIndex(),
+                        property.getConstantFieldType());
+            }
+        }
+
+        code.addOpcode(Opcode.RETURN);
+
+        try {
+            setCode(generatedClass, generatedClass.makeClassInitializer().getMethodInfo(), code);
+        } catch (CannotCompileException e) {
+            throw new RuntimeException("Failed to compile class initializer", e);
+        }
+    }
+
+    /**
+     * Add code that sets a static field from an element of the array of constants in local 0.
+     */
+    private static void addPutConstant(Bytecode code, CtClass generatedClass, String fieldName, int constantIndex,
+                                       Class<?> fieldType) {
+        code.addAload(0);
+        code.addIconst(constantIndex);
+        code.addOpcode(Opcode.AALOAD);
+        code.addCheckcast(fieldType.getName());
+        code.addPutstatic(generatedClass, fieldName, Descriptor.of(fieldType.getName()));
+    }
+
+    @Override
+    public void generateSpecializedPredicateMethod(SpecializedMatcherLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final ClassPool classPool = generatedClass.getClassPool();
+        final CtClass matcherCtClass = getCtClass(classPool, Matcher.class);
+
+        // Locals: this, item, cast item
+        final Bytecode code = newBytecode(generatedClass, 3);
+
+        code.addAload(1);
+        code.addInstanceof(layout.getMatchedClass().getName());
+        final int fallbackBranch = addBranch(code, Opcode.IFEQ);
+
+        code.addAload(1);
+        code.addCheckcast(layout.getMatchedClass());
+        code.addAstore(2);
+
+        final List<Integer> mismatchBranches = new ArrayList<Integer>();
+        for (SpecializedProperty property : layout.getProperties()) {
+            mismatchBranches.add(addSpecializedPropertyTest(code, layout, property, 2));
+        }
+
+        code.addIconst(1);
+        code.addOpcode(Opcode.IRETURN);
+
+        setBranchTargets(code, mismatchBranches);
+        code.addIconst(0);
+        code.addOpcode(Opcode.IRETURN);
+
+        setBranchTarget(code, fallbackBranch);
+        code.addGetstatic(generatedClass, SpecializedMatcherLayout.FALLBACK_FIELD_NAME, Descriptor.of(matcherCtClass));
+        code.addAload(1);
+        addInvokeVirtual(code, matcherCtClass, "matches", getCtClass(classPool, Object.class));
+        code.addOpcode(Opcode.IRETURN);
+
+        addMethod(generatedClass, AccessFlag.PUBLIC, "test", "(Ljava/lang/Object;)Z", code);
+    }
+
+    /**
+     * Add a test of a property of the item that branches if it does not match. A primitive property is compared with
+     * its expected value as a constant, with the same result as comparing them boxed with equals().
+     *
+     * @return the position of the branch, whose target is still to be set
+     */
+    private static int addSpecializedPropertyTest(Bytecode code, SpecializedMatcherLayout layout,
+                                                  SpecializedProperty property, int itemLocal) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final ClassPool classPool = generatedClass.getClassPool();
+        final CtClass propertyType = property.getPropertyType();
+
+        if (!property.isComparedWithExpectedValue()) {
+            final CtClass constantCtClass = getCtClass(classPool, property.getConstantFieldType());
+
+            code.addGetstatic(generatedClass, property.getConstantFieldName(), Descriptor.of(constantCtClass));
+            code.addAload(itemLocal);
+            addInvoke(code, layout.getMatchedClass(), property.getReadMethod());
+            addBox(code, propertyType);
+            addInvokeVirtual(code, constantCtClass, property.isPredicate() ? "test" : "matches",
+                    getCtClass(classPool, Object.class));
+            return addBranch(code, Opcode.IFEQ);
+        }
+
+        code.addAload(itemLocal);
+        addInvoke(code, layout.getMatchedClass(), property.getReadMethod());
+        addComparableBits(code, propertyType);
+
+        if (propertyType == CtClass.longType || propertyType == CtClass.doubleType) {
+            code.addLdc2w(property.getComparableExpectedValue());
+            code.addOpcode(Opcode.LCMP);
+            return addBranch(code, Opcode.IFNE);
+        }
+
+        code.addIconst((int) property.getComparableExpectedValue());
+        return addBranch(code, Opcode.IF_ICMPNE);
+    }
+
+    @Override
+    public void generateInstrumentedMatchesSafelyMethod(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final ClassPool classPool = generatedClass.getClassPool();
+        final CtClass objectCtClass = getCtClass(classPool, Object.class);
+        final CtClass descriptionCtClass = SmogTypes.getHamcrestDescriptionCtClass(classPool);
+        final String descriptor = Descriptor.ofMethod(CtClass.booleanType, new CtClass[]{objectCtClass, descriptionCtClass});
+
+        // Locals: this, item, description, start time, result, match time, property times
+        final Bytecode code = newBytecode(generatedClass, 9);
+
+        if (layout.isCountingMatches()) {
+            addMatchCount(code, layout);
+        }
+
+        if (layout.isTimingMatches()) {
+            code.addInvokestatic(System.class.getName(), "nanoTime", "()J");
+            code.addLstore(3);
+
+            if (layout.isTimingProperties()) {
+                code.addIconst(layout.getDirectProperties().size());
+                code.addLload(3);
+                addInvokeStatic(code, getCtClass(classPool, MatcherFlightRecorder.class), "startPropertyTiming",
+                        CtClass.intType, CtClass.longType);
+            } else {
+                code.addOpcode(Opcode.ACONST_NULL);
+            }
+            code.addAstore(8);
+        }
+
+        code.addAload(0);
+        code.addAload(1);
+        code.addAload(2);
+        if (layout.isFailFast()) {
+            code.addInvokespecial(generatedClass, MatcherClassLayout.FAIL_FAST_METHOD_NAME, descriptor);
+        } else {
+            addInvokeSpecial(code, layout.getMatcherCtSuperClass(), "matchesSafely", objectCtClass, descriptionCtClass);
+        }
+        code.addIstore(5);
+
+        if (layout.isTimingMatches()) {
+            addSlowMatchCheck(code, layout);
+        }
+
+        if (layout.isTimingProperties()) {
+            code.addAload(8);
+            final int untimedBranch = addBranch(code, Opcode.IFNULL);
+            code.addAload(8);
+            addInvokeStatic(code, getCtClass(classPool, MatcherFlightRecorder.class), "finishPropertyTiming",
+                    JavassistClassUtils.getCtClass(classPool, "long[]"));
+            setBranchTarget(code, untimedBranch);
+        }
+
+        code.addIload(5);
+        code.addOpcode(Opcode.IRETURN);
+
+        addMethod(generatedClass, AccessFlag.PROTECTED | AccessFlag.BRIDGE | AccessFlag.SYNTHETIC, "matchesSafely",
+                descriptor, code);
+    }
+
+    /**
+     * Add code that counts a match. Only matches made without a mismatch description are counted, so that
+     * describing a mismatch does not count as another match.
+     *
+     * @param code the code of matchesSafely(Object, Description)
+     * @param layout the layout of the matcher class
+     */
+    private static void addMatchCount(Bytecode code, MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final CtClass atomicLongCtClass = getCtClass(generatedClass.getClassPool(), AtomicLong.class);
+
+        code.addAload(2);
+        code.addInstanceof(Description.NullDescription.class.getName());
+        final int notCountedBranch = addBranch(code, Opcode.IFEQ);
+        code.addGetstatic(generatedClass, MatcherClassLayout.MATCH_COUNTER_FIELD_NAME, Descriptor.of(atomicLongCtClass));
+        addPop(code, addInvokeVirtual(code, atomicLongCtClass, "incrementAndGet"));
+        setBranchTarget(code, notCountedBranch);
+    }
+
+    /**
+     * Add code that reports the match to {@link MatcherFlightRecorder} if it took at least the slow match threshold.
+     *
+     * @param code the code of matchesSafely(Object, Description), with the start time in local 3, the result in
+     * local 5 and the property times in local 8
+     * @param layout the layout of the matcher class
+     */
+    private static void addSlowMatchCheck(Bytecode code, MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final ClassPool classPool = generatedClass.getClassPool();
+
+        code.addInvokestatic(System.class.getName(), "nanoTime", "()J");
+        code.addLload(3);
+        code.addOpcode(Opcode.LSUB);
+        code.addLstore(6);
+
+        code.addLload(6);
+        code.addLdc2w(layout.getSlowMatchThresholdNanos());
+        code.addOpcode(Opcode.LCMP);
+        final int fastBranch = addBranch(code, Opcode.IFLT);
+
+        code.addAload(0);
+        code.addAload(1);
+        code.addAload(2);
+        code.addIload(5);
+        code.addLload(6);
+        code.addAload(8);
+        code.addLdc(layout.getDirectPropertyNameList());
+        addPop(code, addInvokeStatic(code, getCtClass(classPool, MatcherFlightRecorder.class), "recordSlowMatch",
+                generatedClass, getCtClass(classPool, Object.class), SmogTypes.getHamcrestDescriptionCtClass(classPool),
+                CtClass.booleanType, CtClass.longType, JavassistClassUtils.getCtClass(classPool, "long[]"),
+                getCtClass(classPool, String.class)));
+
+        setBranchTarget(code, fastBranch);
+    }
+
+    /**
+     * Add a loop that matches the configured properties from the position recorded when the current thread has just
+     * failed to match the object, or else from the first. Should all the properties from the recorded position on
+     * match, which means that the object has changed or is not the one recorded, they are matched again from the
+     * first.
+     *
+     * @param code the code of matchesSafely(matched class, MatchAccumulator), with the matched object in local 1 and
+     * the match accumulator in local 2
+     * @param layout the layout of the matcher class
+     * @param startLocal the local for the first position to match
+     * @param timesLocal the local holding the property times, if the layout times properties
+     */
+    private static void addRecordedPositionLoop(Bytecode code, MatcherClassLayout layout, int startLocal,
+                                                int timesLocal) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final ClassPool classPool = generatedClass.getClassPool();
+        final CtClass objectCtClass = getCtClass(classPool, Object.class);
+
+        code.addAload(0);
+        code.addAload(0);
+        code.addGetfield(generatedClass, MatcherClassLayout.CONFIGURATION_COUNT_FIELD_NAME, "I");
+        code.addAload(1);
+        addInvokeStatic(code, getCtClass(classPool, RecordedMismatch.class), "takeRecordedPosition", objectCtClass,
+                CtClass.intType, objectCtClass);
+        code.addIstore(startLocal);
+
+        final int loopStart = code.currentPc();
+        addConfiguredPropertyLoop(code, layout, 1, 2, startLocal, 3, timesLocal, false);
+
+        final List<Integer> doneBranches = new ArrayList<Integer>();
+        code.addIload(startLocal);
+        doneBranches.add(addBranch(code, Opcode.IFEQ));
+        code.addAload(2);
+        addInvokeVirtual(code, getCtClass(classPool, MatchAccumulator.class), "result");
+        doneBranches.add(addBranch(code, Opcode.IFEQ));
+
+        code.addIconst(0);
+        code.addIstore(startLocal);
+        final int loopBranch = addBranch(code, Opcode.GOTO);
+        code.write16bit(loopBranch + 1, loopStart - loopBranch);
+
+        setBranchTargets(code, doneBranches);
+    }
+
+    /**
+     * Add a loop that visits each configured, directly read property in turn. Each property is checked with the
+     * match accumulator if there is one, and otherwise the method records the first property that does not match
+     * and returns false.
+     *
+     * @param code the method code
+     * @param layout the layout of the matcher class
+     * @param itemLocal the local holding the matched object, of the matched class
+     * @param accumulatorLocal the local holding the match accumulator, or -1 to return at the first mismatch
+     * @param startLocal the local holding the position of the first property to visit, or -1 to visit them all
+     * @param indexLocal the local for the loop index, followed by the locals for primitive property values and then,
+     * if there is no match accumulator, the local for a non-primitive property value
+     * @param timesLocal the local holding the property times, followed by the local for the start time of a property,
+     * which are used if the layout times properties, or -1 if properties are not to be timed
+     * @param recordMismatch whether to record the first property that does not match, when there is no match
+     * accumulator, rather than only returning false as a predicate does
+     */
+    private static void addConfiguredPropertyLoop(Bytecode code, MatcherClassLayout layout, int itemLocal,
+                                                  int accumulatorLocal, int startLocal, int indexLocal,
+                                                  int timesLocal, boolean recordMismatch) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final List<String> directProperties = layout.getDirectProperties();
+        final int objectValueLocal = indexLocal + 1 + getPrimitiveValueLocalsSize(layout);
+        final int propertyTimesLocal = layout.isTimingProperties() ? timesLocal : -1;
+
+        if (startLocal >= 0) {
+            code.addIload(startLocal);
+        } else {
+            code.addIconst(0);
+        }
+        code.addIstore(indexLocal);
+
+        final int loopStart = code.currentPc();
+        code.addIload(indexLocal);
+        code.addAload(0);
+        code.addGetfield(generatedClass, "configuredPropertyCount", "I");
+        final int loopExitBranch = addBranch(code, Opcode.IF_ICMPGE);
+
+        code.addAload(0);
+        code.addGetfield(generatedClass, "configuredProperties", CONFIGURED_PROPERTIES_FIELD_DESCRIPTOR);
+        code.addIload(indexLocal);
+        code.addOpcode(Opcode.IALOAD);
+
+        // The operands of tableswitch are aligned to a multiple of four bytes from the start of the code
+        final int switchPc = code.currentPc();
+        code.addOpcode(Opcode.TABLESWITCH);
+        code.addGap((4 - code.currentPc() % 4) % 4);
+        final int defaultOffsetPc = code.currentPc();
+        code.add32bit(0);
+        code.add32bit(0);
+        code.add32bit(directProperties.size() - 1);
+        final int caseOffsetsPc = code.currentPc();
+        for (int i = 0; i < directProperties.size(); i++) {
+            code.add32bit(0);
+        }
+
+        final List<Integer> breakBranches = new ArrayList<Integer>();
+        int valueLocal = indexLocal + 1;
+
+        for (int i = 0; i < directProperties.size(); i++) {
+            final String propertyName = directProperties.get(i);
+            code.write32bit(caseOffsetsPc + 4 * i, code.currentPc() - switchPc);
+
+            if (propertyTimesLocal >= 0) {
+                code.addAload(propertyTimesLocal);
+                final int untimedBranch = addBranch(code, Opcode.IFNULL);
+                code.addInvokestatic(System.class.getName(), "nanoTime", "()J");
+                code.addLstore(propertyTimesLocal + 1);
+                setBranchTarget(code, untimedBranch);
+            }
+
+            if (accumulatorLocal >= 0) {
+                addAccumulatingPropertyCheck(code, layout, propertyName, itemLocal, accumulatorLocal, valueLocal);
+            } else {
+                addFailFastPropertyCheck(code, layout, propertyName, itemLocal, indexLocal,
+                        layout.isPrimitiveProperty(propertyName) ? valueLocal : objectValueLocal, propertyTimesLocal,
+                        recordMismatch);
+            }
+
+            addPropertyTime(code, i, propertyTimesLocal);
+
+            if (layout.isPrimitiveProperty(propertyName)) {
+                valueLocal += getLocalSize(layout.getPropertyType(propertyName));
+            }
+
+            breakBranches.add(addBranch(code, Opcode.GOTO));
+        }
+
+        code.write32bit(defaultOffsetPc, code.currentPc() - switchPc);
+        setBranchTargets(code, breakBranches);
+
+        code.addOpcode(Opcode.IINC);
+        code.add(indexLocal);
+        code.add(1);
+        final int loopBranch = addBranch(code, Opcode.GOTO);
+        code.write16bit(loopBranch + 1, loopStart - loopBranch);
+
+        setBranchTarget(code, loopExitBranch);
+    }
+
+    private static void addAccumulatingPropertyCheck(Bytecode code, MatcherClassLayout layout, String propertyName,
+                                                     int itemLocal, int accumulatorLocal, int valueLocal) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final ClassPool classPool = generatedClass.getClassPool();
+        final CtClass propertyType = layout.getPropertyType(propertyName);
+        final CtClass matchAccumulatorCtClass = getCtClass(classPool, MatchAccumulator.class);
+        final CtClass propertyMatcherCtClass = getCtClass(classPool, PropertyMatcher.class);
+        final CtClass objectCtClass = getCtClass(classPool, Object.class);
+
+        if (!layout.isPrimitiveProperty(propertyName)) {
+            code.addAload(accumulatorLocal);
+            addGetPropertyMatcher(code, generatedClass, propertyName);
+            code.addAload(itemLocal);
+            addInvoke(code, layout.getMatchedClass(), layout.getReadMethod(propertyName));
+            addBox(code, propertyType);
+            addPop(code, addInvokeVirtual(code, matchAccumulatorCtClass, "matches", propertyMatcherCtClass, objectCtClass));
+            return;
+        }
+
+        code.addAload(itemLocal);
+        addInvoke(code, layout.getMatchedClass(), layout.getReadMethod(propertyName));
+        code.addStore(valueLocal, propertyType);
+
+        code.addAload(0);
+        code.addGetfield(generatedClass, getHasExpectedValueFieldName(propertyName), "Z");
+        final int noExpectedValueBranch = addBranch(code, Opcode.IFEQ);
+        final int equalBranch = addExpectedValueComparison(code, layout, propertyName, valueLocal);
+
+        setBranchTarget(code, noExpectedValueBranch);
+        code.addAload(accumulatorLocal);
+        addGetPropertyMatcher(code, generatedClass, propertyName);
+        code.addLoad(valueLocal, propertyType);
+        addBox(code, propertyType);
+        addPop(code, addInvokeVirtual(code, matchAccumulatorCtClass, "matches", propertyMatcherCtClass, objectCtClass));
+
+        setBranchTarget(code, equalBranch);
+    }
+
+    private static void addFailFastPropertyCheck(Bytecode code, MatcherClassLayout layout, String propertyName,
+                                                 int itemLocal, int indexLocal, int valueLocal, int timesLocal,
+                                                 boolean recordMismatch) {
+        final int propertyIndex = layout.getDirectProperties().indexOf(propertyName);
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final CtClass propertyType = layout.getPropertyType(propertyName);
+        final List<Integer> matchedBranches = new ArrayList<Integer>();
+
+        if (!layout.isPrimitiveProperty(propertyName)) {
+            code.addAload(itemLocal);
+            addInvoke(code, layout.getMatchedClass(), layout.getReadMethod(propertyName));
+            code.addAstore(valueLocal);
+            addGetPropertyMatcher(code, generatedClass, propertyName);
+            code.addAload(valueLocal);
+            addPropertyMatcherTest(code, layout, recordMismatch);
+            matchedBranches.add(addBranch(code, Opcode.IFNE));
+            addMismatchReturn(code, layout, itemLocal, indexLocal, propertyIndex, timesLocal, recordMismatch);
+            setBranchTargets(code, matchedBranches);
+            return;
+        }
+
+        code.addAload(itemLocal);
+        addInvoke(code, layout.getMatchedClass(), layout.getReadMethod(propertyName));
+        code.addStore(valueLocal, propertyType);
+
+        code.addAload(0);
+        code.addGetfield(generatedClass, getHasExpectedValueFieldName(propertyName), "Z");
+        final int noExpectedValueBranch = addBranch(code, Opcode.IFEQ);
+        matchedBranches.add(addExpectedValueComparison(code, layout, propertyName, valueLocal));
+        final int expectedValueMismatchBranch = addBranch(code, Opcode.GOTO);
+
+        setBranchTarget(code, noExpectedValueBranch);
+        addGetPropertyMatcher(code, generatedClass, propertyName);
+        code.addLoad(valueLocal, propertyType);
+        addBox(code, propertyType);
+        addPropertyMatcherTest(code, layout, recordMismatch);
+        matchedBranches.add(addBranch(code, Opcode.IFNE));
+
+        setBranchTarget(code, expectedValueMismatchBranch);
+        addMismatchReturn(code, layout, itemLocal, indexLocal, propertyIndex, timesLocal, recordMismatch);
+
+        setBranchTargets(code, matchedBranches);
+    }
+
+    /**
+     * Add a test of the property value on the stack with the property matcher beneath it, leaving true on the stack
+     * if it matches. A predicate tests a generated matcher given for the property with its own predicate.
+     */
+    private static void addPropertyMatcherTest(Bytecode code, MatcherClassLayout layout, boolean recordMismatch) {
+        final ClassPool classPool = layout.getGeneratedClass().getClassPool();
+        final CtClass propertyMatcherCtClass = getCtClass(classPool, PropertyMatcher.class);
+        final CtClass objectCtClass = getCtClass(classPool, Object.class);
+
+        if (recordMismatch) {
+            addInvokeVirtual(code, propertyMatcherCtClass, "matches", objectCtClass);
+        } else {
+            addInvokeStatic(code, getCtClass(classPool, FrozenMatcher.class), "testPropertyMatcher",
+                    propertyMatcherCtClass, objectCtClass);
+        }
+    }
+
+    /**
+     * Add code that returns false for a property that did not match, having recorded its time and position if
+     * required.
+     */
+    private static void addMismatchReturn(Bytecode code, MatcherClassLayout layout, int itemLocal, int indexLocal,
+                                          int propertyIndex, int timesLocal, boolean recordMismatch) {
+        addPropertyTime(code, propertyIndex, timesLocal);
+
+        if (recordMismatch) {
+            addRecordMismatch(code, layout, itemLocal, indexLocal);
+        } else {
+            code.addIconst(0);
+            code.addOpcode(Opcode.IRETURN);
+        }
+    }
+
+    /**
+     * Add code that records the position of the property that did not match with {@link RecordedMismatch}, and
+     * returns false.
+     */
+    private static void addRecordMismatch(Bytecode code, MatcherClassLayout layout, int itemLocal, int indexLocal) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final CtClass objectCtClass = getCtClass(generatedClass.getClassPool(), Object.class);
+
+        code.addAload(0);
+        code.addAload(0);
+        code.addGetfield(generatedClass, MatcherClassLayout.CONFIGURATION_COUNT_FIELD_NAME, "I");
+        code.addAload(itemLocal);
+        code.addIload(indexLocal);
+        addInvokeStatic(code, getCtClass(generatedClass.getClassPool(), RecordedMismatch.class), "record",
+                objectCtClass, CtClass.intType, objectCtClass, CtClass.intType);
+        code.addIconst(0);
+        code.addOpcode(Opcode.IRETURN);
+    }
+
+    /**
+     * Add code that takes the property times of the match from {@link MatcherFlightRecorder}, if the layout times
+     * properties, and initialises the start time of a property.
+     *
+     * @param code the method code
+     * @param layout the layout of the matcher class
+     * @param timesLocal the local for the property times, followed by the local for the start time of a property
+     */
+    private static void addPropertyTimingStart(Bytecode code, MatcherClassLayout layout, int timesLocal) {
+        if (layout.isTimingProperties()) {
+            code.addIconst(layout.getDirectProperties().size());
+            addInvokeStatic(code, getCtClass(layout.getGeneratedClass().getClassPool(), MatcherFlightRecorder.class),
+                    "takePropertyTiming", CtClass.intType);
+            code.addAstore(timesLocal);
+            code.addLconst(0);
+            code.addLstore(timesLocal + 1);
+        }
+    }
+
+    /**
+     * Add code that records the time taken by a property check so far, if properties are being timed and the match
+     * was given property times.
+     *
+     * @param code the method code
+     * @param propertyIndex the index of the property in the generated code
+     * @param timesLocal the local holding the property times, followed by the start time of the property, or -1 if
+     * properties are not being timed
+     */
+    private static void addPropertyTime(Bytecode code, int propertyIndex, int timesLocal) {
+        if (timesLocal >= 0) {
+            code.addAload(timesLocal);
+            final int untimedBranch = addBranch(code, Opcode.IFNULL);
+            code.addAload(timesLocal);
+            code.addIconst(propertyIndex);
+            code.addInvokestatic(System.class.getName(), "nanoTime", "()J");
+            code.addLload(timesLocal + 1);
+            code.addOpcode(Opcode.LSUB);
+            code.addOpcode(Opcode.LASTORE);
+            setBranchTarget(code, untimedBranch);
+        }
+    }
+
+    /**
+     * @return the number of locals used to time properties: the property times and the start time of a property
+     */
+    private static int getPropertyTimingLocalsSize(MatcherClassLayout layout) {
+        return layout.isTimingProperties() ? 3 : 0;
+    }
+
+    /**
+     * Add a comparison of a primitive property value with the expected value that branches if they are equal,
+     * with the same result as comparing them boxed with equals(). Floating point values are compared by their bits.
+     *
+     * @return the position of the branch, whose target is still to be set
+     */
+    private static int addExpectedValueComparison(Bytecode code, MatcherClassLayout layout, String propertyName,
+                                                  int valueLocal) {
+        final CtClass propertyType = layout.getPropertyType(propertyName);
+        final String expectedValueFieldName = getExpectedValueFieldName(propertyName);
+
+        code.addLoad(valueLocal, propertyType);
+        addComparableBits(code, propertyType);
+        code.addAload(0);
+        code.addGetfield(layout.getGeneratedClass(), expectedValueFieldName, Descriptor.of(propertyType));
+        addComparableBits(code, propertyType);
+
+        if (propertyType == CtClass.longType || propertyType == CtClass.doubleType) {
+            code.addOpcode(Opcode.LCMP);
+            return addBranch(code, Opcode.IFEQ);
+        }
+
+        return addBranch(code, Opcode.IF_ICMPEQ);
+    }
+
+    private static void addComparableBits(Bytecode code, CtClass propertyType) {
+        if (propertyType == CtClass.doubleType) {
+            code.addInvokestatic(Double.class.getName(), "doubleToLongBits", "(D)J");
+        } else if (propertyType == CtClass.floatType) {
+            code.addInvokestatic(Float.class.getName(), "floatToIntBits", "(F)I");
+        }
+    }
+
+    /**
+     * Add the code that loads the configured property before the position held in local 2.
+     */
+    private static void addGetPreviousConfiguredProperty(Bytecode code, CtClass generatedClass) {
+        code.addAload(0);
+        code.addGetfield(generatedClass, "configuredProperties", CONFIGURED_PROPERTIES_FIELD_DESCRIPTOR);
+        code.addIload(2);
+        code.addIconst(1);
+        code.addOpcode(Opcode.ISUB);
+        code.addOpcode(Opcode.IALOAD);
+    }
+
+    /**
+     * Add the code that creates the property matcher of a property of the matcher held in a local, and records that
+     * the property has been configured.
+     */
+    private static void addPropertyMatcherCreation(Bytecode code, MatcherClassLayout layout, String propertyName,
+                                                   int matcherLocal) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final ClassPool classPool = generatedClass.getClassPool();
+        final int directPropertyIndex = layout.getDirectProperties().indexOf(propertyName);
+        final CtClass propertyMatcherCtClass = getCtClass(classPool,
+                directPropertyIndex >= 0 ? PropertyMatcher.class : ReflectingPropertyMatcher.class);
+
+        code.addAload(matcherLocal);
+        code.addNew(propertyMatcherCtClass);
+        code.addOpcode(Opcode.DUP);
+        code.addLdc(propertyName);
+        code.addAload(matcherLocal);
+        addInvokeConstructor(code, propertyMatcherCtClass, getCtClass(classPool, String.class), generatedClass);
+        code.addPutfield(generatedClass, getPropertyMatcherFieldName(propertyName),
+                Descriptor.of(PropertyMatcher.class.getName()));
+
+        if (directPropertyIndex >= 0) {
+            code.addAload(matcherLocal);
+            code.addIconst(directPropertyIndex);
+            code.addInvokespecial(generatedClass, "addConfiguredProperty", "(I)V");
+        } else if (layout.isTrackingReflectingProperties()) {
+            code.addAload(matcherLocal);
+            code.addIconst(1);
+            code.addPutfield(generatedClass, "reflectingPropertyConfigured", "Z");
+        }
+    }
+
+    private static void addGetPropertyMatcher(Bytecode code, CtClass generatedClass, String propertyName) {
+        code.addAload(0);
+        code.addGetfield(generatedClass, getPropertyMatcherFieldName(propertyName), Descriptor.of(PropertyMatcher.class.getName()));
+    }
+
+    private static int getPrimitiveValueLocalsSize(MatcherClassLayout layout) {
+        int size = 0;
+
+        for (String propertyName : layout.getDirectProperties()) {
+            if (layout.isPrimitiveProperty(propertyName)) {
+                size += getLocalSize(layout.getPropertyType(propertyName));
+            }
+        }
+
+        return size;
+    }
+
+    private static int getLocalSize(CtClass type) {
+        return type == CtClass.longType || type == CtClass.doubleType ? 2 : 1;
+    }
+
+    private static Bytecode newBytecode(CtClass generatedClass, int maxLocals) {
+        return new Bytecode(generatedClass.getClassFile().getConstPool(), 0, maxLocals);
+    }
+
+    private static int addBranch(Bytecode code, int opcode) {
+        final int branchPc = code.currentPc();
+        code.addOpcode(opcode);
+        code.addIndex(0);
+        return branchPc;
+    }
+
+    private static void setBranchTarget(Bytecode code, int branchPc) {
+        code.write16bit(branchPc + 1, code.currentPc() - branchPc);
+    }
+
+    private static void setBranchTargets(Bytecode code, List<Integer> branchPcs) {
+        for (int branchPc : branchPcs) {
+            setBranchTarget(code, branchPc);
+        }
+    }
+
+    private static void addBox(Bytecode code, CtClass type) {
+        if (type.isPrimitive()) {
+            final CtPrimitiveType primitiveType = (CtPrimitiveType) type;
+            code.addInvokestatic(primitiveType.getWrapperName(), "valueOf",
+                    "(" + primitiveType.getDescriptor() + ")" + Descriptor.of(primitiveType.getWrapperName()));
+        }
+    }
+
+    private static CtClass getBoxedType(ClassPool classPool, CtClass type) {
+        if (type.isPrimitive()) {
+            return JavassistClassUtils.getCtClass(classPool, ((CtPrimitiveType) type).getWrapperName());
+        }
+
+        return type;
+    }
+
+    private static void addPop(Bytecode code, CtClass type) {
+        if (type == CtClass.longType || type == CtClass.doubleType) {
+            code.addOpcode(Opcode.POP2);
+        } else if (type != CtClass.voidType) {
+            code.addOpcode(Opcode.POP);
+        }
+    }
+
+    private static void addInvoke(Bytecode code, CtClass owner, CtMethod method) {
+        final String descriptor = method.getSignature();
+
+        if (owner.isInterface()) {
+            code.addInvokeinterface(owner, method.getName(), descriptor, 1 + Descriptor.paramSize(descriptor));
+        } else {
+            code.addInvokevirtual(owner, method.getName(), descriptor);
+        }
+    }
+
+    /**
+     * Add a call of an instance method that leaves its result on the stack.
+     *
+     * @return the return type of the method
+     */
+    private static CtClass addInvokeVirtual(Bytecode code, CtClass owner, String methodName, CtClass... argumentTypes) {
+        final CtMethod method = findMethod(owner, methodName, argumentTypes);
+        addInvoke(code, owner, method);
+        return JavassistClassUtils.getReturnType(method);
+    }
+
+    /**
+     * Add a call of a superclass method that leaves its result on the stack.
+     *
+     * @return the return type of the method
+     */
+    private static CtClass addInvokeSpecial(Bytecode code, CtClass owner, String methodName, CtClass... argumentTypes) {
+        final CtMethod method = findMethod(owner, methodName, argumentTypes);
+        code.addInvokespecial(owner, methodName, method.getSignature());
+        return JavassistClassUtils.getReturnType(method);
+    }
+
+    /**
+     * Add a call of a static method that leaves its result on the stack.
+     *
+     * @return the return type of the method
+     */
+    private static CtClass addInvokeStatic(Bytecode code, CtClass owner, String methodName, CtClass... argumentTypes) {
+        final CtMethod method = findMethod(owner, methodName, argumentTypes);
+        code.addInvokestatic(owner, methodName, method.getSignature());
+        return JavassistClassUtils.getReturnType(method);
+    }
+
+    private static void addInvokeConstructor(Bytecode code, CtClass owner, CtClass... argumentTypes) {
+        for (CtConstructor constructor : owner.getDeclaredConstructors()) {
+            if (isApplicable(constructor.getSignature(), owner.getClassPool(), argumentTypes)) {
+                code.addInvokespecial(owner, MethodInfo.nameInit, constructor.getSignature());
+                return;
+            }
+        }
+
+        throw new RuntimeException("Failed to find constructor of " + owner.getName());
+    }
+
+    /**
+     * Find the method of a class, or the most derived of its super-types, that the compiler would call with
+     * arguments of the given types.
+     */
+    private static CtMethod findMethod(CtClass owner, String methodName, CtClass... argumentTypes) {
+        final List<CtMethod> methods = JavassistClassUtils.getMethods(owner);
+
+        for (int i = methods.size() - 1; i >= 0; i--) {
+            final CtMethod method = methods.get(i);
+
+            if (method.getName().equals(methodName) && !Modifier.isPrivate(method.getModifiers()) &&
+                    isApplicable(method.getSignature(), owner.getClassPool(), argumentTypes)) {
+                return method;
+            }
+        }
+
+        throw new RuntimeException("Failed to find method " + methodName + " of " + owner.getName());
+    }
+
+    private static boolean isApplicable(String descriptor, ClassPool classPool, CtClass[] argumentTypes) {
+        final CtClass[] parameterTypes;
+        try {
+            parameterTypes = Descriptor.getParameterTypes(descriptor, classPool);
+        } catch (NotFoundException e) {
+            throw new RuntimeException("Failed to find class", e);
+        }
+
+        if (parameterTypes.length != argumentTypes.length) {
+            return false;
+        }
+
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (!JavassistClassUtils.isSubTypeOf(argumentTypes[i], parameterTypes[i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static CtClass getCtClass(ClassPool classPool, Class<?> clazz) {
+        return JavassistClassUtils.getCtClass(classPool, clazz.getName());
+    }
+
+    private static void addMethod(CtClass generatedClass, int accessFlags, String methodName, String descriptor, Bytecode code) {
+        final MethodInfo methodInfo = new MethodInfo(generatedClass.getClassFile().getConstPool(), methodName, descriptor);
+        methodInfo.setAccessFlags(accessFlags);
+        setCode(generatedClass, methodInfo, code);
+
+        try {
+            generatedClass.addMethod(CtMethod.make(methodInfo, generatedClass));
+        } catch (CannotCompileException e) {
+            throw new RuntimeException("Failed to compile class", e);
+        }
+    }
+
+    private static void setCode(CtClass generatedClass, MethodInfo methodInfo, Bytecode code) {
+        final CodeAttribute codeAttribute = code.toCodeAttribute();
+
+        try {
+            codeAttribute.computeMaxStack();
+            methodInfo.setCodeAttribute(codeAttribute);
+            methodInfo.rebuildStackMapIf6(generatedClass.getClassPool(), generatedClass.getClassFile());
+        } catch (BadBytecode e) {
+            throw new RuntimeException("Failed to generate bytecode for method " + methodInfo.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.mistraltech.smog.proxy.javassist;
+
+/**
+ * A generated matcher that can be frozen, by making a copy of it that can no longer be configured.
+ * <p>
+ * Generated matcher classes implement this interface themselves. It is public only so that generated classes in
+ * other packages can implement it, and is not intended for use by clients, which freeze matchers with
+ * {@link JavassistMatcherGenerator#freeze(org.hamcrest.Matcher)}.
+ */
+public interface FreezableMatcher {
+
+    /**
+     * Make a copy of this matcher, configured as it is now, that cannot be configured any further. The generated
+     * matchers given directly for its properties are copied in the same way. This matcher, and the matchers given for
+     * its properties, are left as they are and can still be configured.
+     *
+     * @return the frozen copy
+     */
+    Object frozenCopy();
+}
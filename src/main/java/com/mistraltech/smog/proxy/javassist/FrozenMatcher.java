@@ -0,0 +1,233 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.core.PropertyMatcher;
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+
+/**
+ * A generated matcher that has been frozen by {@link JavassistMatcherGenerator#freeze(Matcher)}, so that it can be
+ * shared between threads.
+ * <p>
+ * A frozen matcher holds a copy of the generated matcher it was made from, and of the generated matchers given directly
+ * for its properties, which cannot be configured. The matchers it was made from are left as they were, and configuring
+ * them further does not change the frozen matcher. The copy is held in a final field, so a frozen matcher can be
+ * published to other threads in any way, even through a field that is not volatile, and they will see it fully
+ * configured. It can then be used from several threads at once without locking, provided that any other
+ * matchers given for its properties can too, as Hamcrest's own matchers can.
+ * <p>
+ * A frozen matcher is also a {@link MatcherPredicate}, which tests objects using code generated for the purpose. This
+ * reads the configured properties directly, stops at the first that does not match, and tests the generated matchers
+ * given for properties in the same way, without creating any objects or recording anything to describe a mismatch.
+ * <p>
+ * A frozen matcher can be given for a property of another matcher, but is then described as an opaque matcher rather
+ * than by the path of the property, because it cannot be attached to the other matcher.
+ * <p>
+ * As the configuration of a frozen matcher cannot change, a class can be generated for it alone, with the expected
+ * values of its properties as constants in the code and the matchers given for them in static final fields, which the
+ * JIT compiler can then inline. This is done once a frozen matcher has matched or tested the number of objects given
+ * by the {@value #SPECIALIZATION_THRESHOLD_PROPERTY} system property, on the thread that reaches the threshold, and it
+ * then matches and tests objects with the specialized class. Generated matchers given for its properties are
+ * specialized with it. Matches are counted without synchronization, so the threshold is approximate when the matcher
+ * is shared between threads. Mismatches are still described by the frozen matcher, but are no longer recorded by the
+ * match, so describing one reads the properties again. Specialized classes are hidden classes where the JVM supports
+ * them, which are unloaded along with their frozen matcher; otherwise they remain until their class loader is
+ * unloaded, so specialization is best kept for long-lived matchers. The property must be set when the matcher is
+ * frozen, and specialization is off if it is not set.
+ *
+ * @param <T> the type of the matched objects
+ */
+public final class FrozenMatcher<T> extends BaseMatcher<T> implements MatcherPredicate<T> {
+    public static final String SPECIALIZATION_THRESHOLD_PROPERTY = "smog.javassist.specializationThreshold";
+
+    private final Matcher<T> matcher;
+    private final MatcherPredicate<? super T> predicate;
+    private volatile MatcherPredicate<Object> specializedPredicate;
+    private int matchesUntilSpecialized;
+    private boolean specializationStarted;
+
+    FrozenMatcher(Matcher<T> matcher) {
+        this.matcher = matcher;
+        this.predicate = getPredicate(matcher);
+        this.matchesUntilSpecialized = getSpecializationThreshold();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> MatcherPredicate<? super T> getPredicate(Matcher<T> matcher) {
+        if (matcher instanceof MatcherPredicate) {
+            return (MatcherPredicate<? super T>) matcher;
+        }
+
+        return new MatchingPredicate<T>(matcher);
+    }
+
+    /**
+     * Get the specialization threshold given by the {@value #SPECIALIZATION_THRESHOLD_PROPERTY} system property.
+     *
+     * @return the number of matches after which a frozen matcher is specialized, or 0 if it is not to be specialized
+     */
+    static int getSpecializationThreshold() {
+        final String threshold = System.getProperty(SPECIALIZATION_THRESHOLD_PROPERTY);
+
+        if (threshold == null) {
+            return 0;
+        }
+
+        try {
+            final int matches = Integer.parseInt(threshold.trim());
+
+            if (matches <= 0) {
+                throw new NumberFormatException("Threshold is not positive");
+            }
+
+            return matches;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value of " + SPECIALIZATION_THRESHOLD_PROPERTY + ": "
+                    + threshold, e);
+        }
+    }
+
+    /**
+     * Take the constants of a class specialized for a frozen matcher. Used by specialized classes.
+     *
+     * @param constantsKey the key of the constants, which is the name of the specialized class
+     * @return the constants
+     */
+    public static Object[] takeSpecializationConstants(String constantsKey) {
+        return MatcherClassSpecializer.takeConstants(constantsKey);
+    }
+
+    /**
+     * Check that a generated matcher can be configured. Used by generated matcher classes.
+     *
+     * @param frozen whether the matcher has been frozen
+     * @throws IllegalStateException if the matcher has been frozen
+     */
+    public static void checkConfigurable(boolean frozen) {
+        if (frozen) {
+            throw new IllegalStateException("A frozen matcher cannot be configured");
+        }
+    }
+
+    /**
+     * Get the matcher to give a property of a frozen copy of a generated matcher: a frozen copy of the matcher given
+     * for the property if it is a generated matcher, or else the matcher itself. Used by generated matcher classes.
+     *
+     * @param propertyMatcher the property matcher of a configured property
+     * @return the matcher for the property of the copy
+     */
+    public static Matcher<?> copyPropertyMatcher(PropertyMatcher<?> propertyMatcher) {
+        final Matcher<?> matcher = propertyMatcher.getMatcher();
+
+        if (matcher instanceof FreezableMatcher) {
+            return (Matcher<?>) ((FreezableMatcher) matcher).frozenCopy();
+        }
+
+        return matcher;
+    }
+
+    /**
+     * Test a property value with the matcher given for the property, using the matcher's own predicate if it is a
+     * generated matcher. Used by generated matcher classes.
+     *
+     * @param propertyMatcher the property matcher of a configured property
+     * @param value the value of the property
+     * @return true if the value matches
+     */
+    @SuppressWarnings("unchecked")
+    public static boolean testPropertyMatcher(PropertyMatcher<?> propertyMatcher, Object value) {
+        final Matcher<?> matcher = propertyMatcher.getMatcher();
+
+        if (matcher instanceof MatcherPredicate) {
+            return ((MatcherPredicate<Object>) matcher).test(value);
+        }
+
+        return propertyMatcher.matches(value);
+    }
+
+    @Override
+    public boolean test(T item) {
+        final MatcherPredicate<Object> specialized = specializedPredicate;
+
+        if (specialized != null) {
+            return specialized.test(item);
+        }
+
+        countMatch();
+        return predicate.test(item);
+    }
+
+    @Override
+    public boolean matches(Object item) {
+        final MatcherPredicate<Object> specialized = specializedPredicate;
+
+        if (specialized != null) {
+            return specialized.test(item);
+        }
+
+        countMatch();
+        return matcher.matches(item);
+    }
+
+    /**
+     * @return true if objects are matched by a class specialized for this matcher
+     */
+    boolean isSpecialized() {
+        return specializedPredicate != null;
+    }
+
+    /**
+     * Count a match towards the specialization threshold, and specialize the matcher if it has been reached. The
+     * count is not synchronized, so threads may lose some of each other's matches, but any thread that takes it to
+     * zero or below specializes the matcher.
+     */
+    private void countMatch() {
+        if (matchesUntilSpecialized > 0 && --matchesUntilSpecialized <= 0) {
+            specialize();
+        }
+    }
+
+    private void specialize() {
+        synchronized (this) {
+            if (specializationStarted) {
+                return;
+            }
+
+            specializationStarted = true;
+        }
+
+        try {
+            specializedPredicate = MatcherClassSpecializer.specialize(matcher);
+        } catch (LinkageError e) {
+            // Javassist is not available, as when all the matcher classes were generated ahead of time, so the
+            // specializer cannot be linked and the matcher is left as it is
+        }
+    }
+
+    @Override
+    public void describeMismatch(Object item, Description description) {
+        matcher.describeMismatch(item, description);
+    }
+
+    @Override
+    public void describeTo(Description description) {
+        matcher.describeTo(description);
+    }
+
+    /**
+     * Tests objects with a matcher whose class was not generated with a predicate, such as one generated ahead of
+     * time by an earlier version of this library.
+     */
+    private static final class MatchingPredicate<T> implements MatcherPredicate<T> {
+        private final Matcher<T> matcher;
+
+        private MatchingPredicate(Matcher<T> matcher) {
+            this.matcher = matcher;
+        }
+
+        @Override
+        public boolean test(T item) {
+            return matcher.matches(item);
+        }
+    }
+}
@@ -1,22 +1,23 @@
 package com.mistraltech.smog.proxy.javassist;
 
 import com.mistraltech.smog.core.CompositePropertyMatcher;
-import com.mistraltech.smog.core.PropertyMatcher;
-import com.mistraltech.smog.core.ReflectingPropertyMatcher;
-import com.mistraltech.smog.core.util.PropertyDescriptorLocator;
 import com.mistraltech.smog.proxy.javassist.util.JavaReflectionUtils;
-import com.mistraltech.smog.proxy.javassist.util.JavassistClassUtils;
-import javassist.ClassPool;
-import javassist.CtClass;
-import javassist.CtMethod;
-import javassist.Modifier;
 import org.hamcrest.Matcher;
 
-import java.beans.PropertyDescriptor;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Generates a SMOG {@link CompositePropertyMatcher} implementation for a given matcher interface.
@@ -33,9 +34,36 @@ import java.util.Set;
  * <p>
  * The interface can also optionally declare a "like" method that takes an instance
  * of the matched class or a super-type and will use it to pre-populate the property matchers with expected values.
+ * <p>
+ * Matcher classes are normally generated at runtime on first use. They can instead be generated during the build by
+ * {@link MatcherClassPreGenerator}, in which case they are loaded directly and Javassist is not needed at runtime.
+ * Alternatively, the class files of generated matcher classes can be cached in a directory shared between runs, as
+ * described by {@link MatcherBytecodeCache}.
+ * <p>
+ * Once configured, a generated matcher can be used to match and describe objects from several threads at once,
+ * provided that the matchers given for its properties can too. Configuring a matcher while another thread is using
+ * it is not safe, but {@link #freeze(Matcher)} makes a frozen copy of a matcher that cannot be configured any further.
+ * {@link BulkMatching} matches a matcher against many objects on several threads.
  */
 public class JavassistMatcherGenerator {
 
+    /**
+     * The superclass of the generated matcher classes.
+     */
+    static final Class<?> MATCHER_SUPERCLASS = CompositePropertyMatcher.class;
+
+    /**
+     * The interfaces implemented by every generated matcher class, besides its matcher interface.
+     */
+    static final List<Class<?>> MATCHER_CLASS_INTERFACES = Collections.unmodifiableList(Arrays.<Class<?>>asList(
+            MatcherPredicate.class, FreezableMatcher.class, MatcherInstanceFactory.class));
+
+    /**
+     * Set once a Javassist class pool may have been created, so that {@link #release(ClassLoader)} does not load
+     * Javassist if it has never been used.
+     */
+    private static volatile boolean classPoolUsed;
+
     /**
      * Generate a matcher class instance for the specified interface.
      *
@@ -44,148 +72,371 @@ public class JavassistMatcherGenerator {
      * @return the new matcher instance
      */
     public static <TM> TM matcherOf(Class<TM> matcherInterface) {
-        Class<TM> matcherClass = getMatcherClass(matcherInterface);
-        return JavaReflectionUtils.createInstance(matcherClass);
+        return getMatcherFactory(matcherInterface).newMatcher();
     }
 
     /**
-     * Get the matcher implementation class for the given matcher interface.
+     * Freeze a configured matcher, so that it can be built once and then shared between threads.
+     * <p>
+     * The returned matcher holds a copy of the matcher, and of the generated matchers given directly for its
+     * properties, configured as they are now. The matcher given is left as it was, and can still be configured without
+     * changing the frozen matcher, so that a builder can be frozen and then configured further for another use. The
+     * returned matcher matches and describes objects in the same way, and can be safely published to other threads
+     * however it is shared with them. When the {@value FrozenMatcher#SPECIALIZATION_THRESHOLD_PROPERTY} system property
+     * is set, a frozen matcher that has matched that many objects generates code specialized for its configuration, as
+     * described by {@link FrozenMatcher}.
      *
-     * @param matcherInterface the matcher interface
-     * @param <TM> the type of the matcher interface
-     * @return a class that implements the matcher
+     * @param matcher a matcher generated by this class
+     * @param <T> the type of the matched objects
+     * @return the frozen matcher
+     * @see FrozenMatcher
+     */
+    public static <T> Matcher<T> freeze(Matcher<T> matcher) {
+        return freezeMatcher(matcher);
+    }
+
+    /**
+     * Freeze a configured matcher, as {@link #freeze(Matcher)} does, and get a predicate that tests objects with it
+     * using code generated for filtering. The predicate does not describe mismatches, and so does not create any
+     * objects while testing, provided that any matchers given for properties that are not generated matchers do not.
+     *
+     * @param matcher a matcher generated by this class
+     * @param <T> the type of the tested objects
+     * @return the predicate
      */
+    public static <T> MatcherPredicate<T> toPredicate(Matcher<T> matcher) {
+        return freezeMatcher(matcher);
+    }
+
     @SuppressWarnings("unchecked")
-    private static <TM> Class<TM> getMatcherClass(Class<TM> matcherInterface) {
-        final String matcherClassName = generateMatcherClassName(matcherInterface);
+    private static <T> FrozenMatcher<T> freezeMatcher(Matcher<T> matcher) {
+        if (matcher instanceof FrozenMatcher) {
+            return (FrozenMatcher<T>) matcher;
+        }
 
-        try {
-            return (Class<TM>) Class.forName(matcherClassName);
-        } catch (ClassNotFoundException e) {
-            return generateMatcherClass(matcherInterface, matcherClassName);
+        final Object frozenCopy;
+        if (matcher instanceof FreezableMatcher) {
+            frozenCopy = ((FreezableMatcher) matcher).frozenCopy();
+        } else {
+            frozenCopy = JavaReflectionUtils.invokeMethod(getForeignFrozenCopyMethod(matcher.getClass()), matcher);
         }
-    }
 
-    private static <TM> String generateMatcherClassName(Class<TM> matcherInterface) {
-        return matcherInterface.getName() + "SmogMatcher";
+        return new FrozenMatcher<T>((Matcher<T>) frozenCopy);
     }
 
-    private static <TM> Class<TM> generateMatcherClass(Class<TM> matcherInterface, String matcherClassName) {
-        final MatcherInterfaceWrapper<TM> matcherInterfaceWrapper = new MatcherInterfaceWrapper<TM>(matcherInterface);
-        return generateMatcherClass(matcherInterfaceWrapper, matcherClassName);
-    }
+    /**
+     * Get the frozenCopy method of a matcher class that was generated by a copy of this library loaded by another
+     * class loader, and so implements that copy's {@link FreezableMatcher} interface.
+     *
+     * @param matcherClass the matcher class
+     * @return the frozenCopy method of the interface
+     * @throws IllegalArgumentException if the class is not a generated matcher class
+     */
+    private static Method getForeignFrozenCopyMethod(Class<?> matcherClass) {
+        for (Class<?> matcherClassInterface : matcherClass.getInterfaces()) {
+            if (matcherClassInterface.getName().equals(FreezableMatcher.class.getName())) {
+                try {
+                    return matcherClassInterface.getMethod("frozenCopy");
+                } catch (NoSuchMethodException e) {
+                    throw new RuntimeException("Failed to get frozenCopy method", e);
+                }
+            }
+        }
 
-    private static <TM> Class<TM> generateMatcherClass(MatcherInterfaceWrapper<TM> matcherInterface, String matcherClassName) {
-        final CtClass matcherCtSuperClass = JavassistClassUtils.getCtClass(CompositePropertyMatcher.class.getName());
-        final CtClass matcherCtClass = buildMatcherCtClass(matcherClassName, matcherInterface, matcherCtSuperClass);
+        throw new IllegalArgumentException("Not a generated matcher: " + matcherClass.getName());
+    }
 
-        final Class<TM> matcherClass = JavassistClassUtils.getClassFrom(matcherCtClass);
-        matcherCtClass.detach();
+    /**
+     * Release the Javassist class pool used to generate matchers for interfaces of the given class loader,
+     * along with the class definitions it has cached.
+     * <p>
+     * Class pools are released automatically when their class loader is garbage collected, so this is only needed
+     * to reclaim memory sooner, for example in a long-lived class loader once all its matchers have been generated.
+     * Matcher classes that have already been generated remain available. If no matcher class has been generated
+     * with Javassist, there is nothing to release and Javassist is not loaded.
+     *
+     * @param classLoader the class loader of the matcher interfaces
+     */
+    public static void release(ClassLoader classLoader) {
+        if (classPoolUsed) {
+            MatcherClassGenerator.release(classLoader);
+        }
+    }
 
-        return matcherClass;
+    /**
+     * Note that a Javassist class pool is about to be used. Called before any class pool is created.
+     */
+    static void noteClassPoolUsed() {
+        classPoolUsed = true;
     }
 
-    private static <TM> CtClass buildMatcherCtClass(String matcherClassName, MatcherInterfaceWrapper<TM> matcherInterface,
-                                                    CtClass matcherCtSuperClass) {
-        final CtClass generatedClass = ClassPool.getDefault().makeClass(matcherClassName, matcherCtSuperClass);
-        generatedClass.addInterface(matcherInterface.getCtInterface());
+    /**
+     * Generate the matcher classes for all the matcher interfaces in a package and its sub-packages, in parallel, so
+     * that they are ready before the matchers are first used.
+     *
+     * @param packageName the name of the package
+     * @param classLoader the class loader of the matcher interfaces
+     * @return the outcome of the generation
+     * @see #preGenerate(Collection, ForkJoinPool)
+     */
+    public static MatcherGenerationReport preGenerate(String packageName, ClassLoader classLoader) {
+        return preGenerate(MatcherInterfaceScanner.findMatcherInterfaces(packageName, classLoader));
+    }
 
-        generateConstructor(matcherInterface, generatedClass);
+    /**
+     * Generate the matcher classes for some matcher interfaces in parallel, on a pool that is shared by all callers,
+     * with a thread for each available processor, so that they are ready before the matchers are first used.
+     *
+     * @param matcherInterfaces the matcher interfaces
+     * @return the outcome of the generation
+     * @see #preGenerate(Collection, ForkJoinPool)
+     */
+    public static MatcherGenerationReport preGenerate(Collection<? extends Class<?>> matcherInterfaces) {
+        return preGenerate(matcherInterfaces, SharedForkJoinPool.get());
+    }
 
-        for (MatcherMethodWrapper matcherMethodDecl : matcherInterface.getMatcherMethods()) {
-            generateMatcherMethod(generatedClass, matcherMethodDecl);
+    /**
+     * Generate the matcher classes for some matcher interfaces in parallel, on the threads of a fork/join pool, so
+     * that they are ready before the matchers are first used.
+     * <p>
+     * Matcher classes are otherwise generated one at a time, by the first thread to use each matcher. Generating
+     * them ahead of time, for example on a background thread while a test suite starts up, takes that work off the
+     * path of the tests. Matcher classes that have already been generated are not generated again. The Javassist
+     * classes of matcher interfaces of the same class loader are built one at a time, as they share a class pool that
+     * is not safe for concurrent use, but the matcher classes are defined and instantiated in parallel. While
+     * generating a matcher class, a thread of the pool is given the context class loader of the calling thread, which
+     * Javassist uses to load annotations, just as if the matcher class were being generated on first use by that
+     * thread.
+     * <p>
+     * This returns when all the matcher classes have been generated or have failed to generate. A failure does
+     * not prevent the other matcher classes from being generated, and is reported rather than thrown.
+     *
+     * @param matcherInterfaces the matcher interfaces
+     * @param pool the pool to generate the matcher classes on, which is left running
+     * @return the outcome of the generation
+     */
+    public static MatcherGenerationReport preGenerate(Collection<? extends Class<?>> matcherInterfaces, ForkJoinPool pool) {
+        for (Class<?> matcherInterface : matcherInterfaces) {
+            if (!MatcherInterfaceScanner.isMatcherInterface(matcherInterface)) {
+                throw new IllegalArgumentException(matcherInterface.getName() + " is not a matcher interface");
+            }
         }
 
-        generateLikeMethod(matcherInterface, generatedClass);
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        final Map<Class<?>, ForkJoinTask<Long>> generations = new LinkedHashMap<Class<?>, ForkJoinTask<Long>>();
+        final Map<Class<?>, Long> generationNanos = new LinkedHashMap<Class<?>, Long>();
+        final Map<Class<?>, Throwable> failures = new LinkedHashMap<Class<?>, Throwable>();
+        final long startNanos = System.nanoTime();
 
-        generateMatchesSafelyMethod(matcherInterface, generatedClass);
+        try {
+            for (final Class<?> matcherInterface : matcherInterfaces) {
+                generations.put(matcherInterface, pool.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        final Thread thread = Thread.currentThread();
+                        final ClassLoader previousContextClassLoader = thread.getContextClassLoader();
+                        thread.setContextClassLoader(contextClassLoader);
+
+                        try {
+                            final long generationStartNanos = System.nanoTime();
+                            getMatcherFactory(matcherInterface);
+                            return System.nanoTime() - generationStartNanos;
+                        } finally {
+                            thread.setContextClassLoader(previousContextClassLoader);
+                        }
+                    }
+                }));
+            }
 
-        return generatedClass;
-    }
+            for (Map.Entry<Class<?>, ForkJoinTask<Long>> generation : generations.entrySet()) {
+                try {
+                    generationNanos.put(generation.getKey(), generation.getValue().get());
+                } catch (ExecutionException e) {
+                    failures.put(generation.getKey(), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for generation of matcher classes", e);
+        }
 
-    private static void generateMatcherMethod(CtClass generatedClass, MatcherMethodWrapper matcherMethodDecl) {
-        final String propertyName = matcherMethodDecl.getMatchedPropertyName();
+        return new MatcherGenerationReport(generationNanos, failures, System.nanoTime() - startNanos,
+                pool.getParallelism());
+    }
 
-        final String propertyMatcherFieldName = propertyName + "Matcher";
-        final String propertyMatcherTypeName = PropertyMatcher.class.getName();
-        final String reflectingPropertyMatcherTypeName = ReflectingPropertyMatcher.class.getName();
-        final CtClass propertyMatcherCtClass = JavassistClassUtils.getCtClass(propertyMatcherTypeName);
+    /**
+     * Cache of factories for generated matcher classes, keyed by matcher interface.
+     * <p>
+     * Matcher classes are always defined in the class loader of their matcher interface, so the interface
+     * identifies both the matcher and its defining class loader. Entries are held by the interface class
+     * itself and so do not prevent the class loader from being garbage collected.
+     * <p>
+     * Each entry holds a future for the generation of the matcher class and its factory. Threads racing to populate an
+     * entry all install the same future with compare-and-set, so exactly one of them runs the generation while the
+     * others wait for its result. A failed generation is discarded with compare-and-set too, so that a thread that
+     * sees the failure late does not discard a later attempt that another thread has already started. Generation of
+     * matchers for different interfaces is not serialized.
+     */
+    private static final ClassValue<AtomicReference<FutureTask<MatcherInstanceFactory<?>>>> MATCHER_FACTORIES =
+            new ClassValue<AtomicReference<FutureTask<MatcherInstanceFactory<?>>>>() {
+                @Override
+                protected AtomicReference<FutureTask<MatcherInstanceFactory<?>>> computeValue(Class<?> matcherInterface) {
+                    return new AtomicReference<FutureTask<MatcherInstanceFactory<?>>>();
+                }
+            };
 
-        final String fieldInitializer = String.format("new %s(\"%s\", this)", reflectingPropertyMatcherTypeName, propertyName);
+    /**
+     * Get the factory for the matcher implementation class of the given matcher interface, generating the class
+     * on first use.
+     *
+     * @param matcherInterface the matcher interface
+     * @param <TM> the type of the matcher interface
+     * @return a factory for instances of the class that implements the matcher
+     */
+    @SuppressWarnings("unchecked")
+    private static <TM> MatcherInstanceFactory<TM> getMatcherFactory(Class<TM> matcherInterface) {
+        final AtomicReference<FutureTask<MatcherInstanceFactory<?>>> matcherFactory =
+                MATCHER_FACTORIES.get(matcherInterface);
+        FutureTask<MatcherInstanceFactory<?>> matcherClassGeneration;
 
-        if (!JavassistClassUtils.hasField(generatedClass, propertyMatcherFieldName)) {
-            JavassistClassUtils.addField(generatedClass, propertyMatcherCtClass, propertyMatcherFieldName, fieldInitializer);
+        while ((matcherClassGeneration = matcherFactory.get()) == null) {
+            matcherFactory.compareAndSet(null, newMatcherClassGeneration(matcherInterface));
         }
 
-        final String methodBody = generateMatcherMethodBody(propertyMatcherFieldName, matcherMethodDecl);
+        // Does nothing if the generation has already been run, or is being run by another thread
+        matcherClassGeneration.run();
 
-        JavassistClassUtils.addMethod(generatedClass, Modifier.PUBLIC, matcherMethodDecl.getCtMethod(), methodBody);
-    }
-
-    private static String generateMatcherMethodBody(String propertyMatcherName, MatcherMethodWrapper matcherMethod) {
-        if (matcherMethod.takesHamcrestMatcher()) {
-            return String.format("{ this.%s.setMatcher($1); return this; }", propertyMatcherName);
-        } else {
-            return String.format("{ this.%s.setMatcher(org.hamcrest.CoreMatchers.equalTo(($w)$1)); return this; }", propertyMatcherName);
+        try {
+            return (MatcherInstanceFactory<TM>) matcherClassGeneration.get();
+        } catch (ExecutionException e) {
+            // Discard the failed generation so that a later request can try again, unless that has already been done
+            matcherFactory.compareAndSet(matcherClassGeneration, null);
+            throw propagate(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for generation of matcher class", e);
         }
     }
 
-    private static void generateConstructor(MatcherInterfaceWrapper<?> matcherInterface, CtClass matcherCtClass) {
-        final String constructorBody = String.format("{ super(\"%s\"); }", matcherInterface.getMatchedClassDescription());
-        JavassistClassUtils.addConstructor(matcherCtClass, constructorBody);
+    private static FutureTask<MatcherInstanceFactory<?>> newMatcherClassGeneration(final Class<?> matcherInterface) {
+        return new FutureTask<MatcherInstanceFactory<?>>(new Callable<MatcherInstanceFactory<?>>() {
+            @Override
+            public MatcherInstanceFactory<?> call() {
+                try {
+                    return createMatcherFactory(getMatcherClass(matcherInterface));
+                } catch (RuntimeException | Error e) {
+                    MatcherMetrics.getInstance().recordFailure(matcherInterface, e);
+                    throw e;
+                }
+            }
+        });
     }
 
-    private static void generateLikeMethod(MatcherInterfaceWrapper<?> matcherInterface, CtClass matcherCtClass) {
-        List<CtMethod> likeMethods = matcherInterface.getLikeMethods();
+    private static RuntimeException propagate(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
 
-        for (CtMethod likeMethod : likeMethods) {
-            final StringBuilder bodyBuilder = new StringBuilder();
-            bodyBuilder.append("{\n");
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+
+        return new RuntimeException("Failed to generate matcher class", cause);
+    }
 
-            final CtClass likeMethodParameterCtClass = JavassistClassUtils.getSingleParameterType(likeMethod);
-            final Class<?> likeMethodParameterClass = JavassistClassUtils.getLoadedClass(likeMethodParameterCtClass);
+    /**
+     * Create the factory for a matcher class.
+     * <p>
+     * Generated matcher classes are their own factories, so an instance is created reflectively once to act as the
+     * factory for all the others. Matcher classes generated ahead of time by earlier versions of this library do not
+     * implement the factory interface, and so are always instantiated reflectively.
+     *
+     * @param matcherClass the matcher class
+     * @return a factory for instances of the matcher class
+     */
+    @SuppressWarnings("unchecked")
+    private static MatcherInstanceFactory<?> createMatcherFactory(Class<?> matcherClass) {
+        final Object prototype = JavaReflectionUtils.createInstance(matcherClass);
 
-            PropertyDescriptorLocator propertyDescriptorHelper = new PropertyDescriptorLocator(likeMethodParameterClass);
+        if (prototype instanceof MatcherInstanceFactory) {
+            return (MatcherInstanceFactory<?>) prototype;
+        }
 
-            Set<String> matchedProperties = new HashSet<String>();
-            for (MatcherMethodWrapper matcherMethod : matcherInterface.getMatcherMethods()) {
-                final String propertyName = matcherMethod.getMatchedPropertyName();
+        return new ReflectiveMatcherInstanceFactory<Object>(
+                JavaReflectionUtils.getDefaultConstructor((Class<Object>) matcherClass));
+    }
 
-                if (!matchedProperties.contains(propertyName)) {
-                    final PropertyDescriptor propertyDescriptor = propertyDescriptorHelper.findPropertyDescriptor(propertyName);
+    /**
+     * Get the matcher class for a matcher interface: the class generated for it ahead of time if there is one, or else
+     * the class generated now, or defined from the class file cached by an earlier run if a
+     * {@link MatcherBytecodeCache} is enabled. How the class was made available is recorded in {@link MatcherMetrics}.
+     *
+     * @param matcherInterface the matcher interface
+     * @return the matcher class
+     */
+    private static Class<?> getMatcherClass(Class<?> matcherInterface) {
+        final long startNanos = System.nanoTime();
+        final Class<?> preGeneratedMatcherClass = findPreGeneratedMatcherClass(matcherInterface);
+
+        if (preGeneratedMatcherClass != null) {
+            MatcherMetrics.getInstance().recordMatcherClass(matcherInterface, preGeneratedMatcherClass,
+                    MatcherClassEvent.Source.PRE_GENERATED, startNanos, -1);
+            return preGeneratedMatcherClass;
+        }
 
-                    if (propertyDescriptor != null) {
-                        final Method propertyReadMethod = propertyDescriptor.getReadMethod();
-                        final String parameter = "$1." + propertyReadMethod.getName() + "()";
+        final MatcherBytecodeCache bytecodeCache = MatcherBytecodeCache.getConfiguredCache();
 
-                        final CtClass propertyCtClass = JavassistClassUtils.getCtClass(propertyReadMethod.getReturnType().getName());
-                        final CtClass matcherMethodParameterCtClass = matcherMethod.getParameterType();
+        return bytecodeCache != null ? bytecodeCache.getMatcherClass(matcherInterface)
+                : MatcherClassGenerator.generateMatcherClass(matcherInterface);
+    }
 
-                        if (matcherMethodParameterCtClass.equals(propertyCtClass)) {
-                            // This matcher method takes the matched property type directly
-                            // We have a winner...
-                            matchedProperties.add(propertyName);
-                            bodyBuilder.append(matcherMethod.getName()).append("(").append(parameter).append(");\n");
-                        }
-                    }
-                }
-            }
+    /**
+     * Find a matcher class that was generated for the matcher interface ahead of time, e.g. by
+     * {@link MatcherClassPreGenerator} during the build.
+     *
+     * @param matcherInterface the matcher interface
+     * @param <TM> the type of the matcher interface
+     * @return the pre-generated matcher class, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    private static <TM> Class<TM> findPreGeneratedMatcherClass(Class<TM> matcherInterface) {
+        final ClassLoader classLoader = matcherInterface.getClassLoader();
+        final String matcherClassName = getMatcherClassName(matcherInterface);
 
-            bodyBuilder.append("return this;\n");
-            bodyBuilder.append("}\n");
-            String body = bodyBuilder.toString();
+        if (classLoader == null || classLoader.getResource(matcherClassName.replace('.', '/') + ".class") == null) {
+            return null;
+        }
 
-            JavassistClassUtils.addMethod(matcherCtClass, Modifier.PUBLIC, likeMethod, body);
+        try {
+            return (Class<TM>) Class.forName(matcherClassName, true, classLoader);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("Failed to load pre-generated matcher class " + matcherClassName, e);
         }
     }
 
-    private static void generateMatchesSafelyMethod(MatcherInterfaceWrapper<?> matcherInterface, CtClass generatedClass) {
-        final CtClass matchAccumulatorCtClass = SmogTypes.getMatchAccumulatorCtClass();
-        final CtClass matchedCtClass = matcherInterface.getMatchedClass();
+    /**
+     * Get the name of the matcher class that implements a matcher interface.
+     *
+     * @param matcherInterface the matcher interface
+     * @return the fully qualified name of the matcher class
+     */
+    static String getMatcherClassName(Class<?> matcherInterface) {
+        return matcherInterface.getName() + "SmogMatcher";
+    }
+
+    /**
+     * Creates matcher instances by invoking the default constructor of the matcher class reflectively.
+     */
+    private static final class ReflectiveMatcherInstanceFactory<TM> implements MatcherInstanceFactory<TM> {
+        private final Constructor<TM> constructor;
 
-        final CtClass[] parameters = new CtClass[]{matchedCtClass, matchAccumulatorCtClass};
+        private ReflectiveMatcherInstanceFactory(Constructor<TM> constructor) {
+            this.constructor = constructor;
+        }
 
-        JavassistClassUtils.addMethod(generatedClass, Modifier.PROTECTED, "matchesSafely", parameters,
-                "{ super.matchesSafely($1, $2); }", CtClass.voidType);
+        @Override
+        public TM newMatcher() {
+            return JavaReflectionUtils.createInstance(constructor);
+        }
     }
 }
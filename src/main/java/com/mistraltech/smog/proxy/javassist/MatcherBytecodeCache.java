@@ -0,0 +1,466 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.proxy.javassist.util.ClassDefiner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarFile;
+
+/**
+ * A directory of generated matcher class files that is shared between JVMs, so that a matcher class generated by
+ * one JVM is defined directly from its class file by the others, without using Javassist.
+ * <p>
+ * Each class file is stored under a key that is a hash of everything the generated code depends on: the class files
+ * of the matcher interface, the matched class and the types used by their methods, along with those of their
+ * super-types; the superclass and interfaces of the generated class, along with their super-types; all the classes of
+ * the generator's package, of SMOG core and of Javassist; the code generation backend and whether matches are counted
+ * or timed; and the Java version. A change to any of these gives a new key, so a stale class file is not normally
+ * used. Types loaded by the bootstrap class loader are identified by the Java version alone. A cached class file that cannot be defined
+ * all the same is replaced by a newly generated one.
+ * <p>
+ * The cache is enabled by setting the {@value #CACHE_DIRECTORY_PROPERTY} system property to the path of the directory,
+ * which is created if necessary. Class files are written atomically, so several JVMs can share the directory. It is
+ * never cleaned up, but can be deleted at any time.
+ */
+final class MatcherBytecodeCache {
+    static final String CACHE_DIRECTORY_PROPERTY = "smog.javassist.cacheDirectory";
+
+    /**
+     * Changed whenever the layout of the cache or the content of its keys changes.
+     */
+    private static final String CACHE_VERSION = "3";
+
+    /**
+     * The packages whose class files determine the generated code, each with one of its class files, which locates the
+     * copy of the package that is in use: the generator and the classes called by the generated code, SMOG core, and
+     * Javassist. Each package is hashed along with its sub-packages. The types that the generated class extends and
+     * implements are found from {@link JavassistMatcherGenerator#MATCHER_SUPERCLASS} and
+     * {@link JavassistMatcherGenerator#MATCHER_CLASS_INTERFACES} instead, as some of them are in other libraries.
+     */
+    private static final String[][] GENERATOR_PACKAGES = {
+            {"com/mistraltech/smog/proxy/javassist", "com/mistraltech/smog/proxy/javassist/MatcherBytecodeCache.class"},
+            {"com/mistraltech/smog/core", "com/mistraltech/smog/core/PropertyMatcher.class"},
+            {"javassist", "javassist/CtClass.class"}
+    };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static volatile byte[] generatorDigest;
+
+    private final File directory;
+
+    MatcherBytecodeCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Get the cache in the directory given by the {@value #CACHE_DIRECTORY_PROPERTY} system property. The property
+     * is read for each generated class.
+     *
+     * @return the cache, or null if the property is not set
+     */
+    static MatcherBytecodeCache getConfiguredCache() {
+        final String directoryName = System.getProperty(CACHE_DIRECTORY_PROPERTY);
+
+        return directoryName == null || directoryName.isEmpty() ? null : new MatcherBytecodeCache(new File(directoryName));
+    }
+
+    /**
+     * Get the matcher class for a matcher interface, defining it from the cached class file if there is one, or
+     * else generating it and adding its class file to the cache.
+     *
+     * @param matcherInterface the matcher interface
+     * @return the matcher class
+     */
+    Class<?> getMatcherClass(Class<?> matcherInterface) {
+        final long startNanos = System.nanoTime();
+        final String matcherClassName = JavassistMatcherGenerator.getMatcherClassName(matcherInterface);
+        final File classFile = getClassFile(matcherInterface);
+
+        if (classFile == null) {
+            return MatcherClassGenerator.generateMatcherClass(matcherInterface);
+        }
+
+        final byte[] cachedBytecode = readClassFile(classFile);
+        if (cachedBytecode != null) {
+            try {
+                final Class<?> matcherClass = ClassDefiner.defineClass(matcherInterface, matcherClassName, cachedBytecode);
+
+                MatcherMetrics.getInstance().recordMatcherClass(matcherInterface, matcherClass,
+                        MatcherClassEvent.Source.BYTECODE_CACHE, startNanos, cachedBytecode.length);
+
+                return matcherClass;
+            } catch (LinkageError e) {
+                // The file was not written by this cache, or depends on classes that have changed incompatibly,
+                // so replace it
+            }
+        }
+
+        final byte[] bytecode = MatcherClassGenerator.generateMatcherBytecode(matcherInterface);
+        writeClassFile(classFile, bytecode);
+        final Class<?> matcherClass = ClassDefiner.defineClass(matcherInterface, matcherClassName, bytecode);
+
+        MatcherMetrics.getInstance().recordMatcherClass(matcherInterface, matcherClass,
+                MatcherClassEvent.Source.GENERATED, startNanos, bytecode.length);
+
+        return matcherClass;
+    }
+
+    /**
+     * Get the file that the class file of the matcher class for a matcher interface is cached in.
+     *
+     * @param matcherInterface the matcher interface
+     * @return the file, or null if the matcher class cannot be cached because the class files it depends on are
+     * not all available
+     */
+    File getClassFile(Class<?> matcherInterface) {
+        final String key = getKey(matcherInterface);
+
+        return key == null ? null
+                : new File(directory, JavassistMatcherGenerator.getMatcherClassName(matcherInterface) + "-" + key + ".class");
+    }
+
+    private static String getKey(Class<?> matcherInterface) {
+        final MessageDigest digest = newDigest();
+        update(digest, CACHE_VERSION);
+        update(digest, System.getProperty("java.specification.version"));
+        update(digest, System.getProperty(MatcherCodeBackend.BACKEND_PROPERTY, MatcherCodeBackend.SOURCE_BACKEND));
+        update(digest, String.valueOf(MatcherMetrics.isMatchCounting()));
+        update(digest, String.valueOf(MatcherFlightRecorder.getSlowMatchThresholdNanos()));
+        digest.update(getGeneratorDigest());
+
+        for (Class<?> dependency : getDependencies(matcherInterface)) {
+            if (dependency.getClassLoader() == null) {
+                continue;
+            }
+
+            final byte[] dependencyClassFile = readClassFile(dependency);
+            if (dependencyClassFile == null) {
+                return null;
+            }
+
+            update(digest, dependency.getName());
+            digest.update(dependencyClassFile);
+        }
+
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Get the classes that the generated code of a matcher class depends on, in a repeatable order.
+     *
+     * @param matcherInterface the matcher interface
+     * @return the matcher interface, the matched class, and the types of their methods, along with their super-types
+     */
+    private static Set<Class<?>> getDependencies(Class<?> matcherInterface) {
+        final Class<?> matchedClass = new MatchesAnnotationWrapper(matcherInterface).getMatchedClass();
+        final Set<Class<?>> dependencies = new LinkedHashSet<Class<?>>();
+
+        addTypeHierarchy(dependencies, matcherInterface);
+        addTypeHierarchy(dependencies, matchedClass);
+
+        for (Method method : matcherInterface.getMethods()) {
+            addTypeHierarchy(dependencies, method.getGenericReturnType());
+            for (Type parameterType : method.getGenericParameterTypes()) {
+                addTypeHierarchy(dependencies, parameterType);
+            }
+        }
+
+        for (Method method : matchedClass.getMethods()) {
+            addTypeHierarchy(dependencies, method.getGenericReturnType());
+        }
+
+        return dependencies;
+    }
+
+    /**
+     * Get the classes that every generated matcher class depends on, in a repeatable order.
+     *
+     * @return the superclass and interfaces of the generated classes, along with their super-types
+     */
+    static Set<Class<?>> getMatcherClassDependencies() {
+        final Set<Class<?>> dependencies = new LinkedHashSet<Class<?>>();
+
+        addTypeHierarchy(dependencies, JavassistMatcherGenerator.MATCHER_SUPERCLASS);
+        for (Class<?> matcherClassInterface : JavassistMatcherGenerator.MATCHER_CLASS_INTERFACES) {
+            addTypeHierarchy(dependencies, matcherClassInterface);
+        }
+
+        return dependencies;
+    }
+
+    private static void addTypeHierarchy(Set<Class<?>> dependencies, Type type) {
+        if (type instanceof Class) {
+            final Class<?> clazz = (Class<?>) type;
+
+            if (clazz.isArray()) {
+                addTypeHierarchy(dependencies, clazz.getComponentType());
+            } else if (!clazz.isPrimitive() && dependencies.add(clazz)) {
+                addTypeHierarchy(dependencies, clazz.getSuperclass());
+                for (Class<?> superInterface : clazz.getInterfaces()) {
+                    addTypeHierarchy(dependencies, superInterface);
+                }
+            }
+        } else if (type instanceof ParameterizedType) {
+            addTypeHierarchy(dependencies, ((ParameterizedType) type).getRawType());
+            for (Type typeArgument : ((ParameterizedType) type).getActualTypeArguments()) {
+                addTypeHierarchy(dependencies, typeArgument);
+            }
+        } else if (type instanceof WildcardType) {
+            addTypeHierarchy(dependencies, ((WildcardType) type).getLowerBounds());
+            addTypeHierarchy(dependencies, ((WildcardType) type).getUpperBounds());
+        } else if (type instanceof TypeVariable) {
+            addTypeHierarchy(dependencies, ((TypeVariable<?>) type).getBounds());
+        } else if (type instanceof GenericArrayType) {
+            addTypeHierarchy(dependencies, ((GenericArrayType) type).getGenericComponentType());
+        }
+    }
+
+    private static void addTypeHierarchy(Set<Class<?>> dependencies, Type[] types) {
+        for (Type type : types) {
+            addTypeHierarchy(dependencies, type);
+        }
+    }
+
+    /**
+     * Get a hash of the class files of the generator and of the classes that every generated class depends on, which
+     * are the same for the life of the JVM.
+     *
+     * @return the hash
+     */
+    private static byte[] getGeneratorDigest() {
+        byte[] digestBytes = generatorDigest;
+
+        if (digestBytes == null) {
+            final MessageDigest digest = newDigest();
+
+            for (String[] generatorPackage : GENERATOR_PACKAGES) {
+                final String rootUrl = findRootUrl(generatorPackage[1]);
+
+                update(digest, generatorPackage[0]);
+                if (rootUrl != null) {
+                    updateWithPackage(digest, rootUrl, generatorPackage[0]);
+                }
+            }
+
+            for (Class<?> dependency : getMatcherClassDependencies()) {
+                final byte[] classFile = dependency.getClassLoader() == null ? null : readClassFile(dependency);
+
+                update(digest, dependency.getName());
+                if (classFile != null) {
+                    digest.update(classFile);
+                }
+            }
+
+            digestBytes = digest.digest();
+            generatorDigest = digestBytes;
+        }
+
+        return digestBytes;
+    }
+
+    /**
+     * Get the class files of the packages that determine the generated code.
+     *
+     * @return the resource names of the class files
+     */
+    static List<String> getGeneratorClassFiles() {
+        final List<String> classFiles = new ArrayList<String>();
+
+        for (String[] generatorPackage : GENERATOR_PACKAGES) {
+            final String rootUrl = findRootUrl(generatorPackage[1]);
+
+            if (rootUrl != null) {
+                classFiles.addAll(MatcherInterfaceScanner.findClassFiles(toUrl(rootUrl + generatorPackage[0]),
+                        generatorPackage[0]));
+            }
+        }
+
+        return classFiles;
+    }
+
+    /**
+     * Add the class files of a package and its sub-packages to a digest, in a repeatable order. The class files in a
+     * jar file are identified by the checksums that the jar file holds for them, so that they do not have to be read.
+     *
+     * @param digest the digest
+     * @param rootUrl the URL of the directory or jar file that holds the package
+     * @param packagePath the path of the package, with '/' separators
+     */
+    private static void updateWithPackage(MessageDigest digest, String rootUrl, String packagePath) {
+        final URL packageUrl = toUrl(rootUrl + packagePath);
+        final List<String> classFiles = MatcherInterfaceScanner.findClassFiles(packageUrl, packagePath);
+        Collections.sort(classFiles);
+
+        try {
+            if (packageUrl.getProtocol().equals("file")) {
+                final File rootDirectory = new File(toUrl(rootUrl).toURI());
+
+                for (String classFile : classFiles) {
+                    update(digest, classFile);
+                    digest.update(Files.readAllBytes(new File(rootDirectory, classFile).toPath()));
+                }
+            } else {
+                final URLConnection connection = packageUrl.openConnection();
+                connection.setUseCaches(false);
+                final JarFile jarFile = ((JarURLConnection) connection).getJarFile();
+
+                try {
+                    for (String classFile : classFiles) {
+                        update(digest, classFile);
+                        update(digest, Long.toHexString(jarFile.getJarEntry(classFile).getCrc()));
+                    }
+                } finally {
+                    jarFile.close();
+                }
+            }
+        } catch (IOException | URISyntaxException e) {
+            throw new RuntimeException("Failed to read package " + packagePath + " in " + rootUrl, e);
+        }
+    }
+
+    /**
+     * Find the root of the directory or jar file that holds a class file on the class path of this class.
+     *
+     * @param classFile the resource name of the class file
+     * @return the URL of the root, ending with a '/', or null if the class file is not found
+     */
+    private static String findRootUrl(String classFile) {
+        final URL classFileUrl = MatcherBytecodeCache.class.getClassLoader().getResource(classFile);
+
+        if (classFileUrl == null) {
+            return null;
+        }
+
+        final String classFileUrlText = classFileUrl.toString();
+
+        return classFileUrlText.substring(0, classFileUrlText.length() - classFile.length());
+    }
+
+    private static URL toUrl(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new RuntimeException("Invalid URL " + url, e);
+        }
+    }
+
+    private static byte[] readClassFile(Class<?> clazz) {
+        return readResource(clazz.getClassLoader(), clazz.getName().replace('.', '/') + ".class");
+    }
+
+    private static byte[] readResource(ClassLoader classLoader, String resourceName) {
+        final InputStream inputStream = classLoader.getResourceAsStream(resourceName);
+
+        if (inputStream == null) {
+            return null;
+        }
+
+        try {
+            try {
+                final ByteArrayOutputStream content = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[8192];
+
+                int length;
+                while ((length = inputStream.read(buffer)) != -1) {
+                    content.write(buffer, 0, length);
+                }
+
+                return content.toByteArray();
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + resourceName, e);
+        }
+    }
+
+    private static byte[] readClassFile(File classFile) {
+        if (!classFile.isFile()) {
+            return null;
+        }
+
+        try {
+            return Files.readAllBytes(classFile.toPath());
+        } catch (IOException e) {
+            // Treat an unreadable class file as missing, and generate the class instead
+            return null;
+        }
+    }
+
+    /**
+     * Write a class file to the cache. It is written to a temporary file that is then renamed, so that other JVMs
+     * never see a partly written class file.
+     *
+     * @param classFile the file to write
+     * @param bytecode the content of the class file
+     */
+    private void writeClassFile(File classFile, byte[] bytecode) {
+        try {
+            final Path directoryPath = Files.createDirectories(directory.toPath());
+            final Path temporaryPath = Files.createTempFile(directoryPath, classFile.getName(), ".tmp");
+
+            try {
+                Files.write(temporaryPath, bytecode);
+
+                try {
+                    Files.move(temporaryPath, classFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporaryPath, classFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temporaryPath);
+            }
+        } catch (IOException e) {
+            // The cache is only an optimisation, so the class is still defined if it cannot be cached
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not supported", e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(String.valueOf(value).getBytes(UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return hex.toString();
+    }
+}
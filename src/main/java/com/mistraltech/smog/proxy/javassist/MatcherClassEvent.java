@@ -0,0 +1,80 @@
+package com.mistraltech.smog.proxy.javassist;
+
+/**
+ * Describes how the matcher class for a matcher interface was made available, as reported to a
+ * {@link MatcherClassListener}.
+ */
+public final class MatcherClassEvent {
+
+    /**
+     * Where a matcher class came from.
+     */
+    public enum Source {
+        /**
+         * Generated with Javassist.
+         */
+        GENERATED,
+
+        /**
+         * Defined from a class file in the {@link MatcherBytecodeCache} directory, written by an earlier run.
+         */
+        BYTECODE_CACHE,
+
+        /**
+         * Loaded from a class file generated during the build by {@link MatcherClassPreGenerator}.
+         */
+        PRE_GENERATED,
+
+        /**
+         * Generated with Javassist for the configuration of a frozen matcher that has been matched many times, as
+         * described by {@link FrozenMatcher}.
+         */
+        SPECIALIZED
+    }
+
+    private final Class<?> matcherInterface;
+    private final Source source;
+    private final long nanos;
+    private final int bytecodeLength;
+
+    MatcherClassEvent(Class<?> matcherInterface, Source source, long nanos, int bytecodeLength) {
+        this.matcherInterface = matcherInterface;
+        this.source = source;
+        this.nanos = nanos;
+        this.bytecodeLength = bytecodeLength;
+    }
+
+    /**
+     * @return the matcher interface
+     */
+    public Class<?> getMatcherInterface() {
+        return matcherInterface;
+    }
+
+    /**
+     * @return where the matcher class came from
+     */
+    public Source getSource() {
+        return source;
+    }
+
+    /**
+     * @return the time taken to make the matcher class available, in nanoseconds
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return the length of the class file of the matcher class, or -1 if it was pre-generated
+     */
+    public int getBytecodeLength() {
+        return bytecodeLength;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s matcher class for %s in %d us (%d bytes)", source, matcherInterface.getName(),
+                nanos / 1000, bytecodeLength);
+    }
+}
@@ -0,0 +1,454 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.core.PropertyMatcher;
+import com.mistraltech.smog.core.util.PropertyDescriptorLocator;
+import com.mistraltech.smog.proxy.javassist.util.ClassDefiner;
+import com.mistraltech.smog.proxy.javassist.util.ClassPoolRegistry;
+import com.mistraltech.smog.proxy.javassist.util.JavassistClassUtils;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.Modifier;
+import javassist.bytecode.Descriptor;
+import org.hamcrest.Description;
+
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.mistraltech.smog.proxy.javassist.util.NameUtils.capitalise;
+
+/**
+ * Builds matcher implementation classes for matcher interfaces using Javassist.
+ * <p>
+ * This is kept apart from {@link JavassistMatcherGenerator} so that no Javassist classes are loaded
+ * when all the required matcher classes have been generated ahead of time.
+ */
+final class MatcherClassGenerator {
+
+    private static final MatcherCodeBackend SOURCE_BACKEND = new SourceMatcherCodeBackend();
+    private static final MatcherCodeBackend BYTECODE_BACKEND = new BytecodeMatcherCodeBackend();
+
+    private MatcherClassGenerator() {
+    }
+
+    /**
+     * Generate and define the matcher implementation class for a matcher interface.
+     * <p>
+     * The class is defined alongside the matcher interface using {@link ClassDefiner}, which makes it a hidden
+     * class where the JVM supports them.
+     *
+     * @param matcherInterface the matcher interface
+     * @param <TM> the type of the matcher interface
+     * @return the matcher class
+     */
+    @SuppressWarnings("unchecked")
+    static <TM> Class<TM> generateMatcherClass(Class<TM> matcherInterface) {
+        final long startNanos = System.nanoTime();
+        final String matcherClassName = JavassistMatcherGenerator.getMatcherClassName(matcherInterface);
+        final byte[] bytecode = generateMatcherBytecode(matcherInterface);
+        final Class<TM> matcherClass = (Class<TM>) ClassDefiner.defineClass(matcherInterface, matcherClassName, bytecode);
+
+        MatcherMetrics.getInstance().recordMatcherClass(matcherInterface, matcherClass,
+                MatcherClassEvent.Source.GENERATED, startNanos, bytecode.length);
+
+        return matcherClass;
+    }
+
+    /**
+     * Generate the bytecode of the matcher implementation class for a matcher interface, without defining it.
+     *
+     * @param matcherInterface the matcher interface
+     * @param <TM> the type of the matcher interface
+     * @return the content of the class file
+     */
+    static <TM> byte[] generateMatcherBytecode(Class<TM> matcherInterface) {
+        final ClassPool classPool = getClassPool(matcherInterface);
+
+        synchronized (classPool) {
+            final CtClass matcherCtClass = buildMatcherCtClass(new MatcherInterfaceWrapper<TM>(matcherInterface, classPool));
+
+            final byte[] bytecode = JavassistClassUtils.getBytecode(matcherCtClass);
+            matcherCtClass.detach();
+
+            return bytecode;
+        }
+    }
+
+    /**
+     * Get the class pool used to generate matcher classes for interfaces of the class loader of a matcher interface.
+     * <p>
+     * Javassist class pools, and the classes they hold, are not safe for concurrent use, so code that uses the pool
+     * synchronizes on it. Matcher classes for interfaces of the same class loader are therefore built one at a time,
+     * while those of different class loaders can be built at once.
+     *
+     * @param matcherInterface the matcher interface
+     * @return the class pool
+     */
+    static ClassPool getClassPool(Class<?> matcherInterface) {
+        JavassistMatcherGenerator.noteClassPoolUsed();
+        return ClassPoolRegistry.getClassPool(matcherInterface.getClassLoader());
+    }
+
+    /**
+     * Release the class pool used to generate matcher classes for interfaces of the given class loader.
+     *
+     * @param classLoader the class loader of the matcher interfaces
+     */
+    static void release(ClassLoader classLoader) {
+        ClassPoolRegistry.release(classLoader);
+    }
+
+    private static <TM> CtClass buildMatcherCtClass(MatcherInterfaceWrapper<TM> matcherInterface) {
+        final String matcherClassName = JavassistMatcherGenerator.getMatcherClassName(matcherInterface.getMatcherInterface());
+        final CtClass matcherCtSuperClass = JavassistClassUtils.getCtClass(matcherInterface.getClassPool(),
+                JavassistMatcherGenerator.MATCHER_SUPERCLASS.getName());
+        return buildMatcherCtClass(matcherClassName, matcherInterface, matcherCtSuperClass);
+    }
+
+    private static <TM> CtClass buildMatcherCtClass(String matcherClassName, MatcherInterfaceWrapper<TM> matcherInterface,
+                                                    CtClass matcherCtSuperClass) {
+        final MatcherCodeBackend backend = getBackend();
+        final CtClass generatedClass = matcherInterface.getClassPool().makeClass(matcherClassName, matcherCtSuperClass);
+        generatedClass.addInterface(matcherInterface.getCtInterface());
+
+        final List<MatcherMethodWrapper> matcherMethods = matcherInterface.getMatcherMethods();
+
+        // Read methods of the matched properties keyed by property name, or null for properties that must be
+        // read reflectively
+        final Map<String, CtMethod> propertyReadMethods = findPropertyReadMethods(matcherMethods,
+                matcherInterface.getMatchedClass());
+
+        // The properties whose matchers are given the property value directly, indexed by the generated code
+        final List<String> directProperties = findDirectProperties(propertyReadMethods);
+
+        // The directly read properties of primitive type that can be compared with an expected value without boxing
+        final Set<String> primitiveProperties = findPrimitiveProperties(matcherMethods, propertyReadMethods);
+
+        // The fail-fast path can only check directly read properties itself, so it is not taken once any
+        // reflectively read property has been configured
+        final boolean failFast = !directProperties.isEmpty() && isDiagnosingMatchesSafelyOverridable(matcherCtSuperClass);
+        final boolean trackReflectingProperties = failFast && directProperties.size() < propertyReadMethods.size();
+        final boolean instrumentable = isDiagnosingMatchesSafelyOverridable(matcherCtSuperClass);
+        final boolean countMatches = instrumentable && MatcherMetrics.isMatchCounting();
+        final long slowMatchThresholdNanos = instrumentable ? MatcherFlightRecorder.getSlowMatchThresholdNanos() : -1;
+
+        final MatcherClassLayout layout = new MatcherClassLayout(matcherInterface, generatedClass, matcherCtSuperClass,
+                propertyReadMethods, directProperties, primitiveProperties,
+                isMatchedTypePassable(matcherInterface, matcherCtSuperClass), failFast, trackReflectingProperties,
+                countMatches, slowMatchThresholdNanos);
+
+        backend.generateConstructor(layout);
+
+        generatePropertyMatcherFields(layout);
+        generateExpectedValueFields(layout);
+        JavassistClassUtils.addField(generatedClass, CtClass.booleanType, MatcherClassLayout.FROZEN_FIELD_NAME);
+
+        if (layout.hasDirectProperties()) {
+            generateConfiguredPropertyTrackingFields(layout);
+            backend.generateConfiguredPropertyTracking(layout);
+        }
+
+        if (trackReflectingProperties) {
+            JavassistClassUtils.addField(generatedClass, CtClass.booleanType, "reflectingPropertyConfigured");
+        }
+
+        if (failFast) {
+            JavassistClassUtils.addField(generatedClass, CtClass.intType, MatcherClassLayout.CONFIGURATION_COUNT_FIELD_NAME);
+        }
+
+        for (MatcherMethodWrapper matcherMethodDecl : matcherMethods) {
+            backend.generateMatcherMethod(layout, matcherMethodDecl);
+        }
+
+        for (CtMethod likeMethod : matcherInterface.getLikeMethods()) {
+            backend.generateLikeMethod(layout, likeMethod, findLikeMethodPropertyCopies(matcherInterface, likeMethod));
+        }
+
+        // Property matchers are registered with the superclass in the order their properties are first configured, so
+        // the generated class describes itself, listing them in declaration order
+        if (isDescribeToOverridable(matcherCtSuperClass)) {
+            backend.generateDescribeToMethod(layout);
+        }
+
+        backend.generateMatchesSafelyMethod(layout);
+
+        if (countMatches) {
+            generateMatchCounterField(layout);
+        }
+
+        if (failFast) {
+            backend.generateFailFastMatchesSafelyMethod(layout);
+        }
+
+        if (layout.isInstrumented()) {
+            backend.generateInstrumentedMatchesSafelyMethod(layout);
+        }
+
+        for (Class<?> matcherClassInterface : JavassistMatcherGenerator.MATCHER_CLASS_INTERFACES) {
+            generatedClass.addInterface(JavassistClassUtils.getCtClass(generatedClass.getClassPool(),
+                    matcherClassInterface.getName()));
+        }
+
+        backend.generatePredicateMethod(layout);
+        backend.generateFrozenCopyMethod(layout);
+        backend.generateNewMatcherMethod(layout);
+
+        return generatedClass;
+    }
+
+    /**
+     * Get the code generation backend selected by the {@value MatcherCodeBackend#BACKEND_PROPERTY} system property.
+     * The property is read for each generated class.
+     *
+     * @return the backend
+     */
+    static MatcherCodeBackend getBackend() {
+        final String backendName = System.getProperty(MatcherCodeBackend.BACKEND_PROPERTY, MatcherCodeBackend.SOURCE_BACKEND);
+
+        if (backendName.equals(MatcherCodeBackend.SOURCE_BACKEND)) {
+            return SOURCE_BACKEND;
+        }
+
+        if (backendName.equals(MatcherCodeBackend.BYTECODE_BACKEND)) {
+            return BYTECODE_BACKEND;
+        }
+
+        throw new IllegalArgumentException(String.format("Unknown matcher code generation backend '%s' - expected '%s' or '%s'",
+                backendName, MatcherCodeBackend.SOURCE_BACKEND, MatcherCodeBackend.BYTECODE_BACKEND));
+    }
+
+    /**
+     * Find the read methods that generated code can call directly for the properties matched by the matcher methods.
+     *
+     * @param matcherMethods the matcher methods
+     * @param matchedCtClass the matched class
+     * @return the read methods keyed by property name in declaration order, with null values for properties that
+     * must be read reflectively
+     */
+    static Map<String, CtMethod> findPropertyReadMethods(List<MatcherMethodWrapper> matcherMethods, CtClass matchedCtClass) {
+        final Map<String, CtMethod> propertyReadMethods = new LinkedHashMap<String, CtMethod>();
+
+        for (MatcherMethodWrapper matcherMethod : matcherMethods) {
+            final String propertyName = matcherMethod.getMatchedPropertyName();
+
+            if (!propertyReadMethods.containsKey(propertyName)) {
+                propertyReadMethods.put(propertyName, findDirectReadMethod(matchedCtClass, propertyName));
+            }
+        }
+
+        return propertyReadMethods;
+    }
+
+    /**
+     * Find the properties that generated code reads directly. Their position in the list is the index that identifies
+     * them in the generated code.
+     *
+     * @param propertyReadMethods the read methods keyed by property name
+     * @return the names of the properties, in declaration order
+     */
+    static List<String> findDirectProperties(Map<String, CtMethod> propertyReadMethods) {
+        final List<String> directProperties = new ArrayList<String>();
+
+        for (Map.Entry<String, CtMethod> propertyReadMethod : propertyReadMethods.entrySet()) {
+            if (propertyReadMethod.getValue() != null) {
+                directProperties.add(propertyReadMethod.getKey());
+            }
+        }
+
+        return directProperties;
+    }
+
+    /**
+     * Find the directly read properties of primitive type that have a matcher method taking an expected value of
+     * the same primitive type. The generated code compares these with the expected value itself, without boxing
+     * either value, unless a hamcrest matcher has been supplied for the property instead.
+     *
+     * @param matcherMethods the matcher methods
+     * @param propertyReadMethods the read methods keyed by property name
+     * @return the names of the properties
+     */
+    static Set<String> findPrimitiveProperties(List<MatcherMethodWrapper> matcherMethods,
+                                               Map<String, CtMethod> propertyReadMethods) {
+        final Set<String> primitiveProperties = new HashSet<String>();
+
+        for (MatcherMethodWrapper matcherMethod : matcherMethods) {
+            if (MatcherClassLayout.takesPrimitiveExpectedValue(matcherMethod,
+                    propertyReadMethods.get(matcherMethod.getMatchedPropertyName()))) {
+                primitiveProperties.add(matcherMethod.getMatchedPropertyName());
+            }
+        }
+
+        return primitiveProperties;
+    }
+
+    private static void generateExpectedValueFields(MatcherClassLayout layout) {
+        for (String propertyName : layout.getPrimitiveProperties()) {
+            JavassistClassUtils.addField(layout.getGeneratedClass(), layout.getPropertyType(propertyName),
+                    MatcherClassLayout.getExpectedValueFieldName(propertyName));
+            JavassistClassUtils.addField(layout.getGeneratedClass(), CtClass.booleanType,
+                    MatcherClassLayout.getHasExpectedValueFieldName(propertyName));
+        }
+    }
+
+    private static void generatePropertyMatcherFields(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final CtClass propertyMatcherCtClass = JavassistClassUtils.getCtClass(generatedClass.getClassPool(),
+                PropertyMatcher.class.getName());
+
+        for (String propertyName : layout.getPropertyNames()) {
+            JavassistClassUtils.addField(generatedClass, propertyMatcherCtClass,
+                    MatcherClassLayout.getPropertyMatcherFieldName(propertyName));
+        }
+    }
+
+    /**
+     * Generate the fields that record, in order, which of the directly read properties have been configured, so
+     * that matchesSafely only visits those properties.
+     */
+    private static void generateConfiguredPropertyTrackingFields(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+
+        JavassistClassUtils.addField(generatedClass, JavassistClassUtils.getCtClass(generatedClass.getClassPool(), "int[]"),
+                "configuredProperties");
+        JavassistClassUtils.addField(generatedClass, CtClass.intType, "configuredPropertyCount");
+    }
+
+    /**
+     * Generate the static field holding the counter of matches, which is obtained from {@link MatcherMetrics} when the
+     * class is initialised.
+     */
+    private static void generateMatchCounterField(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final ClassPool classPool = generatedClass.getClassPool();
+
+        JavassistClassUtils.addStaticField(generatedClass,
+                JavassistClassUtils.getCtClass(classPool, AtomicLong.class.getName()),
+                MatcherClassLayout.MATCH_COUNTER_FIELD_NAME,
+                CtField.Initializer.byCall(JavassistClassUtils.getCtClass(classPool, MatcherMetrics.class.getName()),
+                        "getMatchCounter", new String[]{layout.getMatcherInterface().getMatcherInterface().getName()}));
+    }
+
+    /**
+     * Find the read method for a property of the matched class, provided that generated code can call it directly.
+     * <p>
+     * This follows the JavaBeans naming conventions, but works on the class definition rather than introspecting
+     * the loaded class, so that the matched class is not retained by the introspector's caches.
+     *
+     * @param matchedCtClass the matched class
+     * @param propertyName the name of the property
+     * @return the read method, or null if the property must be read reflectively
+     */
+    private static CtMethod findDirectReadMethod(CtClass matchedCtClass, String propertyName) {
+        if (!Modifier.isPublic(matchedCtClass.getModifiers())) {
+            return null;
+        }
+
+        final String getterName = "get" + capitalise(propertyName);
+        final String booleanGetterName = "is" + capitalise(propertyName);
+        CtMethod readMethod = null;
+
+        for (CtMethod method : matchedCtClass.getMethods()) {
+            final int modifiers = method.getModifiers();
+
+            if (Modifier.isPublic(modifiers) && !Modifier.isStatic(modifiers) && method.getSignature().startsWith("()")) {
+                if (method.getName().equals(booleanGetterName) && method.getSignature().equals("()Z")) {
+                    return method;
+                }
+
+                if (method.getName().equals(getterName) && !method.getSignature().endsWith(")V")) {
+                    readMethod = method;
+                }
+            }
+        }
+
+        return readMethod;
+    }
+
+    /**
+     * Check whether the constructor can pass the matched type to the superclass constructor. This avoids the
+     * superclass finding it by scanning the matcher class's methods reflectively, which would happen every time a
+     * matcher is created.
+     */
+    private static boolean isMatchedTypePassable(MatcherInterfaceWrapper<?> matcherInterface, CtClass matcherCtSuperClass) {
+        final ClassPool classPool = matcherCtSuperClass.getClassPool();
+        final CtClass[] expectedTypeConstructorParameters = new CtClass[]{
+                JavassistClassUtils.getCtClass(classPool, String.class.getName()),
+                JavassistClassUtils.getCtClass(classPool, Class.class.getName())};
+
+        return Modifier.isPublic(matcherInterface.getMatchedClass().getModifiers()) &&
+                JavassistClassUtils.hasDeclaredConstructor(matcherCtSuperClass, expectedTypeConstructorParameters);
+    }
+
+    /**
+     * Find the properties that a like method copies from its parameter, and the matcher method that each is
+     * copied with. A property is copied with the first matcher method that takes the property's type directly.
+     *
+     * @param matcherInterface the matcher interface
+     * @param likeMethod the like method
+     * @return the read method of the like method's parameter for each matcher method to call, in order
+     */
+    private static Map<MatcherMethodWrapper, CtMethod> findLikeMethodPropertyCopies(MatcherInterfaceWrapper<?> matcherInterface,
+                                                                                   CtMethod likeMethod) {
+        final CtClass likeMethodParameterCtClass = JavassistClassUtils.getSingleParameterType(likeMethod);
+        final Class<?> likeMethodParameterClass = JavassistClassUtils.getLoadedClass(likeMethodParameterCtClass,
+                matcherInterface.getMatcherInterface().getClassLoader());
+
+        final PropertyDescriptorLocator propertyDescriptorHelper = new PropertyDescriptorLocator(likeMethodParameterClass);
+        final Map<MatcherMethodWrapper, CtMethod> propertyCopies = new LinkedHashMap<MatcherMethodWrapper, CtMethod>();
+
+        final Set<String> matchedProperties = new HashSet<String>();
+        for (MatcherMethodWrapper matcherMethod : matcherInterface.getMatcherMethods()) {
+            final String propertyName = matcherMethod.getMatchedPropertyName();
+
+            if (!matchedProperties.contains(propertyName)) {
+                final PropertyDescriptor propertyDescriptor = propertyDescriptorHelper.findPropertyDescriptor(propertyName);
+
+                if (propertyDescriptor != null) {
+                    final Method propertyReadMethod = propertyDescriptor.getReadMethod();
+                    final CtClass propertyCtClass = JavassistClassUtils.getCtClass(matcherInterface.getClassPool(),
+                            propertyReadMethod.getReturnType().getName());
+
+                    if (matcherMethod.getParameterType().equals(propertyCtClass)) {
+                        // This matcher method takes the matched property type directly
+                        // We have a winner...
+                        matchedProperties.add(propertyName);
+                        propertyCopies.put(matcherMethod, JavassistClassUtils.findMethod(likeMethodParameterCtClass,
+                                propertyReadMethod.getName(), "()" + Descriptor.of(propertyCtClass)));
+                    }
+                }
+            }
+        }
+
+        return propertyCopies;
+    }
+
+    /**
+     * Check that the matcher superclass's matchesSafely method taking a mismatch description can be overridden.
+     */
+    private static boolean isDiagnosingMatchesSafelyOverridable(CtClass matcherCtSuperClass) {
+        final String descriptor = String.format("(Ljava/lang/Object;L%s;)Z", Description.class.getName().replace('.', '/'));
+        return isOverridable(matcherCtSuperClass, "matchesSafely", descriptor);
+    }
+
+    /**
+     * Check that the matcher superclass's describeTo method can be overridden.
+     */
+    private static boolean isDescribeToOverridable(CtClass matcherCtSuperClass) {
+        final String descriptor = String.format("(L%s;)V", Description.class.getName().replace('.', '/'));
+        return isOverridable(matcherCtSuperClass, "describeTo", descriptor);
+    }
+
+    private static boolean isOverridable(CtClass matcherCtSuperClass, String methodName, String descriptor) {
+        final CtMethod method = JavassistClassUtils.findMethod(matcherCtSuperClass, methodName, descriptor);
+
+        return method != null && !Modifier.isFinal(method.getModifiers()) && !Modifier.isPrivate(method.getModifiers());
+    }
+}
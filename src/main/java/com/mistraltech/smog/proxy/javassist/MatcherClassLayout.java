@@ -0,0 +1,246 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.proxy.javassist.util.JavassistClassUtils;
+import javassist.CtClass;
+import javassist.CtMethod;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The decisions made about the structure of a matcher class that its code is generated from. These are the same
+ * whichever {@link MatcherCodeBackend} generates the code.
+ */
+final class MatcherClassLayout {
+    /**
+     * The static field holding the counter of matches, shared with {@link MatcherMetrics}.
+     */
+    static final String MATCH_COUNTER_FIELD_NAME = "matchCounter";
+
+    /**
+     * The private method holding the fail-fast matching code, when it is wrapped by an instrumented override of
+     * matchesSafely(Object, Description).
+     */
+    static final String FAIL_FAST_METHOD_NAME = "failFastMatchesSafely";
+
+    /**
+     * The field counting the times the matcher has been configured, which identifies its configuration in a
+     * {@link RecordedMismatch}.
+     */
+    static final String CONFIGURATION_COUNT_FIELD_NAME = "configurationCount";
+
+    /**
+     * The field that is set once the matcher has been frozen, after which it cannot be configured.
+     */
+    static final String FROZEN_FIELD_NAME = "frozen";
+
+    /**
+     * The suffix added to a property name to give the name of the field holding its property matcher.
+     */
+    static final String PROPERTY_MATCHER_FIELD_SUFFIX = "Matcher";
+
+    private final MatcherInterfaceWrapper<?> matcherInterface;
+    private final CtClass generatedClass;
+    private final CtClass matcherCtSuperClass;
+    private final Map<String, CtMethod> propertyReadMethods;
+    private final List<String> directProperties;
+    private final Set<String> primitiveProperties;
+    private final boolean passingMatchedType;
+    private final boolean failFast;
+    private final boolean trackingReflectingProperties;
+    private final boolean countingMatches;
+    private final long slowMatchThresholdNanos;
+
+    MatcherClassLayout(MatcherInterfaceWrapper<?> matcherInterface, CtClass generatedClass, CtClass matcherCtSuperClass,
+                       Map<String, CtMethod> propertyReadMethods, List<String> directProperties,
+                       Set<String> primitiveProperties, boolean passingMatchedType, boolean failFast,
+                       boolean trackingReflectingProperties, boolean countingMatches, long slowMatchThresholdNanos) {
+        this.matcherInterface = matcherInterface;
+        this.generatedClass = generatedClass;
+        this.matcherCtSuperClass = matcherCtSuperClass;
+        this.propertyReadMethods = propertyReadMethods;
+        this.directProperties = directProperties;
+        this.primitiveProperties = primitiveProperties;
+        this.passingMatchedType = passingMatchedType;
+        this.failFast = failFast;
+        this.trackingReflectingProperties = trackingReflectingProperties;
+        this.countingMatches = countingMatches;
+        this.slowMatchThresholdNanos = slowMatchThresholdNanos;
+    }
+
+    MatcherInterfaceWrapper<?> getMatcherInterface() {
+        return matcherInterface;
+    }
+
+    CtClass getGeneratedClass() {
+        return generatedClass;
+    }
+
+    CtClass getMatcherCtSuperClass() {
+        return matcherCtSuperClass;
+    }
+
+    CtClass getMatchedClass() {
+        return matcherInterface.getMatchedClass();
+    }
+
+    /**
+     * @return the properties matched by the matcher methods, in declaration order
+     */
+    Set<String> getPropertyNames() {
+        return propertyReadMethods.keySet();
+    }
+
+    /**
+     * @param propertyName the name of a property
+     * @return the read method that generated code calls directly, or null if the property is read reflectively
+     */
+    CtMethod getReadMethod(String propertyName) {
+        return propertyReadMethods.get(propertyName);
+    }
+
+    CtClass getPropertyType(String propertyName) {
+        return JavassistClassUtils.getReturnType(getReadMethod(propertyName));
+    }
+
+    /**
+     * @return the properties whose matchers are given the property value directly, indexed by the generated code
+     */
+    List<String> getDirectProperties() {
+        return directProperties;
+    }
+
+    boolean hasDirectProperties() {
+        return !directProperties.isEmpty();
+    }
+
+    /**
+     * @param propertyName the name of a property
+     * @return true if the property is read directly and is of primitive type, and can be compared with an expected
+     * value without boxing
+     */
+    boolean isPrimitiveProperty(String propertyName) {
+        return primitiveProperties.contains(propertyName);
+    }
+
+    Set<String> getPrimitiveProperties() {
+        return primitiveProperties;
+    }
+
+    /**
+     * @return true if the constructor passes the matched type to the superclass constructor
+     */
+    boolean isPassingMatchedType() {
+        return passingMatchedType;
+    }
+
+    /**
+     * @return true if the class overrides matchesSafely to return at the first mismatch when no description is needed
+     */
+    boolean isFailFast() {
+        return failFast;
+    }
+
+    /**
+     * @return true if the class records whether any reflectively read property has been configured
+     */
+    boolean isTrackingReflectingProperties() {
+        return trackingReflectingProperties;
+    }
+
+    /**
+     * @return true if the class counts its matches with the {@value #MATCH_COUNTER_FIELD_NAME} field
+     */
+    boolean isCountingMatches() {
+        return countingMatches;
+    }
+
+    /**
+     * @return true if the class times its matches, and reports those that take at least the slow match threshold to
+     * {@link MatcherFlightRecorder}
+     */
+    boolean isTimingMatches() {
+        return slowMatchThresholdNanos >= 0;
+    }
+
+    /**
+     * @return true if the class times each directly read property as it is matched, which it does when it times its
+     * matches and has directly read properties
+     */
+    boolean isTimingProperties() {
+        return isTimingMatches() && hasDirectProperties();
+    }
+
+    /**
+     * @return the names of the directly read properties, separated by commas, in index order, as passed to
+     * {@link MatcherFlightRecorder#recordSlowMatch}
+     */
+    String getDirectPropertyNameList() {
+        final StringBuilder builder = new StringBuilder();
+
+        for (String propertyName : directProperties) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+
+            builder.append(propertyName);
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * @return the time from which a match is reported as slow, in nanoseconds, or -1 if matches are not timed
+     */
+    long getSlowMatchThresholdNanos() {
+        return slowMatchThresholdNanos;
+    }
+
+    /**
+     * @return true if the class overrides matchesSafely(Object, Description) to count or time its matches, in which
+     * case any fail-fast matching code is moved to the {@value #FAIL_FAST_METHOD_NAME} method
+     */
+    boolean isInstrumented() {
+        return countingMatches || isTimingMatches();
+    }
+
+    /**
+     * Check whether a matcher method takes an expected value of the same primitive type as its directly read
+     * property.
+     *
+     * @param matcherMethod the matcher method
+     * @return true if the matcher method takes a primitive expected value
+     */
+    boolean takesPrimitiveExpectedValue(MatcherMethodWrapper matcherMethod) {
+        return takesPrimitiveExpectedValue(matcherMethod, getReadMethod(matcherMethod.getMatchedPropertyName()));
+    }
+
+    /**
+     * Check whether a matcher method takes an expected value of the same primitive type as its property.
+     *
+     * @param matcherMethod the matcher method
+     * @param readMethod the read method of the property, or null if the property is read reflectively
+     * @return true if the matcher method takes a primitive expected value
+     */
+    static boolean takesPrimitiveExpectedValue(MatcherMethodWrapper matcherMethod, CtMethod readMethod) {
+        if (readMethod == null || matcherMethod.takesHamcrestMatcher()) {
+            return false;
+        }
+
+        final CtClass propertyType = JavassistClassUtils.getReturnType(readMethod);
+        return propertyType.isPrimitive() && propertyType.equals(matcherMethod.getParameterType());
+    }
+
+    static String getPropertyMatcherFieldName(String propertyName) {
+        return propertyName + PROPERTY_MATCHER_FIELD_SUFFIX;
+    }
+
+    static String getExpectedValueFieldName(String propertyName) {
+        return propertyName + "ExpectedValue";
+    }
+
+    static String getHasExpectedValueFieldName(String propertyName) {
+        return propertyName + "HasExpectedValue";
+    }
+}
@@ -0,0 +1,27 @@
+package com.mistraltech.smog.proxy.javassist;
+
+/**
+ * Receives notification of each matcher class made available, for example to record it in an application's own
+ * metrics. Listeners are added with {@link MatcherMetrics#addListener(MatcherClassListener)}.
+ * <p>
+ * Listeners are called on the thread that makes the matcher class available, while other threads wait for it,
+ * so they should return quickly. An exception thrown by a listener is logged, and does not affect the creation of
+ * the matcher or the other listeners.
+ */
+public interface MatcherClassListener {
+
+    /**
+     * Called when the matcher class for a matcher interface has been made available.
+     *
+     * @param event how the matcher class was made available
+     */
+    void matcherClassCreated(MatcherClassEvent event);
+
+    /**
+     * Called when the matcher class for a matcher interface could not be made available.
+     *
+     * @param matcherInterface the matcher interface
+     * @param cause the reason for the failure
+     */
+    void matcherClassFailed(Class<?> matcherInterface, Throwable cause);
+}
@@ -0,0 +1,88 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Generates matcher classes at build time and writes them out as class files.
+ * <p>
+ * Matcher classes written alongside their matcher interfaces are found and loaded directly by
+ * {@link JavassistMatcherGenerator}, avoiding the cost of generating them in every JVM. The class files are the
+ * same as those that would otherwise be generated at runtime.
+ * <p>
+ * The system properties that affect the generated code are read by the JVM that runs this generator, not by the JVMs
+ * that later load the classes: the code generation backend, {@value MatcherMetrics#COUNT_MATCHES_PROPERTY} and
+ * {@value MatcherFlightRecorder#SLOW_MATCH_THRESHOLD_PROPERTY}. To count or time matches with pre-generated classes,
+ * set those properties when generating them.
+ * <p>
+ * Usage: <code>MatcherClassPreGenerator classesDirectory [outputDirectory]</code>
+ * <p>
+ * All classes in <code>classesDirectory</code> are examined, and a matcher class is written for each matcher
+ * interface found. The output directory defaults to the classes directory. The classes directory and its
+ * dependencies must be on the classpath of the context class loader. With Maven, this is typically done by running
+ * the exec-maven-plugin <code>java</code> goal with <code>classpathScope</code> set to <code>test</code> in the
+ * <code>process-test-classes</code> phase.
+ */
+public final class MatcherClassPreGenerator {
+
+    private MatcherClassPreGenerator() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            throw new IllegalArgumentException("Usage: MatcherClassPreGenerator classesDirectory [outputDirectory]");
+        }
+
+        final File classesDirectory = new File(args[0]);
+        final File outputDirectory = new File(args.length > 1 ? args[1] : args[0]);
+
+        final List<Class<?>> matcherInterfaces = preGenerate(classesDirectory, outputDirectory,
+                Thread.currentThread().getContextClassLoader());
+
+        System.out.println("Generated " + matcherInterfaces.size() + " matcher classes in " + outputDirectory);
+    }
+
+    /**
+     * Generate matcher classes for all the matcher interfaces in a directory tree of class files.
+     *
+     * @param classesDirectory root directory of the class files to be examined
+     * @param outputDirectory root directory to which the matcher class files are written
+     * @param classLoader class loader able to load the classes to be examined and their dependencies
+     * @return the matcher interfaces for which matcher classes were generated
+     */
+    public static List<Class<?>> preGenerate(File classesDirectory, File outputDirectory, ClassLoader classLoader) {
+        final List<Class<?>> matcherInterfaces = MatcherInterfaceScanner.findMatcherInterfaces(classesDirectory, classLoader);
+
+        for (Class<?> matcherInterface : matcherInterfaces) {
+            final String matcherClassName = JavassistMatcherGenerator.getMatcherClassName(matcherInterface);
+            final byte[] bytecode = MatcherClassGenerator.generateMatcherBytecode(matcherInterface);
+
+            writeClassFile(outputDirectory, matcherClassName, bytecode);
+        }
+
+        return matcherInterfaces;
+    }
+
+    private static void writeClassFile(File outputDirectory, String className, byte[] bytecode) {
+        final File classFile = new File(outputDirectory, className.replace('.', File.separatorChar) + ".class");
+        final File packageDirectory = classFile.getParentFile();
+
+        if (!packageDirectory.isDirectory() && !packageDirectory.mkdirs()) {
+            throw new RuntimeException("Failed to create directory " + packageDirectory);
+        }
+
+        try {
+            final OutputStream outputStream = new FileOutputStream(classFile);
+            try {
+                outputStream.write(bytecode);
+            } finally {
+                outputStream.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write class file " + classFile, e);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.core.PropertyMatcher;
+import com.mistraltech.smog.proxy.javassist.SpecializedMatcherLayout.SpecializedProperty;
+import com.mistraltech.smog.proxy.javassist.util.ClassDefiner;
+import com.mistraltech.smog.proxy.javassist.util.JavaReflectionUtils;
+import com.mistraltech.smog.proxy.javassist.util.JavassistClassUtils;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.Modifier;
+import org.hamcrest.Matcher;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.mistraltech.smog.proxy.javassist.MatcherClassLayout.getExpectedValueFieldName;
+import static com.mistraltech.smog.proxy.javassist.MatcherClassLayout.getHasExpectedValueFieldName;
+import static com.mistraltech.smog.proxy.javassist.MatcherClassLayout.getPropertyMatcherFieldName;
+
+/**
+ * Generates classes specialized for the configurations of frozen matchers, as described by {@link FrozenMatcher}.
+ * <p>
+ * The configuration of a generated matcher is read from the fields of its class, whose names are given by
+ * {@link MatcherClassLayout}, and turned into a {@link SpecializedMatcherLayout}. The generated matchers given for its
+ * properties are specialized in the same way, so that the whole configuration is folded into a few classes.
+ * <p>
+ * Like {@link MatcherClassGenerator}, this is kept apart from the classes used by all matchers, so that no Javassist
+ * classes are loaded unless a matcher is specialized.
+ */
+final class MatcherClassSpecializer {
+    private static final String CONFIGURED_PROPERTIES_FIELD_NAME = "configuredProperties";
+    private static final String CONFIGURED_PROPERTY_COUNT_FIELD_NAME = "configuredPropertyCount";
+
+    private static final Logger LOGGER = Logger.getLogger(MatcherClassSpecializer.class.getName());
+
+    private static final AtomicInteger SPECIALIZED_CLASS_COUNT = new AtomicInteger();
+
+    private static final AtomicBoolean FAILURE_LOGGED = new AtomicBoolean();
+
+    /**
+     * The constants of specialized classes that have been generated but not yet initialised, keyed by class name.
+     */
+    private static final ConcurrentMap<String, Object[]> PENDING_CONSTANTS = new ConcurrentHashMap<String, Object[]>();
+
+    private MatcherClassSpecializer() {
+    }
+
+    /**
+     * Generate a class specialized for the configuration of a frozen, generated matcher, and create the predicate
+     * that tests objects with it.
+     * <p>
+     * Specialization only makes matching faster, so a failure to generate, define or initialise the class does not
+     * fail the match that triggered it. The failure is recorded in {@link MatcherMetrics}, the first is logged, and the
+     * matcher is left unspecialized.
+     *
+     * @param matcher the frozen matcher
+     * @return the predicate, or null if the matcher cannot be specialized because it is not a generated matcher, has
+     * no properties that are read directly, or has a configured property that is read reflectively, or if the
+     * specialized class could not be made
+     */
+    static MatcherPredicate<Object> specialize(Matcher<?> matcher) {
+        final Class<?> matcherInterface = findMatcherInterface(matcher.getClass());
+
+        if (matcherInterface == null) {
+            return null;
+        }
+
+        try {
+            return specialize(matcher, matcherInterface);
+        } catch (VirtualMachineError e) {
+            throw e;
+        } catch (RuntimeException | Error e) {
+            MatcherMetrics.getInstance().recordFailure(matcherInterface, e);
+
+            if (FAILURE_LOGGED.compareAndSet(false, true)) {
+                LOGGER.log(Level.WARNING, "Failed to specialize a matcher for " + matcherInterface.getName() +
+                        ", so it is left unspecialized. Later failures are not logged.", e);
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Take the constants of a specialized class. Called once, by the static initializer of the class.
+     *
+     * @param constantsKey the key of the constants
+     * @return the constants
+     * @throws IllegalStateException if there are no constants for the key
+     */
+    static Object[] takeConstants(String constantsKey) {
+        final Object[] constants = PENDING_CONSTANTS.remove(constantsKey);
+
+        if (constants == null) {
+            throw new IllegalStateException("No constants for specialized matcher class " + constantsKey);
+        }
+
+        return constants;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <TM> MatcherPredicate<Object> specialize(Matcher<?> matcher, Class<TM> matcherInterfaceClass) {
+        final long startNanos = System.nanoTime();
+        final ClassPool classPool = MatcherClassGenerator.getClassPool(matcherInterfaceClass);
+        final MatcherInterfaceWrapper<TM> matcherInterface;
+        final Map<String, CtMethod> propertyReadMethods;
+        final List<String> directProperties;
+        final Set<String> primitiveProperties;
+
+        // The lock is not held while the matchers given for properties are specialized, which may use the pools of
+        // other class loaders
+        synchronized (classPool) {
+            matcherInterface = new MatcherInterfaceWrapper<TM>(matcherInterfaceClass, classPool);
+            propertyReadMethods = MatcherClassGenerator.findPropertyReadMethods(matcherInterface.getMatcherMethods(),
+                    matcherInterface.getMatchedClass());
+            directProperties = MatcherClassGenerator.findDirectProperties(propertyReadMethods);
+            primitiveProperties = MatcherClassGenerator.findPrimitiveProperties(matcherInterface.getMatcherMethods(),
+                    propertyReadMethods);
+        }
+
+        if (directProperties.isEmpty() || isReflectingPropertyConfigured(matcher, propertyReadMethods)) {
+            return null;
+        }
+
+        // The matcher itself is the first constant, followed by those that test properties
+        final List<Object> constants = new ArrayList<Object>();
+        constants.add(matcher);
+
+        final List<SpecializedProperty> properties = new ArrayList<SpecializedProperty>();
+        final int[] configuredProperties = (int[]) getFieldValue(matcher, CONFIGURED_PROPERTIES_FIELD_NAME);
+        final int configuredPropertyCount = (Integer) getFieldValue(matcher, CONFIGURED_PROPERTY_COUNT_FIELD_NAME);
+
+        for (int i = 0; i < configuredPropertyCount; i++) {
+            final String propertyName = directProperties.get(configuredProperties[i]);
+            final CtMethod readMethod = propertyReadMethods.get(propertyName);
+
+            if (primitiveProperties.contains(propertyName) &&
+                    (Boolean) getFieldValue(matcher, getHasExpectedValueFieldName(propertyName))) {
+                properties.add(SpecializedProperty.comparedWith(readMethod,
+                        getFieldValue(matcher, getExpectedValueFieldName(propertyName))));
+            } else {
+                final PropertyMatcher<?> propertyMatcher = (PropertyMatcher<?>) getFieldValue(matcher,
+                        getPropertyMatcherFieldName(propertyName));
+                final Object constant = getPropertyConstant(propertyMatcher.getMatcher());
+
+                properties.add(SpecializedProperty.testedWith(readMethod, constants.size(),
+                        constant instanceof MatcherPredicate));
+                constants.add(constant);
+            }
+        }
+
+        final String className = JavassistMatcherGenerator.getMatcherClassName(matcherInterfaceClass) + "Specialized" +
+                SPECIALIZED_CLASS_COUNT.incrementAndGet();
+        final byte[] bytecode;
+
+        synchronized (classPool) {
+            bytecode = generateSpecializedBytecode(matcherInterface, className, properties);
+        }
+
+        // The class takes its constants when it is initialised, which happens when it is instantiated
+        PENDING_CONSTANTS.put(className, constants.toArray());
+
+        try {
+            final Class<?> specializedClass = ClassDefiner.defineClass(matcherInterfaceClass, className, bytecode);
+            final MatcherPredicate<Object> predicate =
+                    (MatcherPredicate<Object>) JavaReflectionUtils.createInstance(specializedClass);
+
+            MatcherMetrics.getInstance().recordMatcherClass(matcherInterfaceClass, specializedClass,
+                    MatcherClassEvent.Source.SPECIALIZED, startNanos, bytecode.length);
+
+            return predicate;
+        } finally {
+            PENDING_CONSTANTS.remove(className);
+        }
+    }
+
+    private static byte[] generateSpecializedBytecode(MatcherInterfaceWrapper<?> matcherInterface, String className,
+                                                      List<SpecializedProperty> properties) {
+        final MatcherCodeBackend backend = MatcherClassGenerator.getBackend();
+        final ClassPool classPool = matcherInterface.getClassPool();
+        final CtClass generatedClass = classPool.makeClass(className);
+        generatedClass.setModifiers(Modifier.PUBLIC | Modifier.FINAL);
+        generatedClass.addInterface(JavassistClassUtils.getCtClass(classPool, MatcherPredicate.class.getName()));
+
+        JavassistClassUtils.addStaticField(generatedClass, JavassistClassUtils.getCtClass(classPool, Matcher.class.getName()),
+                SpecializedMatcherLayout.FALLBACK_FIELD_NAME, null);
+
+        for (SpecializedProperty property : properties) {
+            if (!property.isComparedWithExpectedValue()) {
+                JavassistClassUtils.addStaticField(generatedClass,
+                        JavassistClassUtils.getCtClass(classPool, property.getConstantFieldType().getName()),
+                        property.getConstantFieldName(), null);
+            }
+        }
+
+        final SpecializedMatcherLayout layout = new SpecializedMatcherLayout(generatedClass,
+                matcherInterface.getMatchedClass(), className, properties);
+
+        backend.generateSpecializedInitializer(layout);
+        backend.generateSpecializedPredicateMethod(layout);
+
+        final byte[] bytecode = JavassistClassUtils.getBytecode(generatedClass);
+        generatedClass.detach();
+
+        return bytecode;
+    }
+
+    /**
+     * Get the constant that tests a property with the matcher given for it: the predicate specialized for the matcher
+     * if it is a generated matcher that can be specialized, or else the matcher itself.
+     */
+    private static Object getPropertyConstant(Matcher<?> matcher) {
+        if (matcher instanceof FreezableMatcher) {
+            final MatcherPredicate<Object> specializedPredicate = specialize(matcher);
+
+            if (specializedPredicate != null) {
+                return specializedPredicate;
+            }
+        }
+
+        return matcher;
+    }
+
+    private static boolean isReflectingPropertyConfigured(Matcher<?> matcher, Map<String, CtMethod> propertyReadMethods) {
+        for (Map.Entry<String, CtMethod> propertyReadMethod : propertyReadMethods.entrySet()) {
+            if (propertyReadMethod.getValue() == null &&
+                    getFieldValue(matcher, getPropertyMatcherFieldName(propertyReadMethod.getKey())) != null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static Class<?> findMatcherInterface(Class<?> matcherClass) {
+        for (Class<?> matcherClassInterface : matcherClass.getInterfaces()) {
+            if (MatcherInterfaceScanner.isMatcherInterface(matcherClassInterface)) {
+                return matcherClassInterface;
+            }
+        }
+
+        return null;
+    }
+
+    private static Object getFieldValue(Object matcher, String fieldName) {
+        try {
+            final Field field = matcher.getClass().getDeclaredField(fieldName);
+            field.setAccessible(true);
+            return field.get(matcher);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalArgumentException("Not a matcher generated by this version of the library: " +
+                    matcher.getClass().getName(), e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Illegal access", e);
+        }
+    }
+}
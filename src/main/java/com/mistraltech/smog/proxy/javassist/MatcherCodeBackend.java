@@ -0,0 +1,125 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import javassist.CtMethod;
+
+import java.util.Map;
+
+/**
+ * Generates the constructor and methods of a matcher class, as decided by its {@link MatcherClassLayout}.
+ * <p>
+ * {@link MatcherClassGenerator} creates the class and its fields, and then calls each of these methods to add the
+ * code. Every backend must generate classes that behave identically. The backend also generates the code of the classes
+ * that {@link MatcherClassSpecializer} specializes for the configurations of frozen matchers.
+ * <p>
+ * The backend is chosen by the {@value #BACKEND_PROPERTY} system property, which can be set to
+ * {@value #SOURCE_BACKEND} (the default) or {@value #BYTECODE_BACKEND}.
+ */
+interface MatcherCodeBackend {
+    String BACKEND_PROPERTY = "smog.javassist.backend";
+
+    /**
+     * Compiles Java source for each method with the Javassist compiler.
+     */
+    String SOURCE_BACKEND = "source";
+
+    /**
+     * Writes the bytecode of each method directly, without parsing any source.
+     */
+    String BYTECODE_BACKEND = "bytecode";
+
+    /**
+     * Generate the constructor, which calls the superclass constructor with the matched class description.
+     */
+    void generateConstructor(MatcherClassLayout layout);
+
+    /**
+     * Generate the private addConfiguredProperty(int) method, which records that a directly read property has been
+     * configured, keeping the recorded properties in index order so that they are matched in declaration order. Only
+     * called when there are directly read properties.
+     */
+    void generateConfiguredPropertyTracking(MatcherClassLayout layout);
+
+    /**
+     * Generate the implementation of a matcher method, which first checks that the matcher has not been frozen. If
+     * the layout is fail-fast, it also counts the configuration in the
+     * {@value MatcherClassLayout#CONFIGURATION_COUNT_FIELD_NAME} field.
+     */
+    void generateMatcherMethod(MatcherClassLayout layout, MatcherMethodWrapper matcherMethod);
+
+    /**
+     * Generate the implementation of a like method.
+     *
+     * @param layout the layout of the matcher class
+     * @param likeMethod the like method
+     * @param propertyCopies the matcher methods to call, in order, each with the read method of the like method's
+     * parameter that supplies its argument
+     */
+    void generateLikeMethod(MatcherClassLayout layout, CtMethod likeMethod, Map<MatcherMethodWrapper, CtMethod> propertyCopies);
+
+    /**
+     * Generate matchesSafely(Matched, MatchAccumulator), which matches each configured, directly read property and
+     * accumulates any mismatches, along with its erased bridge method if there are directly read properties. If the
+     * layout is fail-fast, the position taken from {@link RecordedMismatch} is used to start from the property that
+     * did not match. If all the properties from there on match, they are matched again from the first.
+     */
+    void generateMatchesSafelyMethod(MatcherClassLayout layout);
+
+    /**
+     * Generate the override of describeTo(Description), which describes the matcher with
+     * {@link MatcherDescriptions#describeTo}, giving it the property matchers in declaration order. Only called when
+     * the superclass method can be overridden.
+     */
+    void generateDescribeToMethod(MatcherClassLayout layout);
+
+    /**
+     * Generate the synthetic override of matchesSafely(Object, Description) that returns at the first mismatch
+     * when no description is needed, recording its position with {@link RecordedMismatch}. Only called when the
+     * layout is fail-fast. If the layout is instrumented, the code is instead generated as the private
+     * {@value MatcherClassLayout#FAIL_FAST_METHOD_NAME} method, with the same signature.
+     */
+    void generateFailFastMatchesSafelyMethod(MatcherClassLayout layout);
+
+    /**
+     * Generate the synthetic override of matchesSafely(Object, Description) that counts and times matches, as
+     * decided by the layout, around a call of the fail-fast method or else of the superclass method. Only called
+     * when the layout is instrumented.
+     */
+    void generateInstrumentedMatchesSafelyMethod(MatcherClassLayout layout);
+
+    /**
+     * Generate the test(Object) method of {@link MatcherPredicate}, which returns at the first mismatch in the same
+     * way as the fail-fast method, but without recording it, and tests the matchers given for properties with
+     * {@link FrozenMatcher#testPropertyMatcher}. Where the layout is not fail-fast, or a reflectively read property
+     * has been configured, it calls matches(Object) instead. It is not instrumented. The interface has already been
+     * added.
+     */
+    void generatePredicateMethod(MatcherClassLayout layout);
+
+    /**
+     * Generate the frozenCopy() method of {@link FreezableMatcher}, which creates a new instance of the class,
+     * configures each of its properties that is configured in this matcher with the matcher given by
+     * {@link FrozenMatcher#copyPropertyMatcher}, copies any expected values, and sets the copy's
+     * {@value MatcherClassLayout#FROZEN_FIELD_NAME} field. The interface and the fields have already been added.
+     */
+    void generateFrozenCopyMethod(MatcherClassLayout layout);
+
+    /**
+     * Generate the newMatcher() method of {@link MatcherInstanceFactory}, which creates a new instance of the class.
+     * The interface itself has already been added.
+     */
+    void generateNewMatcherMethod(MatcherClassLayout layout);
+
+    /**
+     * Generate the static initializer of a specialized class, which sets the fallback field and each constant field
+     * from the array returned by {@link FrozenMatcher#takeSpecializationConstants(String)}. The fields have already
+     * been added.
+     */
+    void generateSpecializedInitializer(SpecializedMatcherLayout layout);
+
+    /**
+     * Generate the test(Object) method of a specialized class, which checks each configured property in turn and
+     * returns false at the first that does not match. Objects that are not of the matched class are matched by the
+     * fallback matcher. The interface has already been added.
+     */
+    void generateSpecializedPredicateMethod(SpecializedMatcherLayout layout);
+}
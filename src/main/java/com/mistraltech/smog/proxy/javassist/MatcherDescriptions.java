@@ -0,0 +1,43 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.core.PropertyMatcher;
+import org.hamcrest.Description;
+
+/**
+ * Describes generated matchers. Used by generated matcher classes.
+ * <p>
+ * A generated matcher creates the matcher of each property when the property is first configured, and so registers
+ * them with its superclass in the order they were configured. The generated classes describe themselves with this
+ * class instead, so that they list their configured properties in the order the matcher interface declares them,
+ * however they were configured.
+ */
+public final class MatcherDescriptions {
+
+    private MatcherDescriptions() {
+    }
+
+    /**
+     * Describe a generated matcher in the same form as its superclass does, listing the configured properties in the
+     * order given.
+     *
+     * @param description the description to append to
+     * @param matchedObjectDescription the description of the matched class
+     * @param propertyMatchers the property matchers in declaration order, null for properties never configured
+     */
+    public static void describeTo(Description description, String matchedObjectDescription,
+                                  PropertyMatcher<?>[] propertyMatchers) {
+        description.appendText(matchedObjectDescription);
+
+        boolean first = true;
+        for (PropertyMatcher<?> propertyMatcher : propertyMatchers) {
+            if (propertyMatcher != null && propertyMatcher.isSpecified()) {
+                description.appendText(first ? " that (" : " and ").appendDescriptionOf(propertyMatcher);
+                first = false;
+            }
+        }
+
+        if (!first) {
+            description.appendText(")");
+        }
+    }
+}
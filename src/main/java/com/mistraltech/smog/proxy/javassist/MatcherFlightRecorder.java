@@ -0,0 +1,334 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.proxy.javassist.util.FlightRecorderEventType;
+import com.mistraltech.smog.proxy.javassist.util.FlightRecorderEventType.Field;
+import com.mistraltech.smog.proxy.javassist.util.FlightRecorderEventType.Unit;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports the generation of matcher classes, and slow matches, as Java Flight Recorder events.
+ * <p>
+ * A <i>com.mistraltech.smog.MatcherClass</i> event is recorded for each matcher class made available, with the time
+ * taken, the number of methods and the length of the class file.
+ * <p>
+ * A <i>com.mistraltech.smog.SlowMatch</i> event is recorded for each match that takes at least the number of
+ * microseconds given by the {@value #SLOW_MATCH_THRESHOLD_PROPERTY} system property. Only matcher classes generated
+ * while the property is set time their matches, so the property must be set before the matchers are first created.
+ * The event breaks the time down by property. Each property that is read directly is timed as it is matched, including
+ * reading its value, while the event is enabled, which is checked at most every 100 milliseconds. The times are kept
+ * in arrays that each thread reuses. Properties that are read reflectively are not broken down.
+ * <p>
+ * Nothing is recorded unless the JVM has a flight recorder and a recording has been started.
+ */
+public final class MatcherFlightRecorder {
+    public static final String SLOW_MATCH_THRESHOLD_PROPERTY = "smog.javassist.slowMatchThresholdMicros";
+
+    private static final String CATEGORY = "Smog";
+
+    private static final long ENABLED_CHECK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * The number of arrays of property times that each thread keeps for reuse, which is the depth of nested generated
+     * matchers that can time their properties without allocating.
+     */
+    private static final int REUSED_PROPERTY_NANOS = 8;
+
+    private static volatile EventTypes eventTypes;
+
+    /**
+     * Whether slow match events were enabled when last checked, and when they are next to be checked.
+     */
+    private static volatile boolean slowMatchEnabled;
+    private static volatile long nextEnabledCheckNanos = System.nanoTime();
+
+    /**
+     * The property times of the current thread. The first element is the times of the match that the thread has
+     * started timing, until the matching code takes them, and the others are arrays free for reuse. Long arrays are
+     * held rather than an instance of a class of this library, so that a thread does not keep the library's class
+     * loader reachable.
+     */
+    private static final ThreadLocal<long[][]> PROPERTY_NANOS = new ThreadLocal<long[][]>();
+
+    private MatcherFlightRecorder() {
+    }
+
+    /**
+     * Start timing the properties of a match on the current thread, if slow match events are enabled. Called by
+     * generated matcher classes, which then take the times with {@link #takePropertyTiming(int)} in the method that
+     * matches the properties, and give them back with {@link #finishPropertyTiming(long[])} once the match is over.
+     *
+     * @param propertyCount the number of directly read properties of the matcher class
+     * @param startNanos the time that the match started, from {@link System#nanoTime()}
+     * @return the time of each property, in nanoseconds, indexed as the properties are in the generated code, with -1
+     * for properties that are not matched, or null if properties are not being timed
+     */
+    public static long[] startPropertyTiming(int propertyCount, long startNanos) {
+        if (startNanos - nextEnabledCheckNanos >= 0) {
+            nextEnabledCheckNanos = startNanos + ENABLED_CHECK_INTERVAL_NANOS;
+            slowMatchEnabled = isSlowMatchEnabled(getEventTypes());
+        }
+
+        if (!slowMatchEnabled) {
+            return null;
+        }
+
+        long[][] threadNanos = PROPERTY_NANOS.get();
+
+        if (threadNanos == null) {
+            threadNanos = new long[1 + REUSED_PROPERTY_NANOS][];
+            PROPERTY_NANOS.set(threadNanos);
+        }
+
+        long[] propertyNanos = null;
+
+        for (int i = 1; i < threadNanos.length && propertyNanos == null; i++) {
+            if (threadNanos[i] != null && threadNanos[i].length >= propertyCount) {
+                propertyNanos = threadNanos[i];
+                threadNanos[i] = null;
+            }
+        }
+
+        if (propertyNanos == null) {
+            propertyNanos = new long[propertyCount];
+        }
+
+        Arrays.fill(propertyNanos, 0, propertyCount, -1);
+        threadNanos[0] = propertyNanos;
+        return propertyNanos;
+    }
+
+    /**
+     * Take the property times of the match that the current thread has started timing, so that the matchers of
+     * the properties can time matches of their own. Called by generated matcher classes.
+     *
+     * @param propertyCount the number of directly read properties of the matcher class
+     * @return the property times, or null if properties are not being timed
+     */
+    public static long[] takePropertyTiming(int propertyCount) {
+        if (!slowMatchEnabled) {
+            return null;
+        }
+
+        final long[][] threadNanos = PROPERTY_NANOS.get();
+
+        if (threadNanos == null || threadNanos[0] == null || threadNanos[0].length < propertyCount) {
+            return null;
+        }
+
+        final long[] propertyNanos = threadNanos[0];
+        threadNanos[0] = null;
+        return propertyNanos;
+    }
+
+    /**
+     * Give back the property times of a match once it is over, so that the current thread can reuse the array. Called
+     * by generated matcher classes.
+     *
+     * @param propertyNanos the property times returned by {@link #startPropertyTiming(int, long)}
+     */
+    public static void finishPropertyTiming(long[] propertyNanos) {
+        final long[][] threadNanos = PROPERTY_NANOS.get();
+
+        if (threadNanos == null) {
+            return;
+        }
+
+        if (threadNanos[0] == propertyNanos) {
+            // Never taken, so must not be taken by a later match once it is reused
+            threadNanos[0] = null;
+        }
+
+        for (int i = 1; i < threadNanos.length; i++) {
+            if (threadNanos[i] == null) {
+                threadNanos[i] = propertyNanos;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Record that a match took at least the slow match threshold. Called by generated matcher classes.
+     *
+     * @param matcher the matcher
+     * @param item the object that was matched
+     * @param description the description that any mismatch was described to
+     * @param matched the result of the match
+     * @param matchNanos the time taken by the match, in nanoseconds
+     * @param propertyNanos the time of each directly read property, as returned by
+     * {@link #startPropertyTiming(int, long)}, or null if the properties were not timed
+     * @param propertyNames the names of the directly read properties, separated by commas, in the same order
+     */
+    public static void recordSlowMatch(Matcher<?> matcher, Object item, Description description, boolean matched,
+                                       long matchNanos, long[] propertyNanos, String propertyNames) {
+        final EventTypes types = getEventTypes();
+        final boolean enabled = isSlowMatchEnabled(types);
+        slowMatchEnabled = enabled;
+
+        if (!enabled) {
+            return;
+        }
+
+        types.slowMatch.commit(getMatcherInterface(matcher.getClass()), item.getClass(), matchNanos, matched,
+                !(description instanceof Description.NullDescription), getPropertyTimes(propertyNanos, propertyNames));
+    }
+
+    /**
+     * Record that a matcher class has been made available.
+     *
+     * @param matcherInterface the matcher interface
+     * @param matcherClass the matcher class
+     * @param source where the matcher class came from
+     * @param nanos the time taken to make the matcher class available, in nanoseconds
+     * @param bytecodeLength the length of the class file, or -1 if it is not known
+     */
+    static void recordMatcherClass(Class<?> matcherInterface, Class<?> matcherClass, MatcherClassEvent.Source source,
+                                   long nanos, int bytecodeLength) {
+        final EventTypes types = getEventTypes();
+
+        if (types == null || !types.matcherClass.isEnabled()) {
+            return;
+        }
+
+        types.matcherClass.commit(matcherInterface, source.name(), nanos, matcherClass.getDeclaredMethods().length,
+                bytecodeLength);
+    }
+
+    /**
+     * Get the slow match threshold given by the {@value #SLOW_MATCH_THRESHOLD_PROPERTY} system property.
+     *
+     * @return the threshold in nanoseconds, or -1 if matches are not to be timed
+     */
+    static long getSlowMatchThresholdNanos() {
+        final String thresholdMicros = System.getProperty(SLOW_MATCH_THRESHOLD_PROPERTY);
+
+        if (thresholdMicros == null) {
+            return -1;
+        }
+
+        try {
+            final long threshold = Long.parseLong(thresholdMicros.trim());
+
+            if (threshold < 0) {
+                throw new NumberFormatException("Negative threshold");
+            }
+
+            return threshold * 1000;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value of " + SLOW_MATCH_THRESHOLD_PROPERTY + ": "
+                    + thresholdMicros, e);
+        }
+    }
+
+    /**
+     * Get the event types, defining them if a recording has been started since this was last called.
+     *
+     * @return the event types, or null if the flight recorder is not recording
+     */
+    private static EventTypes getEventTypes() {
+        EventTypes types = eventTypes;
+
+        if (types == null && FlightRecorderEventType.isFlightRecorderInitialized()) {
+            synchronized (MatcherFlightRecorder.class) {
+                types = eventTypes;
+
+                if (types == null) {
+                    types = new EventTypes();
+                    eventTypes = types;
+                }
+            }
+        }
+
+        return types;
+    }
+
+    private static boolean isSlowMatchEnabled(EventTypes types) {
+        return types != null && types.slowMatch.isEnabled();
+    }
+
+    private static Class<?> getMatcherInterface(Class<?> matcherClass) {
+        for (Class<?> implementedInterface : matcherClass.getInterfaces()) {
+            if (Matcher.class.isAssignableFrom(implementedInterface)) {
+                return implementedInterface;
+            }
+        }
+
+        return matcherClass;
+    }
+
+    /**
+     * Describe the times of the properties that were matched, slowest first.
+     */
+    private static String getPropertyTimes(long[] propertyNanos, String propertyNames) {
+        if (propertyNanos == null) {
+            return "";
+        }
+
+        final String[] names = propertyNames.split(",");
+        final List<PropertyTime> propertyTimes = new ArrayList<PropertyTime>();
+
+        // The array may be longer than needed, having been reused
+        for (int i = 0; i < names.length; i++) {
+            if (propertyNanos[i] >= 0) {
+                propertyTimes.add(new PropertyTime(names[i], propertyNanos[i]));
+            }
+        }
+
+        Collections.sort(propertyTimes, new Comparator<PropertyTime>() {
+            @Override
+            public int compare(PropertyTime propertyTime1, PropertyTime propertyTime2) {
+                return Long.compare(propertyTime2.nanos, propertyTime1.nanos);
+            }
+        });
+
+        final StringBuilder builder = new StringBuilder();
+
+        for (PropertyTime propertyTime : propertyTimes) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+
+            builder.append(propertyTime.propertyName).append(": ").append(propertyTime.nanos).append(" ns");
+        }
+
+        return builder.toString();
+    }
+
+    private static final class PropertyTime {
+        private final String propertyName;
+        private final long nanos;
+
+        private PropertyTime(String propertyName, long nanos) {
+            this.propertyName = propertyName;
+            this.nanos = nanos;
+        }
+    }
+
+    private static final class EventTypes {
+        private final FlightRecorderEventType matcherClass = FlightRecorderEventType.create(
+                "com.mistraltech.smog.MatcherClass", "Matcher Class",
+                "A matcher class was made available for a matcher interface", CATEGORY,
+                new Field("matcherInterface", Class.class, "Matcher Interface", Unit.NONE),
+                new Field("source", String.class, "Source", Unit.NONE),
+                new Field("generationTime", long.class, "Generation Time", Unit.NANOSECONDS),
+                new Field("methodCount", int.class, "Method Count", Unit.NONE),
+                new Field("bytecodeLength", int.class, "Bytecode Length", Unit.BYTES));
+
+        private final FlightRecorderEventType slowMatch = FlightRecorderEventType.create(
+                "com.mistraltech.smog.SlowMatch", "Slow Match",
+                "A match took at least the slow match threshold", CATEGORY,
+                new Field("matcherInterface", Class.class, "Matcher Interface", Unit.NONE),
+                new Field("matchedClass", Class.class, "Matched Class", Unit.NONE),
+                new Field("matchTime", long.class, "Match Time", Unit.NANOSECONDS),
+                new Field("matched", boolean.class, "Matched", Unit.NONE),
+                new Field("describingMismatch", boolean.class, "Describing Mismatch", Unit.NONE),
+                new Field("propertyTimes", String.class, "Property Times", Unit.NONE));
+    }
+}
@@ -0,0 +1,86 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of generating the matcher classes for a group of matcher interfaces ahead of their first use, as
+ * returned by {@link JavassistMatcherGenerator#preGenerate(java.util.Collection)}.
+ */
+public final class MatcherGenerationReport {
+    private final Map<Class<?>, Long> generationNanos;
+    private final Map<Class<?>, Throwable> failures;
+    private final long elapsedNanos;
+    private final int parallelism;
+
+    MatcherGenerationReport(Map<Class<?>, Long> generationNanos, Map<Class<?>, Throwable> failures, long elapsedNanos,
+                            int parallelism) {
+        this.generationNanos = Collections.unmodifiableMap(generationNanos);
+        this.failures = Collections.unmodifiableMap(failures);
+        this.elapsedNanos = elapsedNanos;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Get the time taken to make each matcher class available, for those that were generated successfully. This
+     * is short for matcher classes that had already been generated, or that were generated ahead of time.
+     *
+     * @return the times in nanoseconds keyed by matcher interface, in the order the interfaces were given
+     */
+    public Map<Class<?>, Long> getGenerationNanos() {
+        return generationNanos;
+    }
+
+    /**
+     * Get the reasons that matcher classes could not be generated. Generation is attempted again when the matcher is
+     * next used, so a failure is also reported then.
+     *
+     * @return the failures keyed by matcher interface
+     */
+    public Map<Class<?>, Throwable> getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return true if all the matcher classes were generated
+     */
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+
+    /**
+     * @return the wall clock time taken to generate all the matcher classes, in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return the total of the times taken to generate each matcher class, in nanoseconds
+     */
+    public long getTotalGenerationNanos() {
+        long totalNanos = 0;
+
+        for (long nanos : generationNanos.values()) {
+            totalNanos += nanos;
+        }
+
+        return totalNanos;
+    }
+
+    /**
+     * @return the number of threads that generated the matcher classes
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Generated %d matcher classes in %d ms (%d ms in total on %d threads)%s",
+                generationNanos.size(), TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                TimeUnit.NANOSECONDS.toMillis(getTotalGenerationNanos()), parallelism,
+                failures.isEmpty() ? "" : String.format(", %d failed", failures.size()));
+    }
+}
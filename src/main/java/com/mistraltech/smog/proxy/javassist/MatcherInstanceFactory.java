@@ -0,0 +1,20 @@
+package com.mistraltech.smog.proxy.javassist;
+
+/**
+ * Creates new instances of a generated matcher class.
+ * <p>
+ * Generated matcher classes implement this interface themselves, so that new matchers can be created with a plain
+ * constructor call rather than through reflection. It is public only so that generated classes in other packages
+ * can implement it, and is not intended for use by clients.
+ *
+ * @param <TM> the type of the matcher interface
+ */
+public interface MatcherInstanceFactory<TM> {
+
+    /**
+     * Create a new matcher instance of the same class as this one.
+     *
+     * @return the new matcher instance
+     */
+    TM newMatcher();
+}
@@ -0,0 +1,185 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.core.annotation.Matches;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Finds matcher interfaces, i.e. interfaces having the SMOG {@link Matches} annotation.
+ */
+public final class MatcherInterfaceScanner {
+    private static final String CLASS_FILE_SUFFIX = ".class";
+
+    private MatcherInterfaceScanner() {
+    }
+
+    /**
+     * Find the matcher interfaces among the class files in a directory tree, such as a build output directory.
+     *
+     * @param classesDirectory root directory of the class files, corresponding to the default package
+     * @param classLoader class loader with which to load the classes
+     * @return the matcher interfaces, in no particular order
+     */
+    public static List<Class<?>> findMatcherInterfaces(File classesDirectory, ClassLoader classLoader) {
+        final List<String> classFiles = new ArrayList<String>();
+        findClassFiles(classesDirectory, "", classFiles);
+        return findMatcherInterfaces(classFiles, classLoader);
+    }
+
+    /**
+     * Find the matcher interfaces in a package and its sub-packages, wherever they are on the class path of a class
+     * loader. Packages in both directories and jar files are searched.
+     *
+     * @param packageName the name of the package
+     * @param classLoader class loader with which to find and load the classes
+     * @return the matcher interfaces, in no particular order
+     */
+    public static List<Class<?>> findMatcherInterfaces(String packageName, ClassLoader classLoader) {
+        final String packagePath = packageName.replace('.', '/');
+        final List<String> classFiles = new ArrayList<String>();
+
+        final Enumeration<URL> packageUrls;
+        try {
+            packageUrls = classLoader.getResources(packagePath);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to find package " + packageName, e);
+        }
+
+        while (packageUrls.hasMoreElements()) {
+            classFiles.addAll(findClassFiles(packageUrls.nextElement(), packagePath));
+        }
+
+        return findMatcherInterfaces(classFiles, classLoader);
+    }
+
+    /**
+     * Find the class files in a package and its sub-packages at one place on a class path.
+     *
+     * @param packageUrl the URL of the package, in a directory or a jar file
+     * @param packagePath the path of the package, with '/' separators
+     * @return the resource names of the class files, in no particular order
+     */
+    static List<String> findClassFiles(URL packageUrl, String packagePath) {
+        final List<String> classFiles = new ArrayList<String>();
+
+        if (packageUrl.getProtocol().equals("file")) {
+            findClassFiles(toFile(packageUrl), packagePath.isEmpty() ? "" : packagePath + "/", classFiles);
+        } else {
+            findClassFilesInJar(packageUrl, packagePath, classFiles);
+        }
+
+        return classFiles;
+    }
+
+    private static List<Class<?>> findMatcherInterfaces(List<String> classFiles, ClassLoader classLoader) {
+        final List<Class<?>> matcherInterfaces = new ArrayList<Class<?>>();
+
+        for (String classFile : classFiles) {
+            final String className = classFile.substring(0, classFile.length() - CLASS_FILE_SUFFIX.length())
+                    .replace('/', '.');
+            addIfMatcherInterface(className, classLoader, matcherInterfaces);
+        }
+
+        return matcherInterfaces;
+    }
+
+    private static void findClassFilesInJar(URL packageUrl, String packagePath, List<String> classFiles) {
+        final JarFile jarFile;
+        try {
+            final URLConnection connection = packageUrl.openConnection();
+
+            if (!(connection instanceof JarURLConnection)) {
+                throw new RuntimeException("Cannot search for classes in " + packageUrl);
+            }
+
+            connection.setUseCaches(false);
+            jarFile = ((JarURLConnection) connection).getJarFile();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open " + packageUrl, e);
+        }
+
+        try {
+            final Enumeration<JarEntry> entries = jarFile.entries();
+
+            while (entries.hasMoreElements()) {
+                final String entryName = entries.nextElement().getName();
+
+                if (entryName.startsWith(packagePath + "/") && entryName.endsWith(CLASS_FILE_SUFFIX)) {
+                    classFiles.add(entryName);
+                }
+            }
+        } finally {
+            closeQuietly(jarFile);
+        }
+    }
+
+    private static File toFile(URL url) {
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            throw new RuntimeException("Invalid file URL " + url, e);
+        }
+    }
+
+    private static void closeQuietly(JarFile jarFile) {
+        try {
+            jarFile.close();
+        } catch (IOException e) {
+            // Nothing more can be done, and the classes have already been found
+        }
+    }
+
+    private static void findClassFiles(File directory, String pathPrefix, List<String> classFiles) {
+        final File[] files = directory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            final String fileName = file.getName();
+
+            if (file.isDirectory()) {
+                findClassFiles(file, pathPrefix + fileName + "/", classFiles);
+            } else if (fileName.endsWith(CLASS_FILE_SUFFIX)) {
+                classFiles.add(pathPrefix + fileName);
+            }
+        }
+    }
+
+    private static void addIfMatcherInterface(String className, ClassLoader classLoader, List<Class<?>> matcherInterfaces) {
+        final Class<?> clazz = loadClass(className, classLoader);
+
+        if (isMatcherInterface(clazz)) {
+            matcherInterfaces.add(clazz);
+        }
+    }
+
+    /**
+     * Tests whether a class is a matcher interface.
+     *
+     * @param clazz the class
+     * @return true if the class is an interface having the {@link Matches} annotation
+     */
+    public static boolean isMatcherInterface(Class<?> clazz) {
+        return clazz.isInterface() && clazz.isAnnotationPresent(Matches.class);
+    }
+
+    private static Class<?> loadClass(String className, ClassLoader classLoader) {
+        try {
+            return Class.forName(className, false, classLoader);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("Failed to load class " + className, e);
+        }
+    }
+}
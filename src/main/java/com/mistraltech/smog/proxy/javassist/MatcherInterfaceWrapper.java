@@ -1,23 +1,50 @@
 package com.mistraltech.smog.proxy.javassist;
 
 import com.mistraltech.smog.proxy.javassist.util.JavassistClassUtils;
+import javassist.ClassPool;
 import javassist.CtClass;
 import javassist.CtMethod;
-import org.hamcrest.Matcher;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Wraps and augments the matcher interface.
+ * <p>
+ * The matcher and like methods and the matched class are resolved once for each matcher interface and cached in
+ * the interface's class pool, so they are shared by all the wrappers of the interface.
  */
 public class MatcherInterfaceWrapper<TM> {
-    private final MatchesAnnotationWrapper matchesAnnotation;
+    private static final String MATCHER_INTERFACE_CACHE = MatcherInterfaceWrapper.class.getName();
+
+    private final Class<TM> matcherInterface;
     private final CtClass matcherCtInterface;
+    private final MatcherInterfaceModel model;
 
     public MatcherInterfaceWrapper(Class<TM> matcherInterface) {
-        this.matchesAnnotation = new MatchesAnnotationWrapper(matcherInterface);
-        this.matcherCtInterface = JavassistClassUtils.getCtClass(matcherInterface.getName());
+        this(matcherInterface, MatcherClassGenerator.getClassPool(matcherInterface));
+    }
+
+    /**
+     * Wrap a matcher interface using the class pool of its class loader. The caller must hold the lock of the pool.
+     *
+     * @param matcherInterface the matcher interface
+     * @param classPool the class pool of the interface's class loader
+     */
+    MatcherInterfaceWrapper(Class<TM> matcherInterface, ClassPool classPool) {
+        this.matcherInterface = matcherInterface;
+        this.matcherCtInterface = JavassistClassUtils.getCtClass(classPool, matcherInterface.getName());
+        this.model = getModel(matcherInterface, matcherCtInterface);
+    }
+
+    public Class<TM> getMatcherInterface() {
+        return matcherInterface;
+    }
+
+    public ClassPool getClassPool() {
+        return matcherCtInterface.getClassPool();
     }
 
     public CtClass getCtInterface() {
@@ -25,38 +52,37 @@ public class MatcherInterfaceWrapper<TM> {
     }
 
     public String getMatchedClassDescription() {
-        return matchesAnnotation.getMatchedClassDescription();
+        return model.matchedClassDescription;
     }
 
     public List<MatcherMethodWrapper> getMatcherMethods() {
-        List<MatcherMethodWrapper> methods = new ArrayList<MatcherMethodWrapper>();
-
-        for (CtMethod method : JavassistClassUtils.getMethods(matcherCtInterface)) {
-            if (MatcherMethodWrapper.hasMatcherMethodSignature(method, matcherCtInterface)) {
-                methods.add(new MatcherMethodWrapper(method));
-            }
-        }
-
-        return methods;
+        return model.matcherMethods;
     }
 
     public CtClass getMatchedClass() {
-        final Class<?> matchedClass = matchesAnnotation.getMatchedClass();
-        return JavassistClassUtils.getCtClass(matchedClass.getName());
+        return model.matchedCtClass;
     }
 
     public List<CtMethod> getLikeMethods() {
-        List<CtMethod> methods = new ArrayList<CtMethod>();
+        return model.likeMethods;
+    }
+
+    private static MatcherInterfaceModel getModel(Class<?> matcherInterface, CtClass matcherCtInterface) {
+        final ConcurrentMap<String, MatcherInterfaceModel> cache =
+                JavassistClassUtils.getCache(matcherCtInterface.getClassPool(), MATCHER_INTERFACE_CACHE);
 
-        CtClass matchedCtClass = getMatchedClass();
+        MatcherInterfaceModel model = cache.get(matcherCtInterface.getName());
 
-        for (CtMethod method : JavassistClassUtils.getMethods(matcherCtInterface)) {
-            if (hasLikeMethodSignature(method, matchedCtClass, matcherCtInterface)) {
-                methods.add(method);
+        if (model == null) {
+            model = new MatcherInterfaceModel(new MatchesAnnotationWrapper(matcherInterface), matcherCtInterface);
+            final MatcherInterfaceModel cachedModel = cache.putIfAbsent(matcherCtInterface.getName(), model);
+
+            if (cachedModel != null) {
+                model = cachedModel;
             }
         }
 
-        return methods;
+        return model;
     }
 
     private static boolean hasLikeMethodSignature(CtMethod ctMethod, CtClass matchedCtClass, CtClass matcherCtClass) {
@@ -65,7 +91,38 @@ public class MatcherInterfaceWrapper<TM> {
 
         return parameterTypes.length == 1 &&
                 ctMethod.getName().equals("like") &&
-                JavassistClassUtils.isTypeInBounds(returnType, matcherCtClass, SmogTypes.getHamcrestMatcherCtClass()) &&
+                JavassistClassUtils.isTypeInBounds(returnType, matcherCtClass, SmogTypes.getHamcrestMatcherCtClass(matcherCtClass.getClassPool())) &&
                 JavassistClassUtils.isSubTypeOf(matchedCtClass, parameterTypes[0]);
     }
+
+    /**
+     * The details of a matcher interface that are needed to generate its implementation. Since it is cached
+     * in the class pool, it refers only to the pool's classes and not to any loaded classes.
+     */
+    private static final class MatcherInterfaceModel {
+        private final String matchedClassDescription;
+        private final CtClass matchedCtClass;
+        private final List<MatcherMethodWrapper> matcherMethods;
+        private final List<CtMethod> likeMethods;
+
+        private MatcherInterfaceModel(MatchesAnnotationWrapper matchesAnnotation, CtClass matcherCtInterface) {
+            this.matchedClassDescription = matchesAnnotation.getMatchedClassDescription();
+            this.matchedCtClass = JavassistClassUtils.getCtClass(matcherCtInterface.getClassPool(),
+                    matchesAnnotation.getMatchedClass().getName());
+
+            final List<MatcherMethodWrapper> matcherMethods = new ArrayList<MatcherMethodWrapper>();
+            final List<CtMethod> likeMethods = new ArrayList<CtMethod>();
+
+            for (CtMethod method : JavassistClassUtils.getMethods(matcherCtInterface)) {
+                if (MatcherMethodWrapper.hasMatcherMethodSignature(method, matcherCtInterface)) {
+                    matcherMethods.add(MatcherMethodWrapper.forMethod(method));
+                } else if (hasLikeMethodSignature(method, matchedCtClass, matcherCtInterface)) {
+                    likeMethods.add(method);
+                }
+            }
+
+            this.matcherMethods = Collections.unmodifiableList(matcherMethods);
+            this.likeMethods = Collections.unmodifiableList(likeMethods);
+        }
+    }
 }
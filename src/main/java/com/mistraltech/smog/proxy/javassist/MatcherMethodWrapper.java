@@ -2,23 +2,68 @@ package com.mistraltech.smog.proxy.javassist;
 
 import com.mistraltech.smog.core.annotation.MatchesProperty;
 import com.mistraltech.smog.proxy.javassist.util.JavassistClassUtils;
+import javassist.ClassPool;
 import javassist.CtClass;
 import javassist.CtMethod;
-import org.hamcrest.Matcher;
+
+import java.util.concurrent.ConcurrentMap;
 
 import static com.mistraltech.smog.proxy.javassist.util.NameUtils.deCapitalise;
 import static com.mistraltech.smog.proxy.javassist.util.NameUtils.removePrefix;
 
+/**
+ * Wraps a matcher method, resolving the details needed to generate its implementation when it is created.
+ * <p>
+ * Instances are immutable. Those obtained from {@link #forMethod(CtMethod)} are cached in the class pool of the
+ * method's declaring interface, so that a method inherited by several matcher interfaces is resolved only once.
+ */
 public class MatcherMethodWrapper {
     private static final String MATCHER_METHOD_PREFIX = "has";
+    private static final String MATCHER_METHOD_CACHE = MatcherMethodWrapper.class.getName();
 
     private final CtMethod matcherMethod;
+    private final String matchedPropertyName;
+    private final CtClass parameterType;
+    private final boolean takesHamcrestMatcher;
 
     public MatcherMethodWrapper(CtMethod matcherMethod) {
         this.matcherMethod = matcherMethod;
+        this.matchedPropertyName = resolveMatchedPropertyName(matcherMethod);
+        this.parameterType = JavassistClassUtils.getSingleParameterType(matcherMethod);
+        this.takesHamcrestMatcher = isHamcrestMatcher(parameterType, matcherMethod.getDeclaringClass().getClassPool());
+    }
+
+    /**
+     * Get the wrapper for a matcher method, creating it if it is not already cached.
+     *
+     * @param matcherMethod the matcher method
+     * @return the wrapper
+     */
+    public static MatcherMethodWrapper forMethod(CtMethod matcherMethod) {
+        final CtClass declaringClass = matcherMethod.getDeclaringClass();
+        final ConcurrentMap<String, MatcherMethodWrapper> cache =
+                JavassistClassUtils.getCache(declaringClass.getClassPool(), MATCHER_METHOD_CACHE);
+        final String key = declaringClass.getName() + "." + matcherMethod.getName() + matcherMethod.getSignature();
+
+        MatcherMethodWrapper matcherMethodWrapper = cache.get(key);
+
+        if (matcherMethodWrapper == null) {
+            matcherMethodWrapper = new MatcherMethodWrapper(matcherMethod);
+            final MatcherMethodWrapper cachedMatcherMethodWrapper = cache.putIfAbsent(key, matcherMethodWrapper);
+
+            if (cachedMatcherMethodWrapper != null) {
+                matcherMethodWrapper = cachedMatcherMethodWrapper;
+            }
+        }
+
+        return matcherMethodWrapper;
     }
 
     public String getMatchedPropertyName() {
+        return matchedPropertyName;
+    }
+
+    private static String resolveMatchedPropertyName(CtMethod matcherMethod) {
         final MatchesProperty matchesPropertyAnnotation = JavassistClassUtils.getAnnotation(matcherMethod, MatchesProperty.class);
 
         if (matchesPropertyAnnotation != null) {
@@ -55,13 +100,13 @@ public class MatcherMethodWrapper {
 
     private static boolean hasMatcherMethodReturnType(CtMethod ctMethod, CtClass matcherCtClass) {
         final CtClass returnType = JavassistClassUtils.getReturnType(ctMethod);
-        final CtClass hamcrestMatcherCtClass = JavassistClassUtils.getCtClass(Matcher.class.getName());
+        final CtClass hamcrestMatcherCtClass = SmogTypes.getHamcrestMatcherCtClass(matcherCtClass.getClassPool());
 
         return JavassistClassUtils.isTypeInBounds(returnType, matcherCtClass, hamcrestMatcherCtClass);
     }
 
     public CtClass getParameterType() {
-        return JavassistClassUtils.getSingleParameterType(matcherMethod);
+        return parameterType;
     }
 
     public String getName() {
@@ -69,11 +114,11 @@ public class MatcherMethodWrapper {
     }
 
     public boolean takesHamcrestMatcher() {
-        return isHamcrestMatcher(getParameterType());
+        return takesHamcrestMatcher;
     }
 
-    private static boolean isHamcrestMatcher(CtClass parameterType) {
-        final CtClass hamcrestMatcherCtClass = JavassistClassUtils.getCtClass(Matcher.class.getName());
+    private static boolean isHamcrestMatcher(CtClass parameterType, ClassPool classPool) {
+        final CtClass hamcrestMatcherCtClass = SmogTypes.getHamcrestMatcherCtClass(classPool);
         return JavassistClassUtils.isSubTypeOf(parameterType, hamcrestMatcherCtClass);
     }
 
@@ -0,0 +1,331 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records how matcher classes are made available, how long they take to generate, and how often matchers are
+ * matched, so that the cost of the library can be monitored.
+ * <p>
+ * The figures can be read directly, through JMX once {@link #registerMBean()} has been called, or by adding a
+ * {@link MatcherClassListener} that is told about each matcher class as it is made available. An exception thrown by
+ * a listener is logged and otherwise ignored.
+ * <p>
+ * Counting matches adds a little to each match, so it is only done by matcher classes generated while the
+ * {@value #COUNT_MATCHES_PROPERTY} system property is set to true.
+ */
+public final class MatcherMetrics implements MatcherMetricsMXBean {
+    public static final String COUNT_MATCHES_PROPERTY = "smog.javassist.countMatches";
+
+    /**
+     * The name that the MBean is registered under.
+     */
+    public static final String OBJECT_NAME = "com.mistraltech.smog:type=MatcherMetrics";
+
+    private static final MatcherMetrics INSTANCE = new MatcherMetrics();
+
+    private static final Logger LOGGER = Logger.getLogger(MatcherMetrics.class.getName());
+
+    private final AtomicLong generatedClassCount = new AtomicLong();
+    private final AtomicLong bytecodeCacheHitCount = new AtomicLong();
+    private final AtomicLong preGeneratedClassCount = new AtomicLong();
+    private final AtomicLong specializedClassCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong totalGenerationNanos = new AtomicLong();
+    private final AtomicLong maxGenerationNanos = new AtomicLong();
+    private final AtomicLong totalBytecodeLength = new AtomicLong();
+    private final ConcurrentMap<String, Long> generationNanos = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentMap<String, Integer> bytecodeLengths = new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentMap<String, AtomicLong> matchCounters = new ConcurrentHashMap<String, AtomicLong>();
+    private final CopyOnWriteArrayList<MatcherClassListener> listeners = new CopyOnWriteArrayList<MatcherClassListener>();
+
+    private MatcherMetrics() {
+    }
+
+    /**
+     * @return the metrics of the matcher classes made available by this copy of the library
+     */
+    public static MatcherMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the counter of the matches of the matchers for a matcher interface. Called by the static initializer of
+     * generated matcher classes that count their matches.
+     *
+     * @param arguments the name of the matcher interface
+     * @return the counter
+     */
+    public static AtomicLong getMatchCounter(String[] arguments) {
+        final String matcherInterfaceName = arguments[0];
+        final AtomicLong matchCounter = INSTANCE.matchCounters.get(matcherInterfaceName);
+
+        if (matchCounter != null) {
+            return matchCounter;
+        }
+
+        final AtomicLong newMatchCounter = new AtomicLong();
+        final AtomicLong existingMatchCounter = INSTANCE.matchCounters.putIfAbsent(matcherInterfaceName, newMatchCounter);
+
+        return existingMatchCounter != null ? existingMatchCounter : newMatchCounter;
+    }
+
+    /**
+     * Add a listener to be told about each matcher class made available from now on.
+     *
+     * @param listener the listener
+     */
+    public void addListener(MatcherClassListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove a listener.
+     *
+     * @param listener the listener
+     */
+    public void removeListener(MatcherClassListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Register these metrics with the platform MBean server under {@value #OBJECT_NAME}. Does nothing if they are
+     * already registered.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, getObjectName());
+        } catch (InstanceAlreadyExistsException e) {
+            // Already registered, possibly by another copy of the library
+        } catch (JMException e) {
+            throw new RuntimeException("Failed to register MBean " + OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     * Unregister these metrics from the platform MBean server. Does nothing if they are not registered.
+     */
+    public void unregisterMBean() {
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            mBeanServer.unregisterMBean(getObjectName());
+        } catch (InstanceNotFoundException e) {
+            // Not registered
+        } catch (JMException e) {
+            throw new RuntimeException("Failed to unregister MBean " + OBJECT_NAME, e);
+        }
+    }
+
+    private static ObjectName getObjectName() throws MalformedObjectNameException {
+        return new ObjectName(OBJECT_NAME);
+    }
+
+    @Override
+    public long getGeneratedClassCount() {
+        return generatedClassCount.get();
+    }
+
+    @Override
+    public long getBytecodeCacheHitCount() {
+        return bytecodeCacheHitCount.get();
+    }
+
+    @Override
+    public long getPreGeneratedClassCount() {
+        return preGeneratedClassCount.get();
+    }
+
+    @Override
+    public long getSpecializedClassCount() {
+        return specializedClassCount.get();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    @Override
+    public double getCachedClassRatio() {
+        final long hitCount = getBytecodeCacheHitCount() + getPreGeneratedClassCount();
+        final long totalCount = hitCount + getGeneratedClassCount();
+
+        return totalCount == 0 ? 0.0 : (double) hitCount / totalCount;
+    }
+
+    @Override
+    public long getTotalGenerationNanos() {
+        return totalGenerationNanos.get();
+    }
+
+    @Override
+    public long getMaxGenerationNanos() {
+        return maxGenerationNanos.get();
+    }
+
+    @Override
+    public long getTotalBytecodeLength() {
+        return totalBytecodeLength.get();
+    }
+
+    @Override
+    public Map<String, Long> getGenerationNanos() {
+        return new TreeMap<String, Long>(generationNanos);
+    }
+
+    @Override
+    public Map<String, Integer> getBytecodeLengths() {
+        return new TreeMap<String, Integer>(bytecodeLengths);
+    }
+
+    @Override
+    public Map<String, Long> getMatchCounts() {
+        final Map<String, Long> matchCounts = new TreeMap<String, Long>();
+
+        for (Map.Entry<String, AtomicLong> matchCounter : matchCounters.entrySet()) {
+            matchCounts.put(matchCounter.getKey(), matchCounter.getValue().get());
+        }
+
+        return matchCounts;
+    }
+
+    @Override
+    public boolean isMatchCountingEnabled() {
+        return isMatchCounting();
+    }
+
+    /**
+     * Set all the figures back to zero. Listeners are not removed.
+     */
+    @Override
+    public void reset() {
+        generatedClassCount.set(0);
+        bytecodeCacheHitCount.set(0);
+        preGeneratedClassCount.set(0);
+        specializedClassCount.set(0);
+        failureCount.set(0);
+        totalGenerationNanos.set(0);
+        maxGenerationNanos.set(0);
+        totalBytecodeLength.set(0);
+        generationNanos.clear();
+        bytecodeLengths.clear();
+
+        // The counters are held by the matcher classes, so they are kept
+        for (AtomicLong matchCounter : matchCounters.values()) {
+            matchCounter.set(0);
+        }
+    }
+
+    /**
+     * @return true if matcher classes should be generated to count their matches
+     */
+    static boolean isMatchCounting() {
+        return Boolean.getBoolean(COUNT_MATCHES_PROPERTY);
+    }
+
+    /**
+     * Record that a matcher class has been made available, tell the listeners, and report it to
+     * {@link MatcherFlightRecorder}.
+     *
+     * @param matcherInterface the matcher interface
+     * @param matcherClass the matcher class
+     * @param source where the matcher class came from
+     * @param startNanos the value of {@link System#nanoTime()} when work on the matcher class started
+     * @param bytecodeLength the length of the class file, or -1 if it is not known
+     */
+    void recordMatcherClass(Class<?> matcherInterface, Class<?> matcherClass, MatcherClassEvent.Source source,
+                            long startNanos, int bytecodeLength) {
+        final long nanos = System.nanoTime() - startNanos;
+        final String matcherInterfaceName = matcherInterface.getName();
+
+        switch (source) {
+            case GENERATED:
+                generatedClassCount.incrementAndGet();
+                totalGenerationNanos.addAndGet(nanos);
+                updateMax(maxGenerationNanos, nanos);
+                generationNanos.put(matcherInterfaceName, nanos);
+                break;
+            case BYTECODE_CACHE:
+                bytecodeCacheHitCount.incrementAndGet();
+                break;
+            case PRE_GENERATED:
+                preGeneratedClassCount.incrementAndGet();
+                break;
+            case SPECIALIZED:
+                specializedClassCount.incrementAndGet();
+                break;
+        }
+
+        if (bytecodeLength >= 0) {
+            totalBytecodeLength.addAndGet(bytecodeLength);
+
+            // The length given for each matcher interface is that of its matcher class, not of the classes
+            // specialized from it
+            if (source != MatcherClassEvent.Source.SPECIALIZED) {
+                bytecodeLengths.put(matcherInterfaceName, bytecodeLength);
+            }
+        }
+
+        if (!listeners.isEmpty()) {
+            final MatcherClassEvent event = new MatcherClassEvent(matcherInterface, source, nanos, bytecodeLength);
+
+            for (MatcherClassListener listener : listeners) {
+                try {
+                    listener.matcherClassCreated(event);
+                } catch (RuntimeException e) {
+                    logListenerFailure(listener, matcherInterface, e);
+                }
+            }
+        }
+
+        MatcherFlightRecorder.recordMatcherClass(matcherInterface, matcherClass, source, nanos, bytecodeLength);
+    }
+
+    /**
+     * Record that a matcher class could not be made available, and tell the listeners.
+     *
+     * @param matcherInterface the matcher interface
+     * @param cause the reason for the failure
+     */
+    void recordFailure(Class<?> matcherInterface, Throwable cause) {
+        failureCount.incrementAndGet();
+
+        for (MatcherClassListener listener : listeners) {
+            try {
+                listener.matcherClassFailed(matcherInterface, cause);
+            } catch (RuntimeException e) {
+                logListenerFailure(listener, matcherInterface, e);
+            }
+        }
+    }
+
+    /**
+     * Log an exception thrown by a listener. The matcher class has already been made available, or has already
+     * failed, so the exception must not change the outcome for the caller.
+     */
+    private static void logListenerFailure(MatcherClassListener listener, Class<?> matcherInterface, RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Matcher class listener " + listener + " failed for " + matcherInterface.getName(), e);
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long currentMax = max.get();
+
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+}
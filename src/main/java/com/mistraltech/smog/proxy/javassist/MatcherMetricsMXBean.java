@@ -0,0 +1,87 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link MatcherMetrics}, registered by {@link MatcherMetrics#registerMBean()}.
+ * <p>
+ * Matcher classes are identified by the names of their matcher interfaces. The figures for matcher interfaces of
+ * the same name in different class loaders are combined.
+ */
+public interface MatcherMetricsMXBean {
+
+    /**
+     * @return the number of matcher classes generated with Javassist
+     */
+    long getGeneratedClassCount();
+
+    /**
+     * @return the number of matcher classes defined from class files in the bytecode cache directory
+     */
+    long getBytecodeCacheHitCount();
+
+    /**
+     * @return the number of matcher classes loaded from class files generated during the build
+     */
+    long getPreGeneratedClassCount();
+
+    /**
+     * @return the number of classes specialized for the configurations of frozen matchers
+     */
+    long getSpecializedClassCount();
+
+    /**
+     * @return the number of failed attempts to make a matcher class available
+     */
+    long getFailureCount();
+
+    /**
+     * Matcher classes are made available once per matcher interface and class loader, so matchers created for a
+     * matcher class that is already available are not counted.
+     *
+     * @return the proportion of matcher classes made available that were not generated, because they were defined
+     * from the bytecode cache or pre-generated
+     */
+    double getCachedClassRatio();
+
+    /**
+     * @return the total time taken to generate matcher classes, in nanoseconds
+     */
+    long getTotalGenerationNanos();
+
+    /**
+     * @return the longest time taken to generate a matcher class, in nanoseconds
+     */
+    long getMaxGenerationNanos();
+
+    /**
+     * @return the total length of the class files of the matcher classes that were generated or cached
+     */
+    long getTotalBytecodeLength();
+
+    /**
+     * @return the time taken to generate each generated matcher class, in nanoseconds, keyed by matcher interface
+     */
+    Map<String, Long> getGenerationNanos();
+
+    /**
+     * @return the length of the class file of each generated or cached matcher class, keyed by matcher interface
+     */
+    Map<String, Integer> getBytecodeLengths();
+
+    /**
+     * @return the number of times each matcher has been matched against an object, keyed by matcher interface; only
+     * counted when match counting is enabled
+     */
+    Map<String, Long> getMatchCounts();
+
+    /**
+     * @return true if matcher classes generated from now on count their matches
+     */
+    boolean isMatchCountingEnabled();
+
+    /**
+     * Set all the figures back to zero.
+     */
+    void reset();
+}
@@ -0,0 +1,21 @@
+package com.mistraltech.smog.proxy.javassist;
+
+/**
+ * A test of whether an object matches, for filtering objects rather than describing them.
+ * <p>
+ * This has the same shape as Java 8's {@code java.util.function.Predicate}, which this library cannot depend on, so a
+ * predicate can be adapted to one with a method reference, as in {@code stream.filter(predicate::test)}.
+ *
+ * @param <T> the type of the tested objects
+ * @see JavassistMatcherGenerator#toPredicate(org.hamcrest.Matcher)
+ */
+public interface MatcherPredicate<T> {
+
+    /**
+     * Test whether an object matches.
+     *
+     * @param item the object, which may be null
+     * @return true if the object matches
+     */
+    boolean test(T item);
+}
@@ -0,0 +1,101 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Records the position at which a generated matcher's fail-fast match of an object stopped, so that a mismatch
+ * description requested straight afterwards does not have to match the properties before it again.
+ * <p>
+ * Hamcrest and Mockito call describeMismatch with the object that has just failed to match. The generated matcher
+ * then skips the properties before the recorded position, which are known to match, and describes the object from
+ * the property that did not match onwards, reading it again. If nothing from that position onwards turns out not to
+ * match, the object is described from the first property after all.
+ * <p>
+ * Each thread keeps only its own last record, which is used once. The matcher and the object are held through weak
+ * references and recognised by identity, so that the record neither keeps them alive nor is used for another object,
+ * and the matcher's configuration is recognised by the number of times it has been configured, so that a record made
+ * before the matcher was configured again is not used. This relies on the object not being changed between the match
+ * and the description. Used by generated matcher classes.
+ */
+public final class RecordedMismatch {
+    private static final int MATCHER = 0;
+    private static final int ITEM = 1;
+    private static final int POSITIONS = 2;
+
+    private static final int CONFIGURATION_COUNT = 0;
+    private static final int NEXT_POSITION = 1;
+
+    /**
+     * The last record of each thread: a weak reference to the matcher, a weak reference to the object and an int array
+     * of the configuration count and the next position. Only JDK types are held, so that a thread does not keep the
+     * library's class loader reachable.
+     */
+    private static final ThreadLocal<Object[]> RECORDS = new ThreadLocal<Object[]>();
+
+    private RecordedMismatch() {
+    }
+
+    /**
+     * Record the property at which a fail-fast match stopped, replacing the current thread's last record.
+     *
+     * @param matcher the matcher
+     * @param configurationCount the number of times the matcher has been configured
+     * @param item the object that did not match
+     * @param position the position of the property that did not match, in the order the properties were configured
+     */
+    public static void record(Object matcher, int configurationCount, Object item, int position) {
+        Object[] record = RECORDS.get();
+
+        if (record == null) {
+            record = new Object[] {null, null, new int[2]};
+            RECORDS.set(record);
+        }
+
+        if (referent(record[MATCHER]) != matcher) {
+            record[MATCHER] = new WeakReference<Object>(matcher);
+        }
+
+        if (referent(record[ITEM]) != item) {
+            record[ITEM] = new WeakReference<Object>(item);
+        }
+
+        final int[] positions = (int[]) record[POSITIONS];
+        positions[CONFIGURATION_COUNT] = configurationCount;
+        positions[NEXT_POSITION] = position + 1;
+    }
+
+    /**
+     * Take the position recorded by the current thread for a matcher and an object, discarding the record.
+     *
+     * @param matcher the matcher
+     * @param configurationCount the number of times the matcher has been configured
+     * @param item the object being described
+     * @return the position of the property that did not match, from which the properties are to be matched, or 0 if
+     * there is no record of the object for the matcher as it is currently configured
+     */
+    public static int takeRecordedPosition(Object matcher, int configurationCount, Object item) {
+        final Object[] record = RECORDS.get();
+
+        if (record == null) {
+            return 0;
+        }
+
+        final int[] positions = (int[]) record[POSITIONS];
+
+        if (positions[NEXT_POSITION] == 0) {
+            return 0;
+        }
+
+        final boolean recorded = referent(record[MATCHER]) == matcher &&
+                positions[CONFIGURATION_COUNT] == configurationCount &&
+                referent(record[ITEM]) == item;
+        final int position = positions[NEXT_POSITION] - 1;
+        positions[NEXT_POSITION] = 0;
+
+        return recorded ? position : 0;
+    }
+
+    private static Object referent(Object reference) {
+        return reference == null ? null : ((WeakReference<?>) reference).get();
+    }
+}
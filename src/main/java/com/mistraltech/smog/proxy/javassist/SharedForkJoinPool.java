@@ -0,0 +1,41 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * The fork/join pool that parallel work runs on when the caller does not give a pool of its own.
+ * <p>
+ * The pool is created on first use, with a thread for each available processor, and is shared so that each call does
+ * not pay for starting threads. Its threads are daemon threads, which the pool stops once they have been idle for a
+ * while. Their context class loader is that of this library, so that they do not keep alive the class loader of
+ * whichever thread happened to start them.
+ */
+final class SharedForkJoinPool {
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+            new WorkerThreadFactory(), null, false);
+
+    private SharedForkJoinPool() {
+    }
+
+    /**
+     * @return the shared pool
+     */
+    static ForkJoinPool get() {
+        return POOL;
+    }
+
+    private static final class WorkerThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            return new WorkerThread(pool);
+        }
+    }
+
+    private static final class WorkerThread extends ForkJoinWorkerThread {
+        private WorkerThread(ForkJoinPool pool) {
+            super(pool);
+            setContextClassLoader(SharedForkJoinPool.class.getClassLoader());
+        }
+    }
+}
@@ -2,15 +2,21 @@ package com.mistraltech.smog.proxy.javassist;
 
 import com.mistraltech.smog.core.MatchAccumulator;
 import com.mistraltech.smog.proxy.javassist.util.JavassistClassUtils;
+import javassist.ClassPool;
 import javassist.CtClass;
+import org.hamcrest.Description;
 import org.hamcrest.Matcher;
 
 public class SmogTypes {
-    public static CtClass getMatchAccumulatorCtClass() {
-        return JavassistClassUtils.getCtClass(MatchAccumulator.class.getName());
+    public static CtClass getMatchAccumulatorCtClass(ClassPool classPool) {
+        return JavassistClassUtils.getCtClass(classPool, MatchAccumulator.class.getName());
     }
 
-    public static CtClass getHamcrestMatcherCtClass() {
-        return JavassistClassUtils.getCtClass(Matcher.class.getName());
+    public static CtClass getHamcrestMatcherCtClass(ClassPool classPool) {
+        return JavassistClassUtils.getCtClass(classPool, Matcher.class.getName());
+    }
+
+    public static CtClass getHamcrestDescriptionCtClass(ClassPool classPool) {
+        return JavassistClassUtils.getCtClass(classPool, Description.class.getName());
     }
 }
@@ -0,0 +1,658 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.core.PropertyMatcher;
+import com.mistraltech.smog.core.ReflectingPropertyMatcher;
+import com.mistraltech.smog.proxy.javassist.SpecializedMatcherLayout.SpecializedProperty;
+import com.mistraltech.smog.proxy.javassist.util.JavassistClassUtils;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.Modifier;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.mistraltech.smog.proxy.javassist.MatcherClassLayout.getExpectedValueFieldName;
+import static com.mistraltech.smog.proxy.javassist.MatcherClassLayout.getHasExpectedValueFieldName;
+import static com.mistraltech.smog.proxy.javassist.MatcherClassLayout.getPropertyMatcherFieldName;
+
+/**
+ * Generates the code of a matcher class as Java source, which is compiled by the Javassist compiler.
+ */
+final class SourceMatcherCodeBackend implements MatcherCodeBackend {
+
+    @Override
+    public void generateConstructor(MatcherClassLayout layout) {
+        final String description = layout.getMatcherInterface().getMatchedClassDescription();
+
+        final String constructorBody;
+        if (layout.isPassingMatchedType()) {
+            constructorBody = String.format("{ super(\"%s\", %s.class); }", description, layout.getMatchedClass().getName());
+        } else {
+            constructorBody = String.format("{ super(\"%s\"); }", description);
+        }
+
+        JavassistClassUtils.addConstructor(layout.getGeneratedClass(), constructorBody);
+    }
+
+    @Override
+    public void generateConfiguredPropertyTracking(MatcherClassLayout layout) {
+        final String body = String.format("{\n" +
+                "if (this.configuredProperties == null) { this.configuredProperties = new int[%d]; }\n" +
+                "int i = this.configuredPropertyCount;\n" +
+                "while (i > 0 && this.configuredProperties[i - 1] > $1) {\n" +
+                "this.configuredProperties[i] = this.configuredProperties[i - 1];\n" +
+                "i--;\n" +
+                "}\n" +
+                "this.configuredProperties[i] = $1;\n" +
+                "this.configuredPropertyCount = this.configuredPropertyCount + 1;\n" +
+                "}\n", layout.getDirectProperties().size());
+
+        JavassistClassUtils.addMethod(layout.getGeneratedClass(), Modifier.PRIVATE, "addConfiguredProperty",
+                new CtClass[]{CtClass.intType}, body, CtClass.voidType);
+    }
+
+    @Override
+    public void generateMatcherMethod(MatcherClassLayout layout, MatcherMethodWrapper matcherMethodDecl) {
+        final String propertyName = matcherMethodDecl.getMatchedPropertyName();
+        final String propertyMatcherFieldName = getPropertyMatcherFieldName(propertyName);
+
+        final String propertyMatcherCreation = generatePropertyMatcherCreation(layout, propertyName, "this");
+
+        // The property matcher is always given a hamcrest matcher, which describes the expectation, even when
+        // the generated code compares a primitive property with the expected value itself
+        final String expectedValueAssignment;
+        if (!layout.isPrimitiveProperty(propertyName)) {
+            expectedValueAssignment = "";
+        } else if (layout.takesPrimitiveExpectedValue(matcherMethodDecl)) {
+            expectedValueAssignment = String.format(" this.%s = $1; this.%s = true;",
+                    getExpectedValueFieldName(propertyName), getHasExpectedValueFieldName(propertyName));
+        } else {
+            expectedValueAssignment = String.format(" this.%s = false;", getHasExpectedValueFieldName(propertyName));
+        }
+
+        // Counting the configurations of a fail-fast matcher stops a mismatch recorded before it was configured
+        // again from being used to describe it
+        final String configurationCount = layout.isFailFast() ? String.format(" this.%s = this.%s + 1;",
+                MatcherClassLayout.CONFIGURATION_COUNT_FIELD_NAME, MatcherClassLayout.CONFIGURATION_COUNT_FIELD_NAME) : "";
+
+        final String methodBody = generateMatcherMethodBody(propertyMatcherFieldName, propertyMatcherCreation,
+                configurationCount + expectedValueAssignment, matcherMethodDecl);
+
+        JavassistClassUtils.addMethod(layout.getGeneratedClass(), Modifier.PUBLIC, matcherMethodDecl.getCtMethod(), methodBody);
+    }
+
+    /**
+     * Generate the statements that create the property matcher of a property of a matcher when the property is first
+     * configured. Where the generated class can call the property's read method directly, it passes the property
+     * value to a plain property matcher. Otherwise the property matcher reads the value reflectively.
+     *
+     * @param layout the layout of the matcher class
+     * @param propertyName the name of the property
+     * @param matcher the expression giving the matcher whose property is configured
+     */
+    private static String generatePropertyMatcherCreation(MatcherClassLayout layout, String propertyName,
+                                                          String matcher) {
+        final String propertyMatcherFieldName = getPropertyMatcherFieldName(propertyName);
+        final int directPropertyIndex = layout.getDirectProperties().indexOf(propertyName);
+
+        if (directPropertyIndex >= 0) {
+            return String.format("%s.%s = new %s(\"%s\", %s); %s.addConfiguredProperty(%d);", matcher,
+                    propertyMatcherFieldName, PropertyMatcher.class.getName(), propertyName, matcher, matcher,
+                    directPropertyIndex);
+        }
+
+        return String.format("%s.%s = new %s(\"%s\", %s);%s", matcher, propertyMatcherFieldName,
+                ReflectingPropertyMatcher.class.getName(), propertyName, matcher,
+                layout.isTrackingReflectingProperties() ? " " + matcher + ".reflectingPropertyConfigured = true;" : "");
+    }
+
+    private static String generateMatcherMethodBody(String propertyMatcherName, String propertyMatcherCreation,
+                                                    String expectedValueAssignment, MatcherMethodWrapper matcherMethod) {
+        final String propertyMatcherInitialization = String.format(
+                "%s.checkConfigurable(this.%s); if (this.%s == null) { %s }", FrozenMatcher.class.getName(),
+                MatcherClassLayout.FROZEN_FIELD_NAME, propertyMatcherName, propertyMatcherCreation);
+
+        if (matcherMethod.takesHamcrestMatcher()) {
+            return String.format("{ %s this.%s.setMatcher($1);%s return this; }",
+                    propertyMatcherInitialization, propertyMatcherName, expectedValueAssignment);
+        } else {
+            return String.format("{ %s this.%s.setMatcher(org.hamcrest.CoreMatchers.equalTo(($w)$1));%s return this; }",
+                    propertyMatcherInitialization, propertyMatcherName, expectedValueAssignment);
+        }
+    }
+
+    @Override
+    public void generateLikeMethod(MatcherClassLayout layout, CtMethod likeMethod,
+                                   Map<MatcherMethodWrapper, CtMethod> propertyCopies) {
+        final StringBuilder bodyBuilder = new StringBuilder();
+        bodyBuilder.append("{\n");
+
+        for (Map.Entry<MatcherMethodWrapper, CtMethod> propertyCopy : propertyCopies.entrySet()) {
+            bodyBuilder.append(propertyCopy.getKey().getName())
+                    .append("($1.").append(propertyCopy.getValue().getName()).append("());\n");
+        }
+
+        bodyBuilder.append("return this;\n");
+        bodyBuilder.append("}\n");
+
+        JavassistClassUtils.addMethod(layout.getGeneratedClass(), Modifier.PUBLIC, likeMethod, bodyBuilder.toString());
+    }
+
+    @Override
+    public void generateDescribeToMethod(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final CtClass descriptionCtClass = SmogTypes.getHamcrestDescriptionCtClass(generatedClass.getClassPool());
+
+        final StringBuilder propertyMatchers = new StringBuilder();
+        for (String propertyName : layout.getPropertyNames()) {
+            if (propertyMatchers.length() > 0) {
+                propertyMatchers.append(", ");
+            }
+
+            propertyMatchers.append("this.").append(getPropertyMatcherFieldName(propertyName));
+        }
+
+        final String body = String.format("{ %s.describeTo($1, \"%s\", new %s[]{%s}); }",
+                MatcherDescriptions.class.getName(), layout.getMatcherInterface().getMatchedClassDescription(),
+                PropertyMatcher.class.getName(), propertyMatchers);
+
+        JavassistClassUtils.addMethod(generatedClass, Modifier.PUBLIC, "describeTo", new CtClass[]{descriptionCtClass},
+                body, CtClass.voidType);
+    }
+
+    @Override
+    public void generateMatchesSafelyMethod(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final CtClass matchAccumulatorCtClass = SmogTypes.getMatchAccumulatorCtClass(generatedClass.getClassPool());
+
+        final CtClass[] parameters = new CtClass[]{layout.getMatchedClass(), matchAccumulatorCtClass};
+
+        final StringBuilder bodyBuilder = new StringBuilder();
+        bodyBuilder.append("{\n");
+
+        // The property times are taken before the reflectively read properties are matched, whose matchers may time
+        // matches of their own
+        appendPropertyTimingStart(bodyBuilder, layout);
+        bodyBuilder.append("super.matchesSafely($1, $2);\n");
+
+        if (layout.hasDirectProperties()) {
+            final List<String> propertyChecks = new ArrayList<String>();
+
+            for (String propertyName : layout.getDirectProperties()) {
+                propertyChecks.add(generateTimedPropertyCheck(layout, propertyName,
+                        generateAccumulatingPropertyCheck(layout, propertyName)));
+            }
+
+            if (layout.isFailFast()) {
+                appendRecordedPositionLoop(bodyBuilder, propertyChecks);
+            } else {
+                appendConfiguredPropertySwitch(bodyBuilder, "0", propertyChecks);
+            }
+        }
+
+        bodyBuilder.append("}\n");
+
+        JavassistClassUtils.addMethod(generatedClass, Modifier.PROTECTED, "matchesSafely", parameters,
+                bodyBuilder.toString(), CtClass.voidType);
+
+        if (layout.hasDirectProperties()) {
+            generateMatchesSafelyBridgeMethod(layout);
+        }
+    }
+
+    /**
+     * Generate the statement that matches a property and records any mismatch in the match accumulator. A primitive
+     * property that equals its expected value is a match without consulting the property matcher, so the property
+     * value is only boxed if it needs to be described as a mismatch.
+     */
+    private static String generateAccumulatingPropertyCheck(MatcherClassLayout layout, String propertyName) {
+        final CtMethod readMethod = layout.getReadMethod(propertyName);
+        final String propertyMatcherFieldName = getPropertyMatcherFieldName(propertyName);
+
+        if (!layout.isPrimitiveProperty(propertyName)) {
+            return String.format("$2.matches(this.%s, ($w)$1.%s());", propertyMatcherFieldName, readMethod.getName());
+        }
+
+        final String valueVariableName = propertyName + "Value";
+
+        return String.format("{ %s %s = $1.%s(); if (!this.%s || !(%s)) { $2.matches(this.%s, ($w)%s); } }",
+                layout.getPropertyType(propertyName).getName(), valueVariableName, readMethod.getName(),
+                getHasExpectedValueFieldName(propertyName),
+                generateExpectedValueComparison(layout, propertyName, valueVariableName),
+                propertyMatcherFieldName, valueVariableName);
+    }
+
+    /**
+     * Generate the statement that matches a property and, if it does not match, records its position and returns
+     * false. A primitive property with an expected value is compared with it directly, so the property value is only
+     * boxed if it needs to be given to the property matcher.
+     */
+    private static String generateFailFastPropertyCheck(MatcherClassLayout layout, String propertyName) {
+        final CtMethod readMethod = layout.getReadMethod(propertyName);
+        final String propertyMatcherFieldName = getPropertyMatcherFieldName(propertyName);
+        final String valueVariableName = propertyName + "Value";
+        final String mismatch = String.format("{ %s%s.record(this, this.%s, $1, i); return false; }",
+                generatePropertyTimeAssignment(layout, propertyName), RecordedMismatch.class.getName(),
+                MatcherClassLayout.CONFIGURATION_COUNT_FIELD_NAME);
+
+        if (!layout.isPrimitiveProperty(propertyName)) {
+            return String.format("if (!this.%s.matches(($w)item.%s())) %s",
+                    propertyMatcherFieldName, readMethod.getName(), mismatch);
+        }
+
+        return String.format("{ %s %s = item.%s(); if (this.%s ? !(%s) : !this.%s.matches(($w)%s)) %s }",
+                layout.getPropertyType(propertyName).getName(), valueVariableName, readMethod.getName(),
+                getHasExpectedValueFieldName(propertyName),
+                generateExpectedValueComparison(layout, propertyName, valueVariableName),
+                propertyMatcherFieldName, valueVariableName, mismatch);
+    }
+
+    /**
+     * Append the declarations of the local variables used to time each property, taking the property times of the
+     * match from {@link MatcherFlightRecorder}, if the layout times properties.
+     *
+     * @param bodyBuilder the method body being built
+     * @param layout the layout of the matcher class
+     */
+    private static void appendPropertyTimingStart(StringBuilder bodyBuilder, MatcherClassLayout layout) {
+        if (layout.isTimingProperties()) {
+            bodyBuilder.append(String.format("long[] propertyNanos = %s.takePropertyTiming(%d);\n",
+                    MatcherFlightRecorder.class.getName(), layout.getDirectProperties().size()));
+            bodyBuilder.append("long propertyStartNanos = 0L;\n");
+        }
+    }
+
+    /**
+     * Generate the statement that times a property check as it is made, if the layout times properties. The property
+     * is only timed if {@link MatcherFlightRecorder} gave the match property times. A check that returns at a mismatch
+     * records the time itself.
+     */
+    private static String generateTimedPropertyCheck(MatcherClassLayout layout, String propertyName,
+                                                     String propertyCheck) {
+        if (!layout.isTimingProperties()) {
+            return propertyCheck;
+        }
+
+        return String.format("{ if (propertyNanos != null) { propertyStartNanos = System.nanoTime(); } %s %s}",
+                propertyCheck, generatePropertyTimeAssignment(layout, propertyName));
+    }
+
+    /**
+     * Generate the statement that records the time taken by a property check so far, or an empty string if the
+     * layout does not time properties.
+     */
+    private static String generatePropertyTimeAssignment(MatcherClassLayout layout, String propertyName) {
+        if (!layout.isTimingProperties()) {
+            return "";
+        }
+
+        return String.format("if (propertyNanos != null) { " +
+                        "propertyNanos[%d] = System.nanoTime() - propertyStartNanos; } ",
+                layout.getDirectProperties().indexOf(propertyName));
+    }
+
+    /**
+     * Generate an expression comparing a primitive property value with the expected value, with the same result as
+     * comparing them boxed with equals(). In particular, floating point values are compared by their bits, so that
+     * NaN equals NaN and positive and negative zero differ.
+     */
+    private static String generateExpectedValueComparison(MatcherClassLayout layout, String propertyName,
+                                                          String valueVariableName) {
+        final CtClass propertyType = layout.getPropertyType(propertyName);
+        final String expectedValueFieldName = getExpectedValueFieldName(propertyName);
+
+        if (propertyType == CtClass.doubleType) {
+            return String.format("Double.doubleToLongBits(%s) == Double.doubleToLongBits(this.%s)",
+                    valueVariableName, expectedValueFieldName);
+        }
+
+        if (propertyType == CtClass.floatType) {
+            return String.format("Float.floatToIntBits(%s) == Float.floatToIntBits(this.%s)",
+                    valueVariableName, expectedValueFieldName);
+        }
+
+        return String.format("%s == this.%s", valueVariableName, expectedValueFieldName);
+    }
+
+    /**
+     * Generate an override of the matchesSafely method that takes a mismatch description, which returns as soon
+     * as a configured property does not match when the description is a {@link Description.NullDescription}.
+     * Hamcrest passes a null description when only the result of the match is wanted, so a mismatch is then
+     * described only if it is requested separately. In all other cases the superclass's method is called, which
+     * accumulates a full description of the mismatch.
+     * <p>
+     * This is marked synthetic so that it is not mistaken for the generated method when finding the matched type.
+     */
+    @Override
+    public void generateFailFastMatchesSafelyMethod(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final ClassPool classPool = generatedClass.getClassPool();
+        final CtClass objectCtClass = JavassistClassUtils.getCtClass(classPool, Object.class.getName());
+        final CtClass descriptionCtClass = SmogTypes.getHamcrestDescriptionCtClass(classPool);
+        final String matchedClassName = layout.getMatchedClass().getName();
+
+        final List<String> propertyChecks = new ArrayList<String>();
+        for (String propertyName : layout.getDirectProperties()) {
+            propertyChecks.add(generateTimedPropertyCheck(layout, propertyName,
+                    generateFailFastPropertyCheck(layout, propertyName)));
+        }
+
+        final StringBuilder bodyBuilder = new StringBuilder();
+        bodyBuilder.append("{\n");
+        bodyBuilder.append(String.format("if (!($2 instanceof %s)%s) { return super.matchesSafely($1, $2); }\n",
+                Description.NullDescription.class.getName(),
+                layout.isTrackingReflectingProperties() ? " || this.reflectingPropertyConfigured" : ""));
+        bodyBuilder.append(String.format("%s item = (%s) $1;\n", matchedClassName, matchedClassName));
+        appendPropertyTimingStart(bodyBuilder, layout);
+        appendConfiguredPropertySwitch(bodyBuilder, "0", propertyChecks);
+        bodyBuilder.append("return true;\n");
+        bodyBuilder.append("}\n");
+
+        final CtClass[] parameters = new CtClass[]{objectCtClass, descriptionCtClass};
+
+        if (layout.isInstrumented()) {
+            JavassistClassUtils.addMethod(generatedClass, Modifier.PRIVATE, MatcherClassLayout.FAIL_FAST_METHOD_NAME,
+                    parameters, bodyBuilder.toString(), CtClass.booleanType);
+        } else {
+            JavassistClassUtils.addBridgeMethod(generatedClass, Modifier.PROTECTED, "matchesSafely", parameters,
+                    bodyBuilder.toString(), CtClass.booleanType);
+        }
+    }
+
+    @Override
+    public void generatePredicateMethod(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final CtClass objectCtClass = JavassistClassUtils.getCtClass(generatedClass.getClassPool(), Object.class.getName());
+
+        final StringBuilder bodyBuilder = new StringBuilder();
+        bodyBuilder.append("{\n");
+
+        if (layout.isFailFast()) {
+            final String matchedClassName = layout.getMatchedClass().getName();
+            final List<String> propertyChecks = new ArrayList<String>();
+
+            for (String propertyName : layout.getDirectProperties()) {
+                propertyChecks.add(generatePredicatePropertyCheck(layout, propertyName));
+            }
+
+            bodyBuilder.append(String.format("if (!($1 instanceof %s)%s) { return matches($1); }\n", matchedClassName,
+                    layout.isTrackingReflectingProperties() ? " || this.reflectingPropertyConfigured" : ""));
+            bodyBuilder.append(String.format("%s item = (%s) $1;\n", matchedClassName, matchedClassName));
+            appendConfiguredPropertySwitch(bodyBuilder, "0", propertyChecks);
+            bodyBuilder.append("return true;\n");
+        } else {
+            bodyBuilder.append("return matches($1);\n");
+        }
+
+        bodyBuilder.append("}\n");
+
+        JavassistClassUtils.addMethod(generatedClass, Modifier.PUBLIC, "test", new CtClass[]{objectCtClass},
+                bodyBuilder.toString(), CtClass.booleanType);
+    }
+
+    /**
+     * Generate the statement that tests a property and returns false if it does not match, without recording the
+     * mismatch. A generated matcher given for the property is tested with its own predicate.
+     */
+    private static String generatePredicatePropertyCheck(MatcherClassLayout layout, String propertyName) {
+        final CtMethod readMethod = layout.getReadMethod(propertyName);
+        final String propertyMatcherTest = String.format("%s.testPropertyMatcher(this.%s, ($w)%%s)",
+                FrozenMatcher.class.getName(), getPropertyMatcherFieldName(propertyName));
+
+        if (!layout.isPrimitiveProperty(propertyName)) {
+            return String.format("if (!%s) { return false; }",
+                    String.format(propertyMatcherTest, "item." + readMethod.getName() + "()"));
+        }
+
+        final String valueVariableName = propertyName + "Value";
+
+        return String.format("{ %s %s = item.%s(); if (this.%s ? !(%s) : !%s) { return false; } }",
+                layout.getPropertyType(propertyName).getName(), valueVariableName, readMethod.getName(),
+                getHasExpectedValueFieldName(propertyName),
+                generateExpectedValueComparison(layout, propertyName, valueVariableName),
+                String.format(propertyMatcherTest, valueVariableName));
+    }
+
+    @Override
+    public void generateInstrumentedMatchesSafelyMethod(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final ClassPool classPool = generatedClass.getClassPool();
+        final CtClass objectCtClass = JavassistClassUtils.getCtClass(classPool, Object.class.getName());
+        final CtClass descriptionCtClass = SmogTypes.getHamcrestDescriptionCtClass(classPool);
+
+        final StringBuilder bodyBuilder = new StringBuilder();
+        bodyBuilder.append("{\n");
+
+        // Only matches made without a mismatch description are counted, so that describing a mismatch does not
+        // count as another match
+        if (layout.isCountingMatches()) {
+            bodyBuilder.append(String.format("if ($2 instanceof %s) { %s.incrementAndGet(); }\n",
+                    Description.NullDescription.class.getName(), MatcherClassLayout.MATCH_COUNTER_FIELD_NAME));
+        }
+
+        if (layout.isTimingMatches()) {
+            bodyBuilder.append("long startNanos = System.nanoTime();\n");
+            bodyBuilder.append(layout.isTimingProperties()
+                    ? String.format("long[] propertyNanos = %s.startPropertyTiming(%d, startNanos);\n",
+                    MatcherFlightRecorder.class.getName(), layout.getDirectProperties().size())
+                    : "long[] propertyNanos = null;\n");
+        }
+
+        bodyBuilder.append(String.format("boolean result = %s($1, $2);\n",
+                layout.isFailFast() ? "this." + MatcherClassLayout.FAIL_FAST_METHOD_NAME : "super.matchesSafely"));
+
+        if (layout.isTimingMatches()) {
+            bodyBuilder.append("long matchNanos = System.nanoTime() - startNanos;\n");
+            bodyBuilder.append(String.format("if (matchNanos >= %dL) { %s.recordSlowMatch(this, $1, $2, result, " +
+                            "matchNanos, propertyNanos, \"%s\"); }\n", layout.getSlowMatchThresholdNanos(),
+                    MatcherFlightRecorder.class.getName(), layout.getDirectPropertyNameList()));
+
+            if (layout.isTimingProperties()) {
+                bodyBuilder.append(String.format("if (propertyNanos != null) { %s.finishPropertyTiming(propertyNanos); }\n",
+                        MatcherFlightRecorder.class.getName()));
+            }
+        }
+
+        bodyBuilder.append("return result;\n");
+        bodyBuilder.append("}\n");
+
+        JavassistClassUtils.addBridgeMethod(generatedClass, Modifier.PROTECTED, "matchesSafely",
+                new CtClass[]{objectCtClass, descriptionCtClass}, bodyBuilder.toString(), CtClass.booleanType);
+    }
+
+    /**
+     * Append a loop that matches the configured properties from the position recorded when the current thread has
+     * just failed to match the object, or else from the first. Should all the properties from the recorded position
+     * on match, which means that the object has changed or is not the one recorded, they are matched again from the
+     * first.
+     *
+     * @param bodyBuilder the method body being built
+     * @param propertyChecks the statement for each directly read property, in index order
+     */
+    private static void appendRecordedPositionLoop(StringBuilder bodyBuilder, List<String> propertyChecks) {
+        bodyBuilder.append(String.format("int start = %s.takeRecordedPosition(this, this.%s, $1);\n",
+                RecordedMismatch.class.getName(), MatcherClassLayout.CONFIGURATION_COUNT_FIELD_NAME));
+        bodyBuilder.append("while (true) {\n");
+        appendConfiguredPropertySwitch(bodyBuilder, "start", propertyChecks);
+        bodyBuilder.append("if (start == 0 || !$2.result()) { break; }\n");
+        bodyBuilder.append("start = 0;\n");
+        bodyBuilder.append("}\n");
+    }
+
+    /**
+     * Append a loop that visits each configured, directly read property in turn.
+     *
+     * @param bodyBuilder the method body being built
+     * @param start the expression giving the position of the first property to visit
+     * @param propertyChecks the statement for each directly read property, in index order
+     */
+    private static void appendConfiguredPropertySwitch(StringBuilder bodyBuilder, String start,
+                                                       List<String> propertyChecks) {
+        bodyBuilder.append(String.format("for (int i = %s; i < this.configuredPropertyCount; i++) {\n", start));
+        bodyBuilder.append("switch (this.configuredProperties[i]) {\n");
+
+        for (int i = 0; i < propertyChecks.size(); i++) {
+            bodyBuilder.append(String.format("case %d: %s break;\n", i, propertyChecks.get(i)));
+        }
+
+        bodyBuilder.append("}\n");
+        bodyBuilder.append("}\n");
+    }
+
+    /**
+     * Generate a bridge from the erased signature of matchesSafely to the one taking the matched class, as the
+     * Java compiler would, so that the superclass calls the generated method. The bridge is marked synthetic so
+     * that it is not mistaken for the generated method when finding the matched type.
+     */
+    private static void generateMatchesSafelyBridgeMethod(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final CtClass matchAccumulatorCtClass = SmogTypes.getMatchAccumulatorCtClass(generatedClass.getClassPool());
+        final CtClass objectCtClass = JavassistClassUtils.getCtClass(generatedClass.getClassPool(), Object.class.getName());
+
+        final CtClass[] parameters = new CtClass[]{objectCtClass, matchAccumulatorCtClass};
+        final String body = String.format("{ matchesSafely((%s) $1, $2); }", layout.getMatchedClass().getName());
+
+        JavassistClassUtils.addBridgeMethod(generatedClass, Modifier.PROTECTED, "matchesSafely", parameters,
+                body, CtClass.voidType);
+    }
+
+    @Override
+    public void generateFrozenCopyMethod(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final CtClass objectCtClass = JavassistClassUtils.getCtClass(generatedClass.getClassPool(), Object.class.getName());
+        final String generatedClassName = generatedClass.getName();
+
+        final StringBuilder bodyBuilder = new StringBuilder();
+        bodyBuilder.append("{\n");
+        bodyBuilder.append(String.format("%s copy = new %s();\n", generatedClassName, generatedClassName));
+
+        // The copy creates its property matchers in declaration order, which gives it the same configured properties
+        for (String propertyName : layout.getPropertyNames()) {
+            final String propertyMatcherFieldName = getPropertyMatcherFieldName(propertyName);
+
+            bodyBuilder.append(String.format("if (this.%s != null) {\n", propertyMatcherFieldName));
+            bodyBuilder.append(generatePropertyMatcherCreation(layout, propertyName, "copy")).append("\n");
+            bodyBuilder.append(String.format("copy.%s.setMatcher(%s.copyPropertyMatcher(this.%s));\n",
+                    propertyMatcherFieldName, FrozenMatcher.class.getName(), propertyMatcherFieldName));
+
+            if (layout.isPrimitiveProperty(propertyName)) {
+                bodyBuilder.append(String.format("copy.%s = this.%s;\n", getExpectedValueFieldName(propertyName),
+                        getExpectedValueFieldName(propertyName)));
+                bodyBuilder.append(String.format("copy.%s = this.%s;\n", getHasExpectedValueFieldName(propertyName),
+                        getHasExpectedValueFieldName(propertyName)));
+            }
+
+            bodyBuilder.append("}\n");
+        }
+
+        bodyBuilder.append(String.format("copy.%s = true;\n", MatcherClassLayout.FROZEN_FIELD_NAME));
+        bodyBuilder.append("return copy;\n");
+        bodyBuilder.append("}\n");
+
+        JavassistClassUtils.addMethod(generatedClass, Modifier.PUBLIC, "frozenCopy", new CtClass[0],
+                bodyBuilder.toString(), objectCtClass);
+    }
+
+    @Override
+    public void generateNewMatcherMethod(MatcherClassLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final CtClass objectCtClass = JavassistClassUtils.getCtClass(generatedClass.getClassPool(), Object.class.getName());
+        final String body = String.format("{ return new %s(); }", generatedClass.getName());
+
+        JavassistClassUtils.addMethod(generatedClass, Modifier.PUBLIC, "newMatcher", new CtClass[0], body, objectCtClass);
+    }
+
+    @Override
+    public void generateSpecializedInitializer(SpecializedMatcherLayout layout) {
+        final StringBuilder bodyBuilder = new StringBuilder();
+        bodyBuilder.append("{\n");
+        bodyBuilder.append(String.format("Object[] constants = %s.takeSpecializationConstants(\"%s\");\n",
+                FrozenMatcher.class.getName(), layout.getConstantsKey()));
+        bodyBuilder.append(String.format("%s = (%s) constants[0];\n", SpecializedMatcherLayout.FALLBACK_FIELD_NAME,
+                Matcher.class.getName()));
+
+        for (SpecializedProperty property : layout.getProperties()) {
+            if (!property.isComparedWithExpectedValue()) {
+                bodyBuilder.append(String.format("%s = (%s) constants[%d];\n", property.getConstantFieldName(),
+                        property.getConstantFieldType().getName(), property.getConstantIndex()));
+            }
+        }
+
+        bodyBuilder.append("}\n");
+
+        JavassistClassUtils.addClassInitializer(layout.getGeneratedClass(), bodyBuilder.toString());
+    }
+
+    @Override
+    public void generateSpecializedPredicateMethod(SpecializedMatcherLayout layout) {
+        final CtClass generatedClass = layout.getGeneratedClass();
+        final CtClass objectCtClass = JavassistClassUtils.getCtClass(generatedClass.getClassPool(), Object.class.getName());
+        final String matchedClassName = layout.getMatchedClass().getName();
+
+        final StringBuilder bodyBuilder = new StringBuilder();
+        bodyBuilder.append("{\n");
+        bodyBuilder.append(String.format("if (!($1 instanceof %s)) { return %s.matches($1); }\n", matchedClassName,
+                SpecializedMatcherLayout.FALLBACK_FIELD_NAME));
+        bodyBuilder.append(String.format("%s item = (%s) $1;\n", matchedClassName, matchedClassName));
+
+        for (SpecializedProperty property : layout.getProperties()) {
+            bodyBuilder.append(String.format("if (!(%s)) { return false; }\n", generateSpecializedPropertyTest(property)));
+        }
+
+        bodyBuilder.append("return true;\n");
+        bodyBuilder.append("}\n");
+
+        JavassistClassUtils.addMethod(generatedClass, Modifier.PUBLIC, "test", new CtClass[]{objectCtClass},
+                bodyBuilder.toString(), CtClass.booleanType);
+    }
+
+    /**
+     * Generate an expression that is true if a property of the item matches. A primitive property is compared with its
+     * expected value as a constant, with the same result as comparing them boxed with equals().
+     */
+    private static String generateSpecializedPropertyTest(SpecializedProperty property) {
+        final String propertyValue = "item." + property.getReadMethod().getName() + "()";
+
+        if (!property.isComparedWithExpectedValue()) {
+            return String.format("%s.%s(($w)%s)", property.getConstantFieldName(),
+                    property.isPredicate() ? "test" : "matches", propertyValue);
+        }
+
+        final CtClass propertyType = property.getPropertyType();
+        final long expectedValue = property.getComparableExpectedValue();
+
+        if (propertyType == CtClass.doubleType) {
+            return String.format("Double.doubleToLongBits(%s) == %s", propertyValue, generateLongLiteral(expectedValue));
+        }
+
+        if (propertyType == CtClass.floatType) {
+            return String.format("Float.floatToIntBits(%s) == %s", propertyValue, generateIntLiteral((int) expectedValue));
+        }
+
+        if (propertyType == CtClass.longType) {
+            return String.format("%s == %s", propertyValue, generateLongLiteral(expectedValue));
+        }
+
+        if (propertyType == CtClass.booleanType) {
+            return expectedValue != 0 ? propertyValue : "!" + propertyValue;
+        }
+
+        return String.format("%s == %s", propertyValue, generateIntLiteral((int) expectedValue));
+    }
+
+    /**
+     * Generate a literal int, which is parenthesised because it may be negative. The smallest int has no literal of
+     * its own, because its magnitude is too large for an int.
+     */
+    private static String generateIntLiteral(int value) {
+        return value == Integer.MIN_VALUE ? "(-2147483647 - 1)" : "(" + value + ")";
+    }
+
+    private static String generateLongLiteral(long value) {
+        return value == Long.MIN_VALUE ? "(-9223372036854775807L - 1L)" : "(" + value + "L)";
+    }
+}
@@ -0,0 +1,173 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.proxy.javassist.util.JavassistClassUtils;
+import javassist.CtClass;
+import javassist.CtMethod;
+import org.hamcrest.Matcher;
+
+import java.util.List;
+
+/**
+ * The structure of a class specialized for the configuration of a frozen matcher, which its code is generated from by
+ * a {@link MatcherCodeBackend}.
+ * <p>
+ * A specialized class implements {@link MatcherPredicate}. Its test method checks each configured property of the
+ * matcher in turn, in the order they are declared, comparing primitive properties with their expected values as
+ * constants in the code and testing the others with constant fields. Objects that are not of the matched class are
+ * matched by the frozen matcher itself, held in the {@value #FALLBACK_FIELD_NAME} field.
+ * <p>
+ * The constant fields are static and final, so that the JIT compiler treats their values as constants, and are set by
+ * the static initializer from the array returned by {@link FrozenMatcher#takeSpecializationConstants(String)}. The
+ * frozen matcher is the first element of the array, followed by the value of each constant field in turn.
+ */
+final class SpecializedMatcherLayout {
+    /**
+     * The static field holding the frozen matcher, which matches objects that are not of the matched class.
+     */
+    static final String FALLBACK_FIELD_NAME = "fallback";
+
+    /**
+     * The prefix of the names of the static fields holding the matchers and predicates of properties, which is
+     * followed by the position of the field's value in the array of constants.
+     */
+    static final String CONSTANT_FIELD_PREFIX = "constant";
+
+    private final CtClass generatedClass;
+    private final CtClass matchedClass;
+    private final String constantsKey;
+    private final List<SpecializedProperty> properties;
+
+    SpecializedMatcherLayout(CtClass generatedClass, CtClass matchedClass, String constantsKey,
+                             List<SpecializedProperty> properties) {
+        this.generatedClass = generatedClass;
+        this.matchedClass = matchedClass;
+        this.constantsKey = constantsKey;
+        this.properties = properties;
+    }
+
+    CtClass getGeneratedClass() {
+        return generatedClass;
+    }
+
+    CtClass getMatchedClass() {
+        return matchedClass;
+    }
+
+    /**
+     * @return the key that the static initializer passes to {@link FrozenMatcher#takeSpecializationConstants(String)}
+     */
+    String getConstantsKey() {
+        return constantsKey;
+    }
+
+    /**
+     * @return the configured properties, in the order they are checked
+     */
+    List<SpecializedProperty> getProperties() {
+        return properties;
+    }
+
+    /**
+     * A configured property of the frozen matcher, and how the specialized class checks it.
+     */
+    static final class SpecializedProperty {
+        private final CtMethod readMethod;
+        private final Object expectedValue;
+        private final int constantIndex;
+        private final boolean predicate;
+
+        private SpecializedProperty(CtMethod readMethod, Object expectedValue, int constantIndex, boolean predicate) {
+            this.readMethod = readMethod;
+            this.expectedValue = expectedValue;
+            this.constantIndex = constantIndex;
+            this.predicate = predicate;
+        }
+
+        /**
+         * Create a primitive property that is compared with an expected value.
+         *
+         * @param readMethod the read method of the property
+         * @param expectedValue the boxed expected value
+         * @return the property
+         */
+        static SpecializedProperty comparedWith(CtMethod readMethod, Object expectedValue) {
+            return new SpecializedProperty(readMethod, expectedValue, -1, false);
+        }
+
+        /**
+         * Create a property that is tested with the value of a constant field.
+         *
+         * @param readMethod the read method of the property
+         * @param constantIndex the position of the field's value in the array of constants
+         * @param predicate true if the field holds a {@link MatcherPredicate}, and false if it holds a hamcrest matcher
+         * @return the property
+         */
+        static SpecializedProperty testedWith(CtMethod readMethod, int constantIndex, boolean predicate) {
+            return new SpecializedProperty(readMethod, null, constantIndex, predicate);
+        }
+
+        CtMethod getReadMethod() {
+            return readMethod;
+        }
+
+        CtClass getPropertyType() {
+            return JavassistClassUtils.getReturnType(readMethod);
+        }
+
+        /**
+         * @return true if the property is compared with an expected value, rather than tested with a constant field
+         */
+        boolean isComparedWithExpectedValue() {
+            return expectedValue != null;
+        }
+
+        /**
+         * Get the expected value in the form that the property value is compared with it: floating point values as
+         * their bits, so that the comparison has the same result as comparing the boxed values with equals(),
+         * characters as their code and booleans as 1 or 0.
+         *
+         * @return the expected value as a long, which fits in an int unless the property is a long or a double
+         */
+        long getComparableExpectedValue() {
+            if (expectedValue instanceof Double) {
+                return Double.doubleToLongBits((Double) expectedValue);
+            }
+
+            if (expectedValue instanceof Float) {
+                return Float.floatToIntBits((Float) expectedValue);
+            }
+
+            if (expectedValue instanceof Character) {
+                return (Character) expectedValue;
+            }
+
+            if (expectedValue instanceof Boolean) {
+                return (Boolean) expectedValue ? 1 : 0;
+            }
+
+            return ((Number) expectedValue).longValue();
+        }
+
+        int getConstantIndex() {
+            return constantIndex;
+        }
+
+        String getConstantFieldName() {
+            return CONSTANT_FIELD_PREFIX + constantIndex;
+        }
+
+        /**
+         * @return true if the constant field holds a {@link MatcherPredicate}, and false if it holds a hamcrest matcher
+         */
+        boolean isPredicate() {
+            return predicate;
+        }
+
+        /**
+         * @return the type of the constant field
+         */
+        Class<?> getConstantFieldType() {
+            return predicate ? MatcherPredicate.class : Matcher.class;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.mistraltech.smog.proxy.javassist.util;
+
+import javassist.ClassPool;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A Javassist {@link ClassPool} that also holds caches of values derived from its classes.
+ * <p>
+ * Such values usually refer to the pool's classes. Holding them in the pool itself means that they are
+ * discarded along with the pool, rather than keeping its classes alive after it has been released.
+ * Cached values must not refer to loaded classes, which would keep their class loader alive.
+ */
+public class CachingClassPool extends ClassPool {
+    private final ConcurrentMap<String, ConcurrentMap<?, ?>> caches = new ConcurrentHashMap<String, ConcurrentMap<?, ?>>();
+
+    /**
+     * Get a cache by name, creating it if necessary.
+     *
+     * @param cacheName the name of the cache, which determines its key and value types
+     * @param <K> the type of the cache keys
+     * @param <V> the type of the cached values
+     * @return the cache
+     */
+    @SuppressWarnings("unchecked")
+    public <K, V> ConcurrentMap<K, V> getCache(String cacheName) {
+        ConcurrentMap<?, ?> cache = caches.get(cacheName);
+
+        if (cache == null) {
+            final ConcurrentMap<K, V> newCache = new ConcurrentHashMap<K, V>();
+            cache = caches.putIfAbsent(cacheName, newCache);
+
+            if (cache == null) {
+                cache = newCache;
+            }
+        }
+
+        return (ConcurrentMap<K, V>) cache;
+    }
+}
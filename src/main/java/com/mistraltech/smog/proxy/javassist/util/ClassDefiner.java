@@ -0,0 +1,175 @@
+package com.mistraltech.smog.proxy.javassist.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.ProtectionDomain;
+
+/**
+ * Defines classes from bytecode alongside an existing class, using the best mechanism the JVM provides:
+ * <ol>
+ * <li>On Java 15 and later, as a hidden class through a {@link MethodHandles.Lookup} of the existing class.
+ * Hidden classes are not discoverable by name and become nestmates of the existing class.</li>
+ * <li>On Java 9 and later, as an ordinary class through a {@link MethodHandles.Lookup} of the existing class.</li>
+ * <li>Otherwise, by reflectively calling ClassLoader.defineClass, as Javassist does.</li>
+ * </ol>
+ * The newer APIs are called reflectively so that the library can still be built and run on older JVMs.
+ * A hidden class can only be defined if this class has full access to the existing class, which is not the case
+ * when they are in different modules, including the unnamed modules of different class loaders. An ordinary class is
+ * defined instead. If a lookup cannot be obtained for the existing class at all, for example because its module does
+ * not open its package, the reflective mechanism is used. On Java 16 and later that needs java.lang to be opened to
+ * this library with the {@value #ADD_OPENS_OPTION} JVM option, or classes cannot be defined at all.
+ */
+public final class ClassDefiner {
+    /**
+     * The JVM option that lets this library call ClassLoader.defineClass on Java 16 and later, when it is not in a
+     * named module of its own.
+     */
+    public static final String ADD_OPENS_OPTION = "--add-opens java.base/java.lang=ALL-UNNAMED";
+
+    private static final Method PRIVATE_LOOKUP_IN = findMethod(MethodHandles.class, "privateLookupIn",
+            Class.class, MethodHandles.Lookup.class);
+    private static final Method DEFINE_CLASS = findMethod(MethodHandles.Lookup.class, "defineClass", byte[].class);
+    private static final Object HIDDEN_CLASS_OPTIONS = findHiddenClassOptions("NESTMATE");
+    private static final Method DEFINE_HIDDEN_CLASS = HIDDEN_CLASS_OPTIONS == null ? null
+            : findMethod(MethodHandles.Lookup.class, "defineHiddenClass", byte[].class, boolean.class,
+            HIDDEN_CLASS_OPTIONS.getClass());
+    private static final Method LOOKUP_CLASS = findMethod(MethodHandles.Lookup.class, "lookupClass");
+    private static final int MODULE_ACCESS = findLookupMode("MODULE");
+    private static final Method CLASS_LOADER_DEFINE_CLASS = findMethod(ClassLoader.class, "defineClass",
+            String.class, byte[].class, int.class, int.class, ProtectionDomain.class);
+
+    private ClassDefiner() {
+    }
+
+    /**
+     * Define a class in the same package, class loader and protection domain as an existing class.
+     *
+     * @param neighbour the existing class
+     * @param className the fully-qualified name of the class being defined, which must be in the same package
+     * @param bytecode the content of the class file
+     * @return the defined class, which may be hidden
+     */
+    public static Class<?> defineClass(Class<?> neighbour, String className, byte[] bytecode) {
+        final MethodHandles.Lookup lookup = getPrivateLookup(neighbour);
+
+        if (lookup != null && DEFINE_HIDDEN_CLASS != null && hasAccess(lookup, MethodHandles.Lookup.PRIVATE | MODULE_ACCESS)) {
+            final Object hiddenClassLookup = invoke(DEFINE_HIDDEN_CLASS, lookup, bytecode, true, HIDDEN_CLASS_OPTIONS);
+            return (Class<?>) invoke(LOOKUP_CLASS, hiddenClassLookup);
+        }
+
+        if (lookup != null && DEFINE_CLASS != null && hasAccess(lookup, MethodHandles.Lookup.PACKAGE)) {
+            return (Class<?>) invoke(DEFINE_CLASS, lookup, (Object) bytecode);
+        }
+
+        return defineClassInClassLoader(neighbour, className, bytecode);
+    }
+
+    /**
+     * Define a class in the class loader and protection domain of an existing class, without using a lookup.
+     * The class is not hidden, and so can be loaded by name once defined.
+     *
+     * @param neighbour the existing class
+     * @param className the fully-qualified name of the class being defined
+     * @param bytecode the content of the class file
+     * @return the defined class
+     * @throws IllegalStateException if ClassLoader.defineClass cannot be made accessible, as on Java 16 and later
+     * unless the JVM is run with the {@value #ADD_OPENS_OPTION} option
+     */
+    public static Class<?> defineClassInClassLoader(Class<?> neighbour, String className, byte[] bytecode) {
+        if (CLASS_LOADER_DEFINE_CLASS == null) {
+            throw new IllegalStateException("No mechanism available to define class " + className);
+        }
+
+        try {
+            CLASS_LOADER_DEFINE_CLASS.setAccessible(true);
+        } catch (RuntimeException e) {
+            // An InaccessibleObjectException on Java 16 and later, where java.base no longer opens java.lang to the
+            // class path by default
+            throw new IllegalStateException(String.format("Cannot define class %s alongside %s, because " +
+                            "ClassLoader.defineClass is not accessible. Run the JVM with %s, naming the module of this " +
+                            "library instead of ALL-UNNAMED if it is in one.", className, neighbour.getName(),
+                    ADD_OPENS_OPTION), e);
+        }
+
+        return (Class<?>) invoke(CLASS_LOADER_DEFINE_CLASS, neighbour.getClassLoader(), className, bytecode,
+                0, bytecode.length, neighbour.getProtectionDomain());
+    }
+
+    private static boolean hasAccess(MethodHandles.Lookup lookup, int modes) {
+        return (lookup.lookupModes() & modes) == modes;
+    }
+
+    private static MethodHandles.Lookup getPrivateLookup(Class<?> neighbour) {
+        if (PRIVATE_LOOKUP_IN == null) {
+            return null;
+        }
+
+        try {
+            return (MethodHandles.Lookup) PRIVATE_LOOKUP_IN.invoke(null, neighbour, MethodHandles.lookup());
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            // The module of the neighbour does not permit deep reflection from this module
+            return null;
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... arguments) {
+        try {
+            return method.invoke(target, arguments);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Illegal access", e);
+        } catch (InvocationTargetException e) {
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new RuntimeException("Failed to define class", cause);
+        }
+    }
+
+    private static Method findMethod(Class<?> clazz, String name, Class<?>... parameterTypes) {
+        try {
+            return clazz.getDeclaredMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static int findLookupMode(String name) {
+        try {
+            return MethodHandles.Lookup.class.getField(name).getInt(null);
+        } catch (NoSuchFieldException e) {
+            return 0;
+        } catch (IllegalAccessException e) {
+            return 0;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object findHiddenClassOptions(String... optionNames) {
+        final Class<? extends Enum> classOptionClass;
+
+        try {
+            classOptionClass = (Class<? extends Enum>) Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+
+        final Object options = Array.newInstance(classOptionClass, optionNames.length);
+
+        for (int i = 0; i < optionNames.length; i++) {
+            Array.set(options, i, Enum.valueOf(classOptionClass, optionNames[i]));
+        }
+
+        return options;
+    }
+}
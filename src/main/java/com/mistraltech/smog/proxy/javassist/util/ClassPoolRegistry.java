@@ -0,0 +1,65 @@
+package com.mistraltech.smog.proxy.javassist.util;
+
+import javassist.ClassPool;
+import javassist.LoaderClassPath;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Provides a separate Javassist {@link ClassPool} for each class loader.
+ * <p>
+ * A class pool caches every class it is asked for. Giving each class loader its own pool means that the
+ * cached classes are those visible to that loader, and that they can be discarded along with the loader.
+ * Pools are weakly keyed by class loader and only refer to their loader weakly, so they do not prevent the
+ * loader from being garbage collected. The pool of a collected class loader is discarded the next time the
+ * registry is used.
+ * <p>
+ * The pools are {@link CachingClassPool}s, so that values derived from their classes are discarded with them.
+ * Neither a pool nor its classes are safe for concurrent use, so code that uses a pool synchronizes on it.
+ */
+public final class ClassPoolRegistry {
+    private static final Map<ClassLoader, ClassPool> CLASS_POOLS = new WeakHashMap<ClassLoader, ClassPool>();
+
+    private ClassPoolRegistry() {
+    }
+
+    /**
+     * Get the class pool for a class loader, creating it if necessary.
+     *
+     * @param classLoader the class loader
+     * @return a class pool that finds classes using the class loader
+     */
+    public static synchronized ClassPool getClassPool(ClassLoader classLoader) {
+        ClassPool classPool = CLASS_POOLS.get(classLoader);
+
+        if (classPool == null) {
+            classPool = createClassPool(classLoader);
+            CLASS_POOLS.put(classLoader, classPool);
+        }
+
+        return classPool;
+    }
+
+    /**
+     * Discard the class pool for a class loader, if there is one, along with all the classes it has cached.
+     * A new pool is created if the class loader is used again.
+     *
+     * @param classLoader the class loader
+     */
+    public static synchronized void release(ClassLoader classLoader) {
+        CLASS_POOLS.remove(classLoader);
+    }
+
+    private static ClassPool createClassPool(ClassLoader classLoader) {
+        final ClassPool classPool = new CachingClassPool();
+
+        if (classLoader != null) {
+            classPool.appendClassPath(new LoaderClassPath(classLoader));
+        }
+
+        classPool.appendSystemPath();
+
+        return classPool;
+    }
+}
@@ -0,0 +1,182 @@
+package com.mistraltech.smog.proxy.javassist.util;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Java Flight Recorder event type defined at runtime with jdk.jfr.EventFactory.
+ * <p>
+ * The JFR API is called reflectively so that the library can still be built and run on JVMs without it. Event types
+ * are only defined once the flight recorder has been initialised, for example by starting a recording, so that
+ * nothing is done on JVMs that are not recording.
+ */
+public final class FlightRecorderEventType {
+    private static final Method IS_INITIALIZED = findMethod("jdk.jfr.FlightRecorder", "isInitialized");
+
+    private final Object eventFactory;
+    private final Object eventType;
+    private final Method isEnabledMethod;
+    private final Method newEventMethod;
+    private final Method beginMethod;
+    private final Method setMethod;
+    private final Method commitMethod;
+
+    /**
+     * The unit of a field's values, which determines how JFR tools display them.
+     */
+    public enum Unit {
+        NONE, NANOSECONDS, BYTES
+    }
+
+    /**
+     * A field of an event type.
+     */
+    public static final class Field {
+        private final String name;
+        private final Class<?> type;
+        private final String label;
+        private final Unit unit;
+
+        public Field(String name, Class<?> type, String label, Unit unit) {
+            this.name = name;
+            this.type = type;
+            this.label = label;
+            this.unit = unit;
+        }
+    }
+
+    private FlightRecorderEventType(Object eventFactory) throws ReflectiveOperationException {
+        final Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+        final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+
+        this.eventFactory = eventFactory;
+        this.eventType = eventFactoryClass.getMethod("getEventType").invoke(eventFactory);
+        this.isEnabledMethod = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+        this.newEventMethod = eventFactoryClass.getMethod("newEvent");
+        this.beginMethod = eventClass.getMethod("begin");
+        this.setMethod = eventClass.getMethod("set", int.class, Object.class);
+        this.commitMethod = eventClass.getMethod("commit");
+    }
+
+    /**
+     * Check whether the flight recorder has been initialised, which is the case once a recording has been started.
+     *
+     * @return true if the flight recorder is available and initialised
+     */
+    public static boolean isFlightRecorderInitialized() {
+        return IS_INITIALIZED != null && (Boolean) invoke(IS_INITIALIZED, null);
+    }
+
+    /**
+     * Define an event type.
+     *
+     * @param name the name of the event type
+     * @param label the human-readable name of the event type
+     * @param description a description of the event type
+     * @param category the category that JFR tools show the events in
+     * @param fields the fields of the events, in the order that values are given to {@link #commit(Object...)}
+     * @return the event type, or null if the flight recorder API is not available
+     */
+    public static FlightRecorderEventType create(String name, String label, String description, String category,
+                                                 Field... fields) {
+        if (IS_INITIALIZED == null) {
+            return null;
+        }
+
+        try {
+            final List<Object> eventAnnotations = new ArrayList<Object>();
+            eventAnnotations.add(newAnnotationElement("Name", name));
+            eventAnnotations.add(newAnnotationElement("Label", label));
+            eventAnnotations.add(newAnnotationElement("Description", description));
+            eventAnnotations.add(newAnnotationElement("Category", new String[]{category}));
+
+            final Constructor<?> valueDescriptorConstructor = Class.forName("jdk.jfr.ValueDescriptor")
+                    .getConstructor(Class.class, String.class, List.class);
+            final List<Object> valueDescriptors = new ArrayList<Object>();
+
+            for (Field field : fields) {
+                final List<Object> fieldAnnotations = new ArrayList<Object>();
+                fieldAnnotations.add(newAnnotationElement("Label", field.label));
+
+                if (field.unit == Unit.NANOSECONDS) {
+                    fieldAnnotations.add(newAnnotationElement("Timespan", "NANOSECONDS"));
+                } else if (field.unit == Unit.BYTES) {
+                    fieldAnnotations.add(newAnnotationElement("DataAmount", "BYTES"));
+                }
+
+                valueDescriptors.add(valueDescriptorConstructor.newInstance(field.type, field.name, fieldAnnotations));
+            }
+
+            final Method createMethod = Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class);
+
+            return new FlightRecorderEventType(createMethod.invoke(null, eventAnnotations, valueDescriptors));
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException("Failed to define flight recorder event " + name, e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Failed to define flight recorder event " + name, e);
+        }
+    }
+
+    /**
+     * @return true if a recording is recording events of this type
+     */
+    public boolean isEnabled() {
+        return (Boolean) invoke(isEnabledMethod, eventType);
+    }
+
+    /**
+     * Record an event of this type.
+     *
+     * @param values the values of the fields, in the order that the fields were given
+     */
+    public void commit(Object... values) {
+        final Object event = invoke(newEventMethod, eventFactory);
+        invoke(beginMethod, event);
+
+        for (int i = 0; i < values.length; i++) {
+            invoke(setMethod, event, i, values[i]);
+        }
+
+        invoke(commitMethod, event);
+    }
+
+    private static Object newAnnotationElement(String annotationName, Object value) throws ReflectiveOperationException {
+        final Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+
+        return annotationElementClass.getConstructor(Class.class, Object.class)
+                .newInstance(Class.forName("jdk.jfr." + annotationName), value);
+    }
+
+    private static Method findMethod(String className, String methodName) {
+        try {
+            return Class.forName(className).getMethod(methodName);
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... arguments) {
+        try {
+            return method.invoke(target, arguments);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Illegal access", e);
+        } catch (InvocationTargetException e) {
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new RuntimeException("Failed to invoke flight recorder", cause);
+        }
+    }
+}
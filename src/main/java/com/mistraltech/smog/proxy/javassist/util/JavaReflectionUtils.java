@@ -2,6 +2,7 @@ package com.mistraltech.smog.proxy.javassist.util;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 
 /**
  * Utility functions to simplify accessing Java reflection.
@@ -45,6 +46,23 @@ public final class JavaReflectionUtils {
         }
     }
 
+    /**
+     * Invoke a method that takes no arguments.
+     *
+     * @param method the method
+     * @param target the object to invoke it on
+     * @return the result of the method
+     */
+    public static Object invokeMethod(Method method, Object target) {
+        try {
+            return method.invoke(target);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Illegal access", e);
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException("Failed to invoke method " + method.getName(), e.getCause());
+        }
+    }
+
     /**
      * Create an instance of the supplied class using the default constructor.
      *
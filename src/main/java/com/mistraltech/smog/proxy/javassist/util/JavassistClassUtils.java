@@ -10,16 +10,24 @@ import javassist.CtNewConstructor;
 import javassist.CtNewMethod;
 import javassist.Modifier;
 import javassist.NotFoundException;
+import javassist.bytecode.AccessFlag;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Utility methods that wrap Javassist methods and remove the need to handle checked exceptions.
  * All exceptions are converted to runtime exceptions.
  */
 public final class JavassistClassUtils {
+    private static final String METHODS_CACHE = JavassistClassUtils.class.getName() + ".methods";
+    private static final String SUPER_TYPE_NAMES_CACHE = JavassistClassUtils.class.getName() + ".superTypeNames";
 
     private JavassistClassUtils() {
     }
@@ -42,23 +50,69 @@ public final class JavassistClassUtils {
         }
     }
 
-    public static CtClass getCtClass(String className) {
+    public static void addClassInitializer(CtClass ctClass, String body) {
         try {
-            return ClassPool.getDefault().get(className);
+            ctClass.makeClassInitializer().insertBefore(body);
+        } catch (CannotCompileException e) {
+            throw new RuntimeException("Failed to compile class initializer", e);
+        }
+    }
+
+    public static void addBridgeMethod(CtClass ctClass, int modifiers, String methodName, CtClass[] parameters, String body, CtClass returnType) {
+        try {
+            final CtMethod method = CtNewMethod.make(modifiers, returnType, methodName, parameters, null, body, ctClass);
+            method.getMethodInfo().setAccessFlags(method.getMethodInfo().getAccessFlags() | AccessFlag.BRIDGE | AccessFlag.SYNTHETIC);
+            ctClass.addMethod(method);
+        } catch (CannotCompileException e) {
+            throw new RuntimeException("Failed to compile class", e);
+        }
+    }
+
+    public static CtClass getCtClass(ClassPool classPool, String className) {
+        try {
+            return classPool.get(className);
         } catch (NotFoundException e) {
             throw new RuntimeException("Failed to find class", e);
         }
     }
 
-    @SuppressWarnings("unchecked")
-    public static <TM> Class<TM> getClassFrom(CtClass matcherCtClass) {
+    /**
+     * Get a named cache held by a class pool. If the pool is not a {@link CachingClassPool}, an empty cache is
+     * returned that is not retained.
+     *
+     * @param classPool the class pool
+     * @param cacheName the name of the cache
+     * @param <K> the type of the cache keys
+     * @param <V> the type of the cached values
+     * @return the cache
+     */
+    public static <K, V> ConcurrentMap<K, V> getCache(ClassPool classPool, String cacheName) {
+        if (classPool instanceof CachingClassPool) {
+            return ((CachingClassPool) classPool).getCache(cacheName);
+        }
+
+        return new ConcurrentHashMap<K, V>();
+    }
+
+    public static byte[] getBytecode(CtClass ctClass) {
         try {
-            return matcherCtClass.toClass();
+            return ctClass.toBytecode();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write class file for " + ctClass.getName(), e);
         } catch (CannotCompileException e) {
             throw new RuntimeException("Failed to compile class", e);
         }
     }
 
+    public static boolean hasDeclaredConstructor(CtClass ctClass, CtClass[] parameters) {
+        try {
+            ctClass.getDeclaredConstructor(parameters);
+            return true;
+        } catch (NotFoundException e) {
+            return false;
+        }
+    }
+
     public static boolean hasField(CtClass ctClass, String fieldName) {
         try {
             ctClass.getField(fieldName);
@@ -68,6 +122,14 @@ public final class JavassistClassUtils {
         }
     }
 
+    public static void addField(CtClass ctClass, CtClass type, String fieldName) {
+        try {
+            ctClass.addField(new CtField(type, fieldName, ctClass));
+        } catch (CannotCompileException e) {
+            throw new RuntimeException("Failed to compile field", e);
+        }
+    }
+
     public static void addField(CtClass ctClass, CtClass type, String fieldName, String initializer) {
         try {
             final CtField field = new CtField(type, fieldName, ctClass);
@@ -78,6 +140,16 @@ public final class JavassistClassUtils {
         }
     }
 
+    public static void addStaticField(CtClass ctClass, CtClass type, String fieldName, CtField.Initializer initializer) {
+        try {
+            final CtField field = new CtField(type, fieldName, ctClass);
+            field.setModifiers(Modifier.PRIVATE | Modifier.STATIC | Modifier.FINAL);
+            ctClass.addField(field, initializer);
+        } catch (CannotCompileException e) {
+            throw new RuntimeException("Failed to compile field", e);
+        }
+    }
+
     public static void addMethod(CtClass ctClass, int modifiers, CtMethod ctMethod, String body) {
         try {
             addMethod(ctClass, modifiers, ctMethod.getName(), ctMethod.getParameterTypes(), body, ctMethod.getReturnType());
@@ -86,6 +158,14 @@ public final class JavassistClassUtils {
         }
     }
 
+    public static CtMethod findMethod(CtClass ctClass, String methodName, String descriptor) {
+        try {
+            return ctClass.getMethod(methodName, descriptor);
+        } catch (NotFoundException e) {
+            return null;
+        }
+    }
+
     public static CtClass[] getParameterTypes(CtMethod ctMethod) {
         try {
             return ctMethod.getParameterTypes();
@@ -94,12 +174,29 @@ public final class JavassistClassUtils {
         }
     }
 
+    /**
+     * Equivalent to {@link CtClass#subtypeOf(CtClass)}, except that the super-types of a class are resolved once
+     * and cached in its class pool, rather than searched for each query.
+     *
+     * @param ctClass the candidate sub-type
+     * @param superTypeCtClass the candidate super-type
+     * @return true if ctClass is the same as, or a sub-type of, superTypeCtClass
+     */
     public static boolean isSubTypeOf(CtClass ctClass, CtClass superTypeCtClass) {
-        try {
-            return ctClass.subtypeOf(superTypeCtClass);
-        } catch (NotFoundException e) {
-            throw new RuntimeException("Failed to find class", e);
+        if (ctClass == superTypeCtClass) {
+            return true;
         }
+
+        if (ctClass.isPrimitive() || ctClass.isArray() || superTypeCtClass.isPrimitive() || superTypeCtClass.isArray()) {
+            try {
+                return ctClass.subtypeOf(superTypeCtClass);
+            } catch (NotFoundException e) {
+                throw new RuntimeException("Failed to find class", e);
+            }
+        }
+
+        final ConcurrentMap<String, Set<String>> cache = getCache(ctClass.getClassPool(), SUPER_TYPE_NAMES_CACHE);
+        return getSuperTypeNames(ctClass, cache).contains(superTypeCtClass.getName());
     }
 
     public static CtClass getReturnType(CtMethod ctMethod) {
@@ -111,11 +208,7 @@ public final class JavassistClassUtils {
     }
 
     public static boolean isTypeInBounds(CtClass boundedType, CtClass lowerBound, CtClass upperBound) {
-        try {
-            return lowerBound.subtypeOf(boundedType) && boundedType.subtypeOf(upperBound);
-        } catch (NotFoundException e) {
-            throw new RuntimeException("Failed to find class", e);
-        }
+        return isSubTypeOf(lowerBound, boundedType) && isSubTypeOf(boundedType, upperBound);
     }
 
     public static CtClass[] getInterfaces(CtClass ctClass) {
@@ -134,9 +227,9 @@ public final class JavassistClassUtils {
         }
     }
 
-    public static Class<?> getLoadedClass(CtClass ctClass) {
+    public static Class<?> getLoadedClass(CtClass ctClass, ClassLoader classLoader) {
         try {
-            return Class.forName(ctClass.getName());
+            return Class.forName(ctClass.getName(), false, classLoader);
         } catch (ClassNotFoundException e) {
             throw new RuntimeException("Failed to get class for " + ctClass.getName(), e);
         }
@@ -149,31 +242,89 @@ public final class JavassistClassUtils {
      * <li>Methods on superclasses (most distant ancestors first)</li>
      * <li>Methods on the class itself.</li>
      * </ol>
+     * The methods of a super-type that is inherited along more than one path are included once only, at its
+     * first occurrence.
+     * <p>
+     * The result for an unmodified class is cached in its class pool.
      *
      * @param ctClass the class containing the required methods
-     * @return a list of methods on the class and its super-types.
+     * @return an unmodifiable list of methods on the class and its super-types.
      */
     public static List<CtMethod> getMethods(CtClass ctClass) {
-        List<CtMethod> methods = new ArrayList<CtMethod>();
-        getMethods(ctClass, methods);
+        final ConcurrentMap<String, List<CtMethod>> cache = getCache(ctClass.getClassPool(), METHODS_CACHE);
+
+        List<CtMethod> methods = cache.get(ctClass.getName());
+
+        if (methods == null) {
+            final List<CtMethod> collectedMethods = new ArrayList<CtMethod>();
+            getMethods(ctClass, collectedMethods, new HashSet<String>());
+            methods = Collections.unmodifiableList(collectedMethods);
+
+            if (!ctClass.isModified()) {
+                cache.putIfAbsent(ctClass.getName(), methods);
+            }
+        }
+
         return methods;
     }
 
-    private static void getMethods(CtClass ctClass, List<CtMethod> methods) {
+    private static void getMethods(CtClass ctClass, List<CtMethod> methods, Set<String> visitedTypeNames) {
+        if (!visitedTypeNames.add(ctClass.getName())) {
+            return;
+        }
+
         for (CtClass superType : getInterfaces(ctClass)) {
-            getMethods(superType, methods);
+            getMethods(superType, methods, visitedTypeNames);
         }
 
         if (!ctClass.isInterface()) {
             final CtClass superclass = getSuperclass(ctClass);
             if (superclass != null) {
-                getMethods(getSuperclass(ctClass), methods);
+                getMethods(superclass, methods, visitedTypeNames);
             }
         }
 
         Collections.addAll(methods, ctClass.getDeclaredMethods());
     }
 
+    /**
+     * Get the names of a class, all of its super-types and {@code java.lang.Object}. Each super-type is resolved
+     * once only, however many paths it is inherited along, and the result for an unmodified class is cached in
+     * its class pool.
+     *
+     * @param ctClass a class that is neither primitive nor an array
+     * @param cache the cache of super-type names
+     * @return an unmodifiable set of type names
+     */
+    private static Set<String> getSuperTypeNames(CtClass ctClass, ConcurrentMap<String, Set<String>> cache) {
+        Set<String> superTypeNames = cache.get(ctClass.getName());
+
+        if (superTypeNames == null) {
+            final Set<String> collectedNames = new HashSet<String>();
+            collectedNames.add(ctClass.getName());
+            collectedNames.add(Object.class.getName());
+
+            for (CtClass superType : getInterfaces(ctClass)) {
+                collectedNames.addAll(getSuperTypeNames(superType, cache));
+            }
+
+            if (!ctClass.isInterface()) {
+                final CtClass superclass = getSuperclass(ctClass);
+                if (superclass != null) {
+                    collectedNames.addAll(getSuperTypeNames(superclass, cache));
+                }
+            }
+
+            superTypeNames = Collections.unmodifiableSet(collectedNames);
+
+            if (!ctClass.isModified()) {
+                cache.putIfAbsent(ctClass.getName(), superTypeNames);
+            }
+        }
+
+        return superTypeNames;
+    }
+
     public static CtClass getSingleParameterType(CtMethod ctMethod) {
         final CtClass[] parameterTypes = JavassistClassUtils.getParameterTypes(ctMethod);
 
@@ -187,7 +338,7 @@ public final class JavassistClassUtils {
 
     public static <T> T getAnnotation(CtMethod method, Class<T> annotationClass) {
         try {
-            return (T) method.getAnnotation(annotationClass);
+            return annotationClass.cast(method.getAnnotation(annotationClass));
         } catch (ClassNotFoundException e) {
             throw new RuntimeException(e);
         }
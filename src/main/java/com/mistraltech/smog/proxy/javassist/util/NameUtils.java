@@ -1,6 +1,7 @@
 package com.mistraltech.smog.proxy.javassist.util;
 
 import static java.lang.Character.toLowerCase;
+import static java.lang.Character.toUpperCase;
 
 /**
  * Utility methods for manipulating names.
@@ -24,6 +25,20 @@ public final class NameUtils {
         return String.valueOf(toLowerCase(name.charAt(0))) + (name.length() > 1 ? name.substring(1) : "");
     }
 
+    /**
+     * Convert the first character of the name to uppercase.
+     *
+     * @param name name to be converted
+     * @return the name with the first character in uppercase
+     */
+    public static String capitalise(String name) {
+        if (name.isEmpty() || Character.isUpperCase(name.charAt(0))) {
+            return name;
+        }
+
+        return String.valueOf(toUpperCase(name.charAt(0))) + (name.length() > 1 ? name.substring(1) : "");
+    }
+
     /**
      * Strip off any of a list of prefixes and return the result. Only the first matching prefix is removed. It may be
      * that no prefix is stripped if none of the prefixes matches.
@@ -51,6 +51,7 @@ public class SimpleMatcherExamplesTest {
     }
 
     @Test
+    @SuppressWarnings("unchecked")
     public void testSimpleMatcherFailsWhenMatchingWrongType() {
         Matcher matcher = is(anAddresseeThat());
 
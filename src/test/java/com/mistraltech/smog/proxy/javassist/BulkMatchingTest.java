@@ -0,0 +1,147 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.examples.model.Address;
+import com.mistraltech.smog.examples.model.Person;
+import com.mistraltech.smog.examples.model.PostCode;
+import org.hamcrest.Matcher;
+import org.hamcrest.StringDescription;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.mistraltech.smog.examples.simple.matcher.MatcherFactory.aPersonThat;
+import static com.mistraltech.smog.examples.simple.matcher.MatcherFactory.aPostCodeThat;
+import static com.mistraltech.smog.examples.simple.matcher.MatcherFactory.anAddressThat;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for matching a generated matcher against many objects, on one thread and on several.
+ */
+public class BulkMatchingTest {
+    private static final int THREAD_COUNT = 8;
+
+    @Test
+    public void testReportsMismatchIndicesAndDescriptions() {
+        List<Person> people = Arrays.asList(person("Bob", 42), person("Bob", 41), person("Bob", 42), person("Al", 42));
+
+        BulkMatchReport<Person> report = BulkMatching.matchAll(aPersonThat().hasName("Bob").hasAge(42), people);
+
+        assertEquals(4, report.getItemCount());
+        assertEquals(2, report.getMatchCount());
+        assertEquals(2, report.getMismatchCount());
+        assertFalse(report.isAllMatched());
+        assertArrayEquals(new int[]{1, 3}, report.getMismatchIndices());
+        assertEquals(Arrays.asList(people.get(1), people.get(3)), report.getMismatchedItems());
+        assertEquals(Arrays.asList("age was <41> (expected <42>)", "name was \"Al\" (expected \"Bob\")"),
+                report.getMismatchDescriptions());
+    }
+
+    @Test
+    public void testReportsAllMatchedForEmptyItems() {
+        BulkMatchReport<Person> report = BulkMatching.matchAllInParallel(aPersonThat().hasName("Bob"),
+                Collections.<Person>emptyList());
+
+        assertEquals(0, report.getItemCount());
+        assertTrue(report.isAllMatched());
+        assertTrue(report.getMismatchDescriptions().isEmpty());
+    }
+
+    @Test
+    public void testParallelMatchingGivesSameReportAsSequentialMatching() {
+        List<Person> people = new ArrayList<Person>();
+        for (int i = 0; i < 10000; i++) {
+            people.add(new Person("Bob", 30 + i % 13, new Address(i % 7, new PostCode("AB1", i % 11 == 0 ? "X" : "Y"))));
+        }
+
+        Matcher<Person> matcher = aPersonThat()
+                .hasName("Bob")
+                .hasAddress(anAddressThat().hasPostCode(aPostCodeThat().hasInner("Y")))
+                .hasAge(30);
+
+        BulkMatchReport<Person> sequential = BulkMatching.matchAll(matcher, people);
+        ForkJoinPool pool = new ForkJoinPool(THREAD_COUNT);
+
+        try {
+            BulkMatchReport<Person> parallel = BulkMatching.matchAllInParallel(matcher, people, pool);
+
+            assertEquals(THREAD_COUNT, parallel.getParallelism());
+            assertEquals(people.size(), parallel.getItemCount());
+            assertArrayEquals(sequential.getMismatchIndices(), parallel.getMismatchIndices());
+            assertEquals(sequential.getMismatchedItems(), parallel.getMismatchedItems());
+            assertEquals(sequential.getMismatchDescriptions(), parallel.getMismatchDescriptions());
+
+            assertFalse(pool.isShutdown());
+            assertArrayEquals(sequential.getMismatchIndices(),
+                    BulkMatching.matchAllInParallel(matcher, people, pool).getMismatchIndices());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testFewObjectsAreMatchedOnCallingThread() {
+        List<Person> people = Arrays.asList(person("Bob", 42), person("Al", 42));
+
+        BulkMatchReport<Person> report = BulkMatching.matchAllInParallel(aPersonThat().hasName("Bob"), people);
+
+        assertEquals(1, report.getParallelism());
+        assertArrayEquals(new int[]{1}, report.getMismatchIndices());
+    }
+
+    @Test
+    public void testMatcherCanBeSharedBetweenThreads() throws Exception {
+        final Matcher<Person> matcher = aPersonThat()
+                .hasName("Bob")
+                .hasAge(42)
+                .hasAddress(anAddressThat().hasHouseNumber(3));
+        final ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        final List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+        try {
+            for (int t = 0; t < THREAD_COUNT; t++) {
+                final int threadNumber = t;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = 0; i < 2000; i++) {
+                            int age = (i + threadNumber) % 3 == 0 ? 41 : 42;
+                            Person person = new Person("Bob", age, new Address(3, new PostCode("AB1", "2CD")));
+
+                            assertEquals(age == 42, matcher.matches(person));
+
+                            if (age != 42) {
+                                StringDescription description = new StringDescription();
+                                matcher.describeMismatch(person, description);
+                                assertEquals("age was <41> (expected <42>)", description.toString());
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private static Person person(String name, int age) {
+        return new Person(name, age, new Address(1, new PostCode("AB1", "2CD")));
+    }
+}
@@ -0,0 +1,79 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A class loader that defines its own copy of the classes in a package, rather than delegating to its parent.
+ * Used to simulate class loaders that are discarded and replaced, such as in IDE test re-runs.
+ */
+class ChildFirstClassLoader extends ClassLoader {
+    private final String packagePrefix;
+
+    ChildFirstClassLoader(ClassLoader parent, String packageName) {
+        super(parent);
+        this.packagePrefix = packageName + ".";
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!isChildFirst(name)) {
+            return super.loadClass(name, resolve);
+        }
+
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> clazz = findLoadedClass(name);
+
+            if (clazz == null) {
+                clazz = findClass(name);
+            }
+
+            if (resolve) {
+                resolveClass(clazz);
+            }
+
+            return clazz;
+        }
+    }
+
+    /**
+     * @param name the name of a class
+     * @return true if this class loader defines its own copy of the class
+     */
+    protected boolean isChildFirst(String name) {
+        return name.startsWith(packagePrefix);
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        final InputStream inputStream = getParent().getResourceAsStream(name.replace('.', '/') + ".class");
+
+        if (inputStream == null) {
+            throw new ClassNotFoundException(name);
+        }
+
+        try {
+            final byte[] bytecode = readFully(inputStream);
+            return defineClass(name, bytecode, 0, bytecode.length);
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        try {
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+            }
+
+            return outputStream.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.examples.simple.matcher.AddressMatcher;
+import com.mistraltech.smog.examples.simple.matcher.PersonMatcher;
+import com.mistraltech.smog.proxy.javassist.util.ClassPoolRegistry;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.mistraltech.smog.proxy.javassist.JavassistMatcherGenerator.matcherOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests that generating matchers for interfaces in short-lived class loaders does not keep those class loaders, or the
+ * matcher classes generated in them, alive after they are discarded.
+ */
+public class ClassLoaderLifecycleTest {
+    private static final String EXAMPLES_PACKAGE = "com.mistraltech.smog.examples";
+
+    private static final int GENERATIONS = 100;
+    private static final int MAX_GC_ATTEMPTS = 20;
+
+    @Test
+    public void testClassLoadersAndMatcherClassesAreCollectableAfterGeneratingMatchers() throws Exception {
+        final List<WeakReference<?>> references = new ArrayList<WeakReference<?>>();
+
+        for (int i = 0; i < GENERATIONS; i++) {
+            references.addAll(generateInDiscardedClassLoader());
+        }
+
+        collectGarbage(references);
+
+        for (WeakReference<?> reference : references) {
+            assertNull("Not collected: " + reference.get(), reference.get());
+        }
+    }
+
+    @Test
+    public void testMatchersCanBeGeneratedAfterClassPoolIsReleased() throws Exception {
+        ClassLoader classLoader = new ChildFirstClassLoader(getClass().getClassLoader(), EXAMPLES_PACKAGE);
+
+        Object personMatcher = matcherOf(loadClass(classLoader, PersonMatcher.class));
+        JavassistMatcherGenerator.release(classLoader);
+        Object addressMatcher = matcherOf(loadClass(classLoader, AddressMatcher.class));
+
+        assertEquals(classLoader, personMatcher.getClass().getClassLoader());
+        assertEquals(classLoader, addressMatcher.getClass().getClassLoader());
+        assertNotSame(PersonMatcher.class, loadClass(classLoader, PersonMatcher.class));
+    }
+
+    @Test
+    public void testReleaseDoesNotLoadJavassistIfUnused() throws Exception {
+        final Set<String> loadedClassNames = Collections.synchronizedSet(new HashSet<String>());
+        final ClassLoader libraryClassLoader = new ChildFirstClassLoader(getClass().getClassLoader(), "") {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                loadedClassNames.add(name);
+                return super.loadClass(name, resolve);
+            }
+
+            @Override
+            protected boolean isChildFirst(String name) {
+                return name.startsWith("com.mistraltech.smog.proxy.") || name.startsWith("javassist.");
+            }
+        };
+
+        Class.forName(JavassistMatcherGenerator.class.getName(), true, libraryClassLoader)
+                .getMethod("release", ClassLoader.class).invoke(null, libraryClassLoader);
+
+        for (String loadedClassName : loadedClassNames) {
+            assertFalse(loadedClassName, loadedClassName.startsWith("javassist."));
+        }
+    }
+
+    private List<WeakReference<?>> generateInDiscardedClassLoader() throws Exception {
+        ClassLoader classLoader = new ChildFirstClassLoader(getClass().getClassLoader(), EXAMPLES_PACKAGE);
+        Object matcher = matcherOf(loadClass(classLoader, PersonMatcher.class));
+        return Arrays.<WeakReference<?>>asList(new WeakReference<ClassLoader>(classLoader),
+                new WeakReference<Class<?>>(matcher.getClass()));
+    }
+
+    private static Class<?> loadClass(ClassLoader classLoader, Class<?> clazz) throws ClassNotFoundException {
+        return Class.forName(clazz.getName(), false, classLoader);
+    }
+
+    /**
+     * Run the garbage collector until all the references have been cleared, giving up after a bounded number of
+     * attempts.
+     */
+    private static void collectGarbage(List<WeakReference<?>> references) throws InterruptedException {
+        for (int i = 0; i < MAX_GC_ATTEMPTS && !isCleared(references); i++) {
+            System.gc();
+            Thread.sleep(50);
+
+            // Accessing the registry discards the pools of class loaders that have been collected
+            ClassPoolRegistry.getClassPool(ClassLoaderLifecycleTest.class.getClassLoader());
+        }
+    }
+
+    private static boolean isCleared(List<WeakReference<?>> references) {
+        for (WeakReference<?> reference : references) {
+            if (reference.get() != null) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
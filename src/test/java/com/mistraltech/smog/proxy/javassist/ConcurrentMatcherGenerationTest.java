@@ -0,0 +1,155 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.core.annotation.Matches;
+import com.mistraltech.smog.examples.model.Address;
+import com.mistraltech.smog.examples.model.Person;
+import com.mistraltech.smog.examples.model.Phone;
+import com.mistraltech.smog.examples.model.PostCode;
+import com.mistraltech.smog.examples.simple.matcher.PhoneMatcher;
+import org.hamcrest.Matcher;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.mistraltech.smog.proxy.javassist.JavassistMatcherGenerator.matcherOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Stress test for concurrent generation of matcher classes.
+ * <p>
+ * The matcher interfaces are declared here, rather than shared with the examples, so that their
+ * classes are guaranteed not to have been generated by another test running earlier in the same JVM.
+ */
+public class ConcurrentMatcherGenerationTest {
+    private static final String EXAMPLES_PACKAGE = "com.mistraltech.smog.examples";
+    private static final int THREAD_COUNT = 16;
+
+    private static final List<Class<?>> MATCHER_INTERFACES = Arrays.<Class<?>>asList(
+            StressPersonMatcher.class, StressAddressMatcher.class, StressPostCodeMatcher.class, StressPhoneMatcher.class);
+
+    @Test
+    public void testConcurrentCallersShareASingleGeneratedClassPerInterface() throws Exception {
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+
+        try {
+            List<Future<List<Class<?>>>> results = new ArrayList<Future<List<Class<?>>>>();
+
+            for (int i = 0; i < THREAD_COUNT; i++) {
+                final int offset = i;
+                results.add(executor.submit(new Callable<List<Class<?>>>() {
+                    @Override
+                    public List<Class<?>> call() throws Exception {
+                        startSignal.await();
+                        return generateAll(offset);
+                    }
+                }));
+            }
+
+            startSignal.countDown();
+
+            List<Set<Class<?>>> generatedClasses = new ArrayList<Set<Class<?>>>();
+            for (int i = 0; i < MATCHER_INTERFACES.size(); i++) {
+                generatedClasses.add(new HashSet<Class<?>>());
+            }
+
+            for (Future<List<Class<?>>> result : results) {
+                List<Class<?>> classes = result.get(1, TimeUnit.MINUTES);
+                for (int i = 0; i < classes.size(); i++) {
+                    generatedClasses.get(i).add(classes.get(i));
+                }
+            }
+
+            for (int i = 0; i < MATCHER_INTERFACES.size(); i++) {
+                assertEquals("Generated classes for " + MATCHER_INTERFACES.get(i), 1, generatedClasses.get(i).size());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Person bob = new Person("bob", 36, new Address(21, new PostCode("out", "in")));
+        assertTrue(matcherOf(StressPersonMatcher.class).hasName("bob").hasAge(36).matches(bob));
+    }
+
+    @Test
+    public void testFailedGenerationIsDiscardedAndTriedAgain() throws Exception {
+        final ClassLoader classLoader = new ChildFirstClassLoader(getClass().getClassLoader(), EXAMPLES_PACKAGE);
+        final Class<?> matcherInterface = Class.forName(PhoneMatcher.class.getName(), false, classLoader);
+        final String backend = System.getProperty(MatcherCodeBackend.BACKEND_PROPERTY);
+
+        System.setProperty(MatcherCodeBackend.BACKEND_PROPERTY, "unknown");
+        try {
+            matcherOf(matcherInterface);
+            fail("Generated a matcher class with an unknown backend");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        } finally {
+            if (backend == null) {
+                System.clearProperty(MatcherCodeBackend.BACKEND_PROPERTY);
+            } else {
+                System.setProperty(MatcherCodeBackend.BACKEND_PROPERTY, backend);
+            }
+        }
+
+        final Class<?> matcherClass = matcherOf(matcherInterface).getClass();
+        assertEquals(matcherClass, matcherOf(matcherInterface).getClass());
+        assertEquals(classLoader, matcherClass.getClassLoader());
+    }
+
+    /**
+     * Obtain a matcher for each interface, starting at a different interface on each thread so that
+     * threads contend on the same interface and generate different interfaces in parallel.
+     */
+    private static List<Class<?>> generateAll(int offset) {
+        Class<?>[] classes = new Class<?>[MATCHER_INTERFACES.size()];
+
+        for (int i = 0; i < classes.length; i++) {
+            int index = (i + offset) % classes.length;
+            classes[index] = matcherOf(MATCHER_INTERFACES.get(index)).getClass();
+        }
+
+        return Arrays.asList(classes);
+    }
+
+    @Matches(value = Person.class, description = "a Person")
+    public interface StressPersonMatcher extends Matcher<Person> {
+        StressPersonMatcher hasName(String name);
+
+        StressPersonMatcher hasAge(int age);
+
+        StressPersonMatcher hasAddress(Matcher<? super Address> addressMatcher);
+    }
+
+    @Matches(value = Address.class, description = "an Address")
+    public interface StressAddressMatcher extends Matcher<Address> {
+        StressAddressMatcher hasHouseNumber(Integer houseNumber);
+
+        StressAddressMatcher hasPostCode(Matcher<? super PostCode> postCodeMatcher);
+    }
+
+    @Matches(value = PostCode.class, description = "a PostCode")
+    public interface StressPostCodeMatcher extends Matcher<PostCode> {
+        StressPostCodeMatcher hasInner(String inner);
+
+        StressPostCodeMatcher hasOuter(String outer);
+    }
+
+    @Matches(value = Phone.class, description = "a Phone")
+    public interface StressPhoneMatcher extends Matcher<Phone> {
+        StressPhoneMatcher hasCode(String code);
+
+        StressPhoneMatcher hasNumber(String number);
+    }
+}
@@ -0,0 +1,98 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.examples.model.Address;
+import com.mistraltech.smog.examples.model.Person;
+import com.mistraltech.smog.examples.model.PostCode;
+import com.mistraltech.smog.examples.simple.matcher.AddressMatcher;
+import com.mistraltech.smog.examples.simple.matcher.PersonMatcher;
+import org.hamcrest.Matcher;
+import org.hamcrest.StringDescription;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.mistraltech.smog.examples.simple.matcher.MatcherFactory.aPersonThat;
+import static com.mistraltech.smog.examples.simple.matcher.MatcherFactory.anAddressThat;
+import static com.mistraltech.smog.examples.utils.MatcherTestUtils.assertDescription;
+import static com.mistraltech.smog.examples.utils.MatcherTestUtils.assertMismatch;
+import static com.mistraltech.smog.proxy.javassist.JavassistMatcherGenerator.freeze;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests for freezing generated matchers so that they can be shared between threads.
+ */
+public class FrozenMatcherTest {
+
+    @Test
+    public void testFrozenMatcherMatchesAndDescribesAsBefore() {
+        PersonMatcher matcher = aPersonThat().hasName("Bob").hasAge(42);
+        String description = StringDescription.toString(matcher);
+
+        Matcher<Person> frozenMatcher = freeze(matcher);
+
+        assertDescription(frozenMatcher, description);
+        assertThat(person("Bob", 42, 3), is(frozenMatcher));
+        assertMismatch(person("Al", 42, 3), frozenMatcher, "name was \"Al\" (expected \"Bob\")");
+    }
+
+    @Test
+    public void testMatcherCanBeConfiguredAfterFreezingWithoutChangingFrozenMatcher() {
+        PersonMatcher matcher = aPersonThat().hasName("Bob");
+        Matcher<Person> frozenMatcher = freeze(matcher);
+
+        matcher.hasName("Al").hasAge(40);
+
+        assertThat(person("Al", 40, 3), is((Matcher<Person>) matcher));
+        assertThat(person("Bob", 42, 3), is(frozenMatcher));
+        assertDescription(frozenMatcher, "a Person that (has name ('Bob'))");
+    }
+
+    @Test
+    public void testMatchersGivenForPropertiesAreCopied() {
+        AddressMatcher addressMatcher = anAddressThat().hasHouseNumber(3);
+        Matcher<Person> frozenMatcher = freeze(aPersonThat().hasAddress(addressMatcher));
+
+        addressMatcher.hasHouseNumber(4);
+
+        assertThat(person("Bob", 42, 4), is((Matcher<Person>) aPersonThat().hasAddress(addressMatcher)));
+        assertMismatch(person("Bob", 42, 4), frozenMatcher, "address.houseNumber was <4> (expected <3>)");
+    }
+
+    @Test
+    public void testFreezingIsIdempotent() {
+        PersonMatcher matcher = aPersonThat().hasName("Bob");
+        Matcher<Person> frozenMatcher = freeze(matcher);
+
+        assertSame(frozenMatcher, freeze(frozenMatcher));
+        assertThat(person("Bob", 42, 3), is(freeze((Matcher<Person>) matcher)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOnlyGeneratedMatchersCanBeFrozen() {
+        freeze(equalTo("Bob"));
+    }
+
+    @Test
+    public void testFrozenMatcherCanBeSharedBetweenThreads() {
+        List<Person> people = new ArrayList<Person>();
+        for (int i = 0; i < 5000; i++) {
+            people.add(person(i % 5 == 0 ? "Al" : "Bob", 42, 1 + i % 3));
+        }
+
+        Matcher<Person> frozenMatcher = freeze(aPersonThat().hasName("Bob").hasAddress(anAddressThat().hasHouseNumber(1)));
+
+        BulkMatchReport<Person> sequential = BulkMatching.matchAll(frozenMatcher, people);
+        BulkMatchReport<Person> parallel = BulkMatching.matchAllInParallel(frozenMatcher, people);
+
+        assertArrayEquals(sequential.getMismatchIndices(), parallel.getMismatchIndices());
+    }
+
+    private static Person person(String name, int age, int houseNumber) {
+        return new Person(name, age, new Address(houseNumber, new PostCode("AB1", "2CD")));
+    }
+}
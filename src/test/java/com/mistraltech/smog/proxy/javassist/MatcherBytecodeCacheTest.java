@@ -0,0 +1,214 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.core.CompositePropertyMatcher;
+import com.mistraltech.smog.core.PropertyMatcher;
+import com.mistraltech.smog.examples.model.Person;
+import com.mistraltech.smog.examples.simple.matcher.PersonMatcher;
+import com.mistraltech.smog.proxy.javassist.util.ClassDefiner;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.bytecode.ClassFile;
+import org.hamcrest.Matcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static com.mistraltech.smog.proxy.javassist.JavassistMatcherGenerator.matcherOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class MatcherBytecodeCacheTest {
+    private static final String EXAMPLES_PACKAGE = "com.mistraltech.smog.examples";
+
+    @Rule
+    public TemporaryFolder cacheFolder = new TemporaryFolder();
+
+    private String previousCacheDirectory;
+
+    @Before
+    public void setUp() {
+        previousCacheDirectory = System.setProperty(MatcherBytecodeCache.CACHE_DIRECTORY_PROPERTY,
+                cacheFolder.getRoot().getPath());
+    }
+
+    @After
+    public void tearDown() {
+        setProperty(MatcherBytecodeCache.CACHE_DIRECTORY_PROPERTY, previousCacheDirectory);
+    }
+
+    @Test
+    public void testGeneratedMatcherClassIsCachedForLaterClassLoaders() throws Exception {
+        final ClassLoader firstClassLoader = new ChildFirstClassLoader(getClass().getClassLoader(), EXAMPLES_PACKAGE);
+        assertMatcherIsCreated(firstClassLoader);
+
+        final File classFile = getCache().getClassFile(loadClass(firstClassLoader, PersonMatcher.class));
+        assertTrue(classFile.isFile());
+        assertTrue(classFile.setLastModified(0L));
+
+        final ClassLoader secondClassLoader = new ChildFirstClassLoader(getClass().getClassLoader(), EXAMPLES_PACKAGE);
+        assertMatcherIsCreated(secondClassLoader);
+
+        assertEquals(classFile, getCache().getClassFile(loadClass(secondClassLoader, PersonMatcher.class)));
+        assertEquals(0L, classFile.lastModified());
+        assertEquals(Arrays.asList(classFile), Arrays.asList(cacheFolder.getRoot().listFiles()));
+    }
+
+    @Test
+    public void testInvalidCachedClassFileIsReplaced() throws Exception {
+        final ClassLoader classLoader = new ChildFirstClassLoader(getClass().getClassLoader(), EXAMPLES_PACKAGE);
+        final File classFile = getCache().getClassFile(loadClass(classLoader, PersonMatcher.class));
+        final byte[] invalidClassFile = {1, 2, 3};
+        writeFile(classFile, invalidClassFile);
+
+        assertMatcherIsCreated(classLoader);
+
+        assertFalse(Arrays.equals(invalidClassFile, Files.readAllBytes(classFile.toPath())));
+    }
+
+    @Test
+    public void testCachedClassFileThatCannotBeLinkedIsReplaced() throws Exception {
+        final ClassLoader classLoader = new ChildFirstClassLoader(getClass().getClassLoader(), EXAMPLES_PACKAGE);
+        final Class<?> matcherInterface = loadClass(classLoader, PersonMatcher.class);
+        final File classFile = getCache().getClassFile(matcherInterface);
+        final byte[] unlinkableClassFile = makeClassFile(JavassistMatcherGenerator.getMatcherClassName(matcherInterface),
+                EXAMPLES_PACKAGE + ".MissingSuperclass");
+        writeFile(classFile, unlinkableClassFile);
+
+        assertMatcherIsCreated(classLoader);
+
+        assertFalse(Arrays.equals(unlinkableClassFile, Files.readAllBytes(classFile.toPath())));
+    }
+
+    @Test
+    public void testCachedClassFileDependsOnSuperclassAndInterfacesOfMatcherClass() {
+        final Set<Class<?>> dependencies = MatcherBytecodeCache.getMatcherClassDependencies();
+
+        assertTrue(dependencies.contains(CompositePropertyMatcher.class));
+        assertTrue(dependencies.contains(CompositePropertyMatcher.class.getSuperclass()));
+        assertTrue(dependencies.contains(MatcherPredicate.class));
+        assertTrue(dependencies.contains(FreezableMatcher.class));
+        assertTrue(dependencies.contains(MatcherInstanceFactory.class));
+    }
+
+    @Test
+    public void testCachedClassFileDependsOnAllClassesOfGeneratorAndLibraries() {
+        final List<String> classFiles = MatcherBytecodeCache.getGeneratorClassFiles();
+
+        for (Class<?> generatorClass : Arrays.<Class<?>>asList(JavassistMatcherGenerator.class, MatcherCodeBackend.class,
+                MatcherClassSpecializer.class, SpecializedMatcherLayout.class, ClassDefiner.class,
+                PropertyMatcher.class, CtClass.class, ClassFile.class)) {
+            assertTrue(generatorClass.getName(), classFiles.contains(generatorClass.getName().replace('.', '/') + ".class"));
+        }
+
+        assertFalse(classFiles.contains(MatcherBytecodeCacheTest.class.getName().replace('.', '/') + ".class"));
+    }
+
+    @Test
+    public void testCachedClassFileDependsOnBackend() throws Exception {
+        final Class<?> matcherInterface = loadClass(
+                new ChildFirstClassLoader(getClass().getClassLoader(), EXAMPLES_PACKAGE), PersonMatcher.class);
+
+        final String previousBackend = System.setProperty(MatcherCodeBackend.BACKEND_PROPERTY,
+                MatcherCodeBackend.SOURCE_BACKEND);
+        try {
+            final File sourceClassFile = getCache().getClassFile(matcherInterface);
+            System.setProperty(MatcherCodeBackend.BACKEND_PROPERTY, MatcherCodeBackend.BYTECODE_BACKEND);
+
+            assertFalse(sourceClassFile.equals(getCache().getClassFile(matcherInterface)));
+        } finally {
+            setProperty(MatcherCodeBackend.BACKEND_PROPERTY, previousBackend);
+        }
+    }
+
+    @Test
+    public void testCachedClassFileDependsOnMatchedClass() throws Exception {
+        final ClassLoader classLoader = new ChildFirstClassLoader(getClass().getClassLoader(), EXAMPLES_PACKAGE);
+        final ClassLoader changedClassLoader = new ChangedResourceClassLoader(getClass().getClassLoader(),
+                EXAMPLES_PACKAGE, Person.class.getName().replace('.', '/') + ".class");
+
+        final File classFile = getCache().getClassFile(loadClass(classLoader, PersonMatcher.class));
+
+        assertEquals(classFile, getCache().getClassFile(loadClass(
+                new ChildFirstClassLoader(getClass().getClassLoader(), EXAMPLES_PACKAGE), PersonMatcher.class)));
+        assertFalse(classFile.equals(getCache().getClassFile(loadClass(changedClassLoader, PersonMatcher.class))));
+    }
+
+    private static void assertMatcherIsCreated(ClassLoader classLoader) throws ClassNotFoundException {
+        final Object matcher = matcherOf(loadClass(classLoader, PersonMatcher.class));
+
+        assertNotNull(matcher);
+        assertTrue(matcher instanceof Matcher);
+        assertEquals(classLoader, matcher.getClass().getClassLoader());
+    }
+
+    private static MatcherBytecodeCache getCache() {
+        return MatcherBytecodeCache.getConfiguredCache();
+    }
+
+    private static Class<?> loadClass(ClassLoader classLoader, Class<?> clazz) throws ClassNotFoundException {
+        return Class.forName(clazz.getName(), false, classLoader);
+    }
+
+    private static byte[] makeClassFile(String className, String superclassName) throws Exception {
+        final ClassPool classPool = new ClassPool(true);
+        final CtClass superclass = classPool.makeClass(superclassName);
+        superclass.addConstructor(CtNewConstructor.defaultConstructor(superclass));
+        final CtClass ctClass = classPool.makeClass(className, superclass);
+
+        return ctClass.toBytecode();
+    }
+
+    private static void writeFile(File file, byte[] content) throws Exception {
+        final OutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(content);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static void setProperty(String name, String value) {
+        if (value == null) {
+            System.clearProperty(name);
+        } else {
+            System.setProperty(name, value);
+        }
+    }
+
+    /**
+     * A class loader whose copy of a class file differs from the class it defines, as if the class had been changed
+     * since its matcher class was cached.
+     */
+    private static class ChangedResourceClassLoader extends ChildFirstClassLoader {
+        private final String changedResourceName;
+
+        ChangedResourceClassLoader(ClassLoader parent, String packageName, String changedResourceName) {
+            super(parent, packageName);
+            this.changedResourceName = changedResourceName;
+        }
+
+        @Override
+        public InputStream getResourceAsStream(String name) {
+            if (name.equals(changedResourceName)) {
+                return new ByteArrayInputStream(new byte[]{(byte) 0xca, (byte) 0xfe});
+            }
+
+            return super.getResourceAsStream(name);
+        }
+    }
+}
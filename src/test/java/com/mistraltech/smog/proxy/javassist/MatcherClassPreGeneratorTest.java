@@ -0,0 +1,87 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.examples.model.Address;
+import com.mistraltech.smog.examples.model.Person;
+import com.mistraltech.smog.examples.model.PostCode;
+import com.mistraltech.smog.examples.simple.matcher.PersonMatcher;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MatcherClassPreGeneratorTest {
+    @Rule
+    public TemporaryFolder outputFolder = new TemporaryFolder();
+
+    @Test
+    public void testWritesAMatcherClassForEachMatcherInterface() throws Exception {
+        File outputDirectory = outputFolder.getRoot();
+
+        List<Class<?>> matcherInterfaces = MatcherClassPreGenerator.preGenerate(getTestClassesDirectory(),
+                outputDirectory, getClass().getClassLoader());
+
+        assertTrue(matcherInterfaces.contains(PersonMatcher.class));
+
+        for (Class<?> matcherInterface : matcherInterfaces) {
+            assertTrue(MatcherInterfaceScanner.isMatcherInterface(matcherInterface));
+            assertTrue(getClassFile(outputDirectory, matcherInterface).isFile());
+        }
+
+        assertFalse(getClassFile(outputDirectory, Person.class).exists());
+    }
+
+    @Test
+    public void testWrittenMatcherClassCanBeLoadedAndUsed() throws Exception {
+        File outputDirectory = outputFolder.getRoot();
+
+        MatcherClassPreGenerator.preGenerate(getTestClassesDirectory(), outputDirectory, getClass().getClassLoader());
+
+        byte[] bytecode = readFile(getClassFile(outputDirectory, PersonMatcher.class));
+        Class<?> matcherClass = new ClassFileLoader(getClass().getClassLoader())
+                .define(JavassistMatcherGenerator.getMatcherClassName(PersonMatcher.class), bytecode);
+
+        PersonMatcher matcher = (PersonMatcher) matcherClass.newInstance();
+        Person bob = new Person("bob", 36, new Address(21, new PostCode("out", "in")));
+
+        assertTrue(matcher.hasName("bob").matches(bob));
+        assertFalse(matcher.hasAge(37).matches(bob));
+    }
+
+    private static File getClassFile(File outputDirectory, Class<?> matcherInterface) {
+        final String matcherClassName = JavassistMatcherGenerator.getMatcherClassName(matcherInterface);
+        return new File(outputDirectory, matcherClassName.replace('.', File.separatorChar) + ".class");
+    }
+
+    private static File getTestClassesDirectory() throws URISyntaxException {
+        return new File(PersonMatcher.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] content = new byte[(int) input.length()];
+            input.readFully(content);
+            return content;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static class ClassFileLoader extends ClassLoader {
+        ClassFileLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String className, byte[] bytecode) {
+            return defineClass(className, bytecode, 0, bytecode.length);
+        }
+    }
+}
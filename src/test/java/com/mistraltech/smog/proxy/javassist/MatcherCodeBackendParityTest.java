@@ -0,0 +1,101 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.examples.extended.ExtendedMatcherExamplesTest;
+import com.mistraltech.smog.examples.generics.GenericsMatcherExamplesTest;
+import com.mistraltech.smog.examples.simple.SimpleMatcherExamplesTest;
+import com.mistraltech.smog.examples.simple.matcher.PersonMatcher;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that matchers generated by each code generation backend behave identically, by running the matcher tests
+ * with each backend in turn.
+ * <p>
+ * Each run loads the tests, their matcher interfaces and the library itself in a new class loader, so that their
+ * matchers are generated afresh, by the copy of the library under test, and implement its interfaces.
+ */
+public class MatcherCodeBackendParityTest {
+    private static final String EXAMPLES_PACKAGE = "com.mistraltech.smog.examples";
+    private static final String PROXY_PACKAGE = "com.mistraltech.smog.proxy";
+
+    private static final Class<?>[] MATCHER_TESTS = {
+            SimpleMatcherExamplesTest.class,
+            GenericsMatcherExamplesTest.class,
+            ExtendedMatcherExamplesTest.class,
+            PropertyAccessTest.class,
+            BulkMatchingTest.class,
+            FrozenMatcherTest.class,
+            MatcherPredicateTest.class,
+            MatcherSpecializationTest.class,
+            MatcherConstructorTest.class
+    };
+
+    @Test
+    public void testMatcherTestsPassWithSourceBackend() throws Exception {
+        assertMatcherTestsPass(MatcherCodeBackend.SOURCE_BACKEND);
+    }
+
+    @Test
+    public void testMatcherTestsPassWithBytecodeBackend() throws Exception {
+        assertMatcherTestsPass(MatcherCodeBackend.BYTECODE_BACKEND);
+    }
+
+    @Test
+    public void testUnknownBackendIsRejected() throws Exception {
+        final ClassLoader classLoader = new ChildFirstClassLoader(getClass().getClassLoader(), EXAMPLES_PACKAGE);
+        final String previousBackend = setBackend("javac");
+
+        try {
+            JavassistMatcherGenerator.matcherOf(Class.forName(PersonMatcher.class.getName(), false, classLoader));
+            fail("Expected an unknown backend to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("'javac'"));
+        } finally {
+            setBackend(previousBackend);
+        }
+    }
+
+    private void assertMatcherTestsPass(String backend) throws Exception {
+        final ClassLoader classLoader = new ChildFirstClassLoader(getClass().getClassLoader(), "") {
+            @Override
+            protected boolean isChildFirst(String name) {
+                return name.startsWith(EXAMPLES_PACKAGE + ".") || name.startsWith(PROXY_PACKAGE + ".");
+            }
+        };
+        final Class<?>[] testClasses = new Class<?>[MATCHER_TESTS.length];
+
+        for (int i = 0; i < MATCHER_TESTS.length; i++) {
+            testClasses[i] = Class.forName(MATCHER_TESTS[i].getName(), true, classLoader);
+        }
+
+        final String previousBackend = setBackend(backend);
+        final Result result;
+
+        try {
+            result = JUnitCore.runClasses(testClasses);
+        } finally {
+            setBackend(previousBackend);
+        }
+
+        final StringBuilder failures = new StringBuilder();
+        for (Failure failure : result.getFailures()) {
+            failures.append('\n').append(failure.getTestHeader()).append(": ").append(failure.getMessage());
+        }
+
+        assertTrue("Failures with " + backend + " backend:" + failures, result.wasSuccessful());
+        assertTrue("No tests were run", result.getRunCount() > 0);
+    }
+
+    private static String setBackend(String backend) {
+        if (backend == null) {
+            return System.clearProperty(MatcherCodeBackend.BACKEND_PROPERTY);
+        }
+
+        return System.setProperty(MatcherCodeBackend.BACKEND_PROPERTY, backend);
+    }
+}
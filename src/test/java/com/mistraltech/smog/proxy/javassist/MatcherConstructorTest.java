@@ -0,0 +1,81 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.core.annotation.Matches;
+import com.mistraltech.smog.proxy.javassist.PropertyAccessTest.Meter;
+import com.mistraltech.smog.proxy.javassist.PropertyAccessTest.MeterMatcher;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import org.hamcrest.Matcher;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+
+import static com.mistraltech.smog.proxy.javassist.JavassistMatcherGenerator.matcherOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for how generated matcher constructors give the superclass the matched type.
+ */
+public class MatcherConstructorTest {
+
+    @Test
+    public void testPublicMatchedTypeIsPassedToSuperclassConstructor() throws Exception {
+        assertEquals("(Ljava/lang/String;Ljava/lang/Class;)V", getSuperclassConstructorDescriptor(MeterMatcher.class));
+
+        final MeterMatcher matcher = matcherOf(MeterMatcher.class).hasUnits(5);
+
+        assertTrue(matcher.matches(new Meter("A1", 5)));
+        assertFalse(matcher.matches("A1"));
+    }
+
+    @Test
+    public void testNonPublicMatchedTypeIsFoundBySuperclass() throws Exception {
+        assertEquals("(Ljava/lang/String;)V", getSuperclassConstructorDescriptor(FuseMatcher.class));
+
+        final FuseMatcher matcher = matcherOf(FuseMatcher.class);
+
+        assertTrue(matcher.matches(new Fuse(13)));
+        assertFalse(matcher.matches("13"));
+    }
+
+    /**
+     * Get the descriptor of the superclass constructor called by the constructor of a generated matcher class.
+     */
+    private static String getSuperclassConstructorDescriptor(Class<?> matcherInterface) throws Exception {
+        final ClassFile classFile = new ClassFile(new DataInputStream(new ByteArrayInputStream(
+                MatcherClassGenerator.generateMatcherBytecode(matcherInterface))));
+        final CodeIterator code = classFile.getMethod(MethodInfo.nameInit).getCodeAttribute().iterator();
+
+        while (code.hasNext()) {
+            final int index = code.next();
+
+            if (code.byteAt(index) == Opcode.INVOKESPECIAL) {
+                return classFile.getConstPool().getMethodrefType(code.u16bitAt(index + 1));
+            }
+        }
+
+        return null;
+    }
+
+    static class Fuse {
+        private final int rating;
+
+        Fuse(int rating) {
+            this.rating = rating;
+        }
+
+        public int getRating() {
+            return rating;
+        }
+    }
+
+    @Matches(value = Fuse.class, description = "a Fuse")
+    public interface FuseMatcher extends Matcher<Fuse> {
+        FuseMatcher hasRating(int rating);
+    }
+}
@@ -0,0 +1,214 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.core.annotation.Matches;
+import org.hamcrest.Matcher;
+import org.hamcrest.StringDescription;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.mistraltech.smog.proxy.javassist.JavassistMatcherGenerator.matcherOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class MatcherFlightRecorderTest {
+    private static final String MATCHER_CLASS_EVENT = "com.mistraltech.smog.MatcherClass";
+    private static final String SLOW_MATCH_EVENT = "com.mistraltech.smog.SlowMatch";
+
+    @Rule
+    public TemporaryFolder recordingFolder = new TemporaryFolder();
+
+    private Object recording;
+    private String previousThreshold;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(isFlightRecorderAvailable());
+
+        previousThreshold = System.clearProperty(MatcherFlightRecorder.SLOW_MATCH_THRESHOLD_PROPERTY);
+
+        recording = Class.forName("jdk.jfr.Recording").newInstance();
+        invoke(recording, "enable", new Class<?>[]{String.class}, MATCHER_CLASS_EVENT);
+        invoke(recording, "enable", new Class<?>[]{String.class}, SLOW_MATCH_EVENT);
+        invoke(recording, "start", new Class<?>[0]);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (recording != null) {
+            invoke(recording, "close", new Class<?>[0]);
+        }
+
+        setProperty(MatcherFlightRecorder.SLOW_MATCH_THRESHOLD_PROPERTY, previousThreshold);
+    }
+
+    @Test
+    public void testRecordsMatcherClassEvent() throws Exception {
+        matcherOf(loadClass(newClassLoader(), BulbMatcher.class));
+
+        final List<Object> events = stopRecording(MATCHER_CLASS_EVENT);
+
+        assertEquals(1, events.size());
+        assertEquals(BulbMatcher.class.getName(), getClassName(events.get(0), "matcherInterface"));
+        assertEquals("GENERATED", getValue(events.get(0), "source"));
+        assertTrue((Long) getValue(events.get(0), "generationTime") > 0);
+        assertTrue((Integer) getValue(events.get(0), "methodCount") > 0);
+        assertTrue((Integer) getValue(events.get(0), "bytecodeLength") > 0);
+    }
+
+    @Test
+    public void testRecordsSlowMatchesWithSourceBackend() throws Exception {
+        assertSlowMatchesAreRecorded(MatcherCodeBackend.SOURCE_BACKEND);
+    }
+
+    @Test
+    public void testRecordsSlowMatchesWithBytecodeBackend() throws Exception {
+        assertSlowMatchesAreRecorded(MatcherCodeBackend.BYTECODE_BACKEND);
+    }
+
+    @Test
+    public void testMatchesAreNotTimedByDefault() throws Exception {
+        final ClassLoader classLoader = newClassLoader();
+        final Matcher<?> matcher = (Matcher<?>) matcherOf(loadClass(classLoader, BulbMatcher.class));
+
+        assertTrue(matcher.matches(newInstance(classLoader, Bulb.class)));
+
+        assertTrue(stopRecording(SLOW_MATCH_EVENT).isEmpty());
+    }
+
+    @Test
+    public void testRejectsInvalidThreshold() throws Exception {
+        System.setProperty(MatcherFlightRecorder.SLOW_MATCH_THRESHOLD_PROPERTY, "slow");
+
+        try {
+            matcherOf(loadClass(newClassLoader(), BulbMatcher.class));
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains(MatcherFlightRecorder.SLOW_MATCH_THRESHOLD_PROPERTY));
+        }
+    }
+
+    private void assertSlowMatchesAreRecorded(String backend) throws Exception {
+        final String previousBackend = System.setProperty(MatcherCodeBackend.BACKEND_PROPERTY, backend);
+        System.setProperty(MatcherFlightRecorder.SLOW_MATCH_THRESHOLD_PROPERTY, "0");
+        final ClassLoader classLoader = newClassLoader();
+
+        try {
+            final Matcher<?> bulbMatcher = (Matcher<?>) matcherOf(loadClass(classLoader, BulbMatcher.class));
+            bulbMatcher.getClass().getMethod("hasWattage", int.class).invoke(bulbMatcher, 40);
+            final Object bulb = newInstance(classLoader, Bulb.class);
+            assertFalse(bulbMatcher.matches(bulb));
+            assertEquals("the slow match is broken down without reading the property again",
+                    1, bulb.getClass().getField("wattageReads").getInt(bulb));
+            bulbMatcher.describeMismatch(bulb, new StringDescription());
+        } finally {
+            setProperty(MatcherCodeBackend.BACKEND_PROPERTY, previousBackend);
+        }
+
+        final List<Object> events = stopRecording(SLOW_MATCH_EVENT);
+
+        assertEquals(2, events.size());
+        assertEquals(BulbMatcher.class.getName(), getClassName(events.get(0), "matcherInterface"));
+        assertEquals(Bulb.class.getName(), getClassName(events.get(0), "matchedClass"));
+        assertEquals(Boolean.FALSE, getValue(events.get(0), "matched"));
+        assertEquals(Boolean.FALSE, getValue(events.get(0), "describingMismatch"));
+        assertTrue(((String) getValue(events.get(0), "propertyTimes")).startsWith("wattage: "));
+        assertEquals(Boolean.TRUE, getValue(events.get(1), "describingMismatch"));
+    }
+
+    private List<Object> stopRecording(String eventName) throws Exception {
+        final Path recordingFile = recordingFolder.newFile("recording.jfr").toPath();
+
+        invoke(recording, "stop", new Class<?>[0]);
+        invoke(recording, "dump", new Class<?>[]{Path.class}, recordingFile);
+
+        final Method readAllEvents = Class.forName("jdk.jfr.consumer.RecordingFile")
+                .getMethod("readAllEvents", Path.class);
+        final List<Object> events = new ArrayList<Object>();
+
+        for (Object event : (List<?>) readAllEvents.invoke(null, recordingFile)) {
+            final Object eventType = invoke(event, "getEventType", new Class<?>[0]);
+
+            if (eventName.equals(invoke(eventType, "getName", new Class<?>[0]))) {
+                events.add(event);
+            }
+        }
+
+        return events;
+    }
+
+    private static Object getValue(Object event, String fieldName) throws Exception {
+        return invoke(event, "getValue", new Class<?>[]{String.class}, fieldName);
+    }
+
+    private static String getClassName(Object event, String fieldName) throws Exception {
+        return (String) invoke(getValue(event, fieldName), "getName", new Class<?>[0]);
+    }
+
+    private static Object invoke(Object target, String methodName, Class<?>[] parameterTypes, Object... arguments)
+            throws Exception {
+        final Method method = target.getClass().getMethod(methodName, parameterTypes);
+        method.setAccessible(true);
+        return method.invoke(target, arguments);
+    }
+
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            return (Boolean) Class.forName("jdk.jfr.FlightRecorder").getMethod("isAvailable").invoke(null);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static ClassLoader newClassLoader() {
+        return new ChildFirstClassLoader(MatcherFlightRecorderTest.class.getClassLoader(), "") {
+            @Override
+            protected boolean isChildFirst(String name) {
+                return name.startsWith(MatcherFlightRecorderTest.class.getName() + "$");
+            }
+        };
+    }
+
+    private static Object newInstance(ClassLoader classLoader, Class<?> clazz) throws Exception {
+        final Constructor<?> constructor = loadClass(classLoader, clazz).getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return constructor.newInstance();
+    }
+
+    private static Class<?> loadClass(ClassLoader classLoader, Class<?> clazz) throws ClassNotFoundException {
+        return Class.forName(clazz.getName(), false, classLoader);
+    }
+
+    private static void setProperty(String name, String value) {
+        if (value == null) {
+            System.clearProperty(name);
+        } else {
+            System.setProperty(name, value);
+        }
+    }
+
+    public static class Bulb {
+        public int wattageReads;
+
+        public int getWattage() {
+            wattageReads++;
+            return 60;
+        }
+    }
+
+    @Matches(value = Bulb.class, description = "a Bulb")
+    public interface BulbMatcher extends Matcher<Bulb> {
+        BulbMatcher hasWattage(int wattage);
+    }
+}
@@ -0,0 +1,275 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.core.annotation.Matches;
+import org.hamcrest.Matcher;
+import org.hamcrest.StringDescription;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static com.mistraltech.smog.proxy.javassist.JavassistMatcherGenerator.matcherOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MatcherMetricsTest {
+    private final MatcherMetrics metrics = MatcherMetrics.getInstance();
+    private final RecordingListener listener = new RecordingListener();
+
+    @Rule
+    public TemporaryFolder cacheFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        metrics.reset();
+        metrics.addListener(listener);
+    }
+
+    @After
+    public void tearDown() {
+        metrics.removeListener(listener);
+    }
+
+    @Test
+    public void testRecordsGeneratedMatcherClass() throws Exception {
+        final Class<?> matcherInterface = loadClass(newClassLoader(), BulbMatcher.class);
+
+        matcherOf(matcherInterface);
+
+        assertEquals(1, metrics.getGeneratedClassCount());
+        assertEquals(0.0, metrics.getCachedClassRatio(), 0.0);
+        assertTrue(metrics.getTotalGenerationNanos() > 0);
+        assertEquals(metrics.getTotalGenerationNanos(), metrics.getMaxGenerationNanos());
+        assertTrue(metrics.getBytecodeLengths().get(BulbMatcher.class.getName()) > 0);
+
+        assertEquals(1, listener.events.size());
+        final MatcherClassEvent event = listener.events.get(0);
+        assertSame(matcherInterface, event.getMatcherInterface());
+        assertEquals(MatcherClassEvent.Source.GENERATED, event.getSource());
+        assertEquals(metrics.getTotalBytecodeLength(), event.getBytecodeLength());
+    }
+
+    @Test
+    public void testRecordsBytecodeCacheHits() throws Exception {
+        final String previousCacheDirectory = System.setProperty(MatcherBytecodeCache.CACHE_DIRECTORY_PROPERTY,
+                cacheFolder.getRoot().getPath());
+        try {
+            matcherOf(loadClass(newClassLoader(), BulbMatcher.class));
+            matcherOf(loadClass(newClassLoader(), BulbMatcher.class));
+        } finally {
+            setProperty(MatcherBytecodeCache.CACHE_DIRECTORY_PROPERTY, previousCacheDirectory);
+        }
+
+        assertEquals(1, metrics.getGeneratedClassCount());
+        assertEquals(1, metrics.getBytecodeCacheHitCount());
+        assertEquals(0.5, metrics.getCachedClassRatio(), 0.0);
+        assertEquals(MatcherClassEvent.Source.BYTECODE_CACHE, listener.events.get(1).getSource());
+        assertEquals(listener.events.get(0).getBytecodeLength(), listener.events.get(1).getBytecodeLength());
+    }
+
+    @Test
+    public void testRecordsFailures() {
+        try {
+            matcherOf(UnannotatedMatcher.class);
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        assertEquals(1, metrics.getFailureCount());
+        assertEquals(UnannotatedMatcher.class, listener.failedMatcherInterfaces.get(0));
+    }
+
+    @Test
+    public void testListenerExceptionDoesNotFailMatcherCreation() throws Exception {
+        final Class<?> matcherInterface = loadClass(newClassLoader(), BulbMatcher.class);
+        final MatcherClassListener failingListener = new FailingListener();
+        final Logger logger = Logger.getLogger(MatcherMetrics.class.getName());
+        final boolean useParentHandlers = logger.getUseParentHandlers();
+
+        // The failing listener is called before the recording one
+        metrics.removeListener(listener);
+        metrics.addListener(failingListener);
+        metrics.addListener(listener);
+        logger.setUseParentHandlers(false);
+        try {
+            assertNotNull(matcherOf(matcherInterface));
+            assertNotNull(matcherOf(matcherInterface));
+
+            try {
+                matcherOf(UnannotatedMatcher.class);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        } finally {
+            logger.setUseParentHandlers(useParentHandlers);
+            metrics.removeListener(failingListener);
+        }
+
+        assertEquals(1, metrics.getGeneratedClassCount());
+        assertEquals(1, listener.events.size());
+        assertEquals(1, metrics.getFailureCount());
+        assertEquals(UnannotatedMatcher.class, listener.failedMatcherInterfaces.get(0));
+    }
+
+    @Test
+    public void testCountsMatchesWithSourceBackend() throws Exception {
+        assertMatchesAreCounted(MatcherCodeBackend.SOURCE_BACKEND);
+    }
+
+    @Test
+    public void testCountsMatchesWithBytecodeBackend() throws Exception {
+        assertMatchesAreCounted(MatcherCodeBackend.BYTECODE_BACKEND);
+    }
+
+    @Test
+    public void testMatchesAreNotCountedByDefault() throws Exception {
+        final String previousCountMatches = System.clearProperty(MatcherMetrics.COUNT_MATCHES_PROPERTY);
+        final ClassLoader classLoader = newClassLoader();
+
+        try {
+            final Matcher<?> matcher = (Matcher<?>) matcherOf(loadClass(classLoader, BulbMatcher.class));
+            assertTrue(matcher.matches(newInstance(classLoader, Bulb.class)));
+        } finally {
+            setProperty(MatcherMetrics.COUNT_MATCHES_PROPERTY, previousCountMatches);
+        }
+
+        final Long matchCount = metrics.getMatchCounts().get(BulbMatcher.class.getName());
+        assertTrue(matchCount == null || matchCount == 0);
+    }
+
+    @Test
+    public void testRegistersMBean() throws Exception {
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName objectName = new ObjectName(MatcherMetrics.OBJECT_NAME);
+
+        metrics.registerMBean();
+        try {
+            matcherOf(loadClass(newClassLoader(), BulbMatcher.class));
+
+            assertEquals(1L, mBeanServer.getAttribute(objectName, "GeneratedClassCount"));
+        } finally {
+            metrics.unregisterMBean();
+        }
+
+        assertFalse(mBeanServer.isRegistered(objectName));
+    }
+
+    private void assertMatchesAreCounted(String backend) throws Exception {
+        final String previousBackend = System.setProperty(MatcherCodeBackend.BACKEND_PROPERTY, backend);
+        final String previousCountMatches = System.setProperty(MatcherMetrics.COUNT_MATCHES_PROPERTY, "true");
+        final ClassLoader classLoader = newClassLoader();
+
+        try {
+            // Bulb has properties that are read directly, so its matcher returns at the first mismatch, whereas
+            // those of Lamp are read reflectively
+            assertMatchesAreCounted(classLoader, BulbMatcher.class, Bulb.class);
+            assertMatchesAreCounted(classLoader, LampMatcher.class, Lamp.class);
+        } finally {
+            setProperty(MatcherCodeBackend.BACKEND_PROPERTY, previousBackend);
+            setProperty(MatcherMetrics.COUNT_MATCHES_PROPERTY, previousCountMatches);
+        }
+    }
+
+    private void assertMatchesAreCounted(ClassLoader classLoader, Class<?> matcherInterface, Class<?> matchedClass)
+            throws Exception {
+        final Matcher<?> matcher = (Matcher<?>) matcherOf(loadClass(classLoader, matcherInterface));
+        final Object item = newInstance(classLoader, matchedClass);
+
+        assertTrue(matcher.matches(item));
+        assertTrue(matcher.matches(item));
+        matcher.describeMismatch(item, new StringDescription());
+
+        assertEquals(Long.valueOf(2), metrics.getMatchCounts().get(matcherInterface.getName()));
+    }
+
+    private static ClassLoader newClassLoader() {
+        return new ChildFirstClassLoader(MatcherMetricsTest.class.getClassLoader(), "") {
+            @Override
+            protected boolean isChildFirst(String name) {
+                return name.startsWith(MatcherMetricsTest.class.getName() + "$");
+            }
+        };
+    }
+
+    private static Object newInstance(ClassLoader classLoader, Class<?> clazz) throws Exception {
+        final Constructor<?> constructor = loadClass(classLoader, clazz).getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return constructor.newInstance();
+    }
+
+    private static Class<?> loadClass(ClassLoader classLoader, Class<?> clazz) throws ClassNotFoundException {
+        return Class.forName(clazz.getName(), false, classLoader);
+    }
+
+    private static void setProperty(String name, String value) {
+        if (value == null) {
+            System.clearProperty(name);
+        } else {
+            System.setProperty(name, value);
+        }
+    }
+
+    private static class RecordingListener implements MatcherClassListener {
+        private final List<MatcherClassEvent> events = new ArrayList<MatcherClassEvent>();
+        private final List<Class<?>> failedMatcherInterfaces = new ArrayList<Class<?>>();
+
+        @Override
+        public void matcherClassCreated(MatcherClassEvent event) {
+            events.add(event);
+        }
+
+        @Override
+        public void matcherClassFailed(Class<?> matcherInterface, Throwable cause) {
+            failedMatcherInterfaces.add(matcherInterface);
+        }
+    }
+
+    private static class FailingListener implements MatcherClassListener {
+        @Override
+        public void matcherClassCreated(MatcherClassEvent event) {
+            throw new IllegalStateException("Listener failed");
+        }
+
+        @Override
+        public void matcherClassFailed(Class<?> matcherInterface, Throwable cause) {
+            throw new IllegalStateException("Listener failed");
+        }
+    }
+
+    public static class Bulb {
+        public int getWattage() {
+            return 60;
+        }
+    }
+
+    @Matches(value = Bulb.class, description = "a Bulb")
+    public interface BulbMatcher extends Matcher<Bulb> {
+        BulbMatcher hasWattage(int wattage);
+    }
+
+    static class Lamp {
+        public String getColour() {
+            return "red";
+        }
+    }
+
+    @Matches(value = Lamp.class, description = "a Lamp")
+    public interface LampMatcher extends Matcher<Lamp> {
+        LampMatcher hasColour(String colour);
+    }
+
+    public interface UnannotatedMatcher extends Matcher<Bulb> {
+    }
+}
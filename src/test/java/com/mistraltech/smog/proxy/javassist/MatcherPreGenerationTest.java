@@ -0,0 +1,107 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.examples.model.Person;
+import com.mistraltech.smog.examples.simple.matcher.AddressMatcher;
+import com.mistraltech.smog.examples.simple.matcher.AddresseeMatcher;
+import com.mistraltech.smog.examples.simple.matcher.PersonMatcher;
+import com.mistraltech.smog.examples.simple.matcher.PhoneMatcher;
+import com.mistraltech.smog.examples.simple.matcher.PostCodeMatcher;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.mistraltech.smog.proxy.javassist.JavassistMatcherGenerator.matcherOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MatcherPreGenerationTest {
+    private static final String EXAMPLES_PACKAGE = "com.mistraltech.smog.examples";
+
+    @Test
+    public void testPreGeneratesMatcherClassesForMatcherInterfacesInPackage() throws Exception {
+        final ClassLoader classLoader = new ChildFirstClassLoader(getClass().getClassLoader(), EXAMPLES_PACKAGE);
+
+        final MatcherGenerationReport report = JavassistMatcherGenerator.preGenerate(
+                EXAMPLES_PACKAGE + ".simple.matcher", classLoader);
+
+        assertTrue(report.toString(), report.isSuccessful());
+        assertEquals(loadClasses(classLoader, PersonMatcher.class, AddresseeMatcher.class, AddressMatcher.class,
+                PostCodeMatcher.class, PhoneMatcher.class), report.getGenerationNanos().keySet());
+        assertTrue(report.getElapsedNanos() > 0);
+
+        final Object matcher = matcherOf(loadClass(classLoader, PersonMatcher.class));
+        assertEquals(classLoader, matcher.getClass().getClassLoader());
+    }
+
+    @Test
+    public void testPreGeneratesMatcherClassesOnGivenPool() throws Exception {
+        final ClassLoader classLoader = new ChildFirstClassLoader(getClass().getClassLoader(), EXAMPLES_PACKAGE);
+        final ForkJoinPool pool = new ForkJoinPool(2);
+
+        try {
+            final MatcherGenerationReport report = JavassistMatcherGenerator.preGenerate(Arrays.<Class<?>>asList(
+                    loadClass(classLoader, PersonMatcher.class), loadClass(classLoader, AddressMatcher.class)), pool);
+
+            assertTrue(report.toString(), report.isSuccessful());
+            assertEquals(2, report.getParallelism());
+            assertEquals(2, report.getGenerationNanos().size());
+            assertFalse(pool.isShutdown());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testPreGeneratesInterfacesWithSharedSuperTypesOnManyThreads() throws Exception {
+        final ForkJoinPool pool = new ForkJoinPool(8);
+
+        try {
+            // Each class loader has a new class pool, which all the threads resolve the shared super-types in at once
+            for (int i = 0; i < 20; i++) {
+                final ClassLoader classLoader = new ChildFirstClassLoader(getClass().getClassLoader(), EXAMPLES_PACKAGE);
+                final List<Class<?>> matcherInterfaces = MatcherInterfaceScanner.findMatcherInterfaces(
+                        EXAMPLES_PACKAGE, classLoader);
+
+                final MatcherGenerationReport report = JavassistMatcherGenerator.preGenerate(matcherInterfaces, pool);
+
+                assertTrue(report.toString(), report.isSuccessful());
+                assertEquals(matcherInterfaces.size(), report.getGenerationNanos().size());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testPreGenerationSearchesPackagesInJars() {
+        final MatcherGenerationReport report = JavassistMatcherGenerator.preGenerate("org.hamcrest.core",
+                getClass().getClassLoader());
+
+        assertTrue(report.isSuccessful());
+        assertTrue(report.getGenerationNanos().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPreGenerationRejectsClassesThatAreNotMatcherInterfaces() {
+        JavassistMatcherGenerator.preGenerate(Arrays.<Class<?>>asList(PersonMatcher.class, Person.class));
+    }
+
+    private static Set<Class<?>> loadClasses(ClassLoader classLoader, Class<?>... classes) throws ClassNotFoundException {
+        final Set<Class<?>> loadedClasses = new HashSet<Class<?>>();
+
+        for (Class<?> clazz : classes) {
+            loadedClasses.add(loadClass(classLoader, clazz));
+        }
+
+        return loadedClasses;
+    }
+
+    private static Class<?> loadClass(ClassLoader classLoader, Class<?> clazz) throws ClassNotFoundException {
+        return Class.forName(clazz.getName(), false, classLoader);
+    }
+}
@@ -0,0 +1,98 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.examples.model.Address;
+import com.mistraltech.smog.examples.model.Addressee;
+import com.mistraltech.smog.examples.model.Person;
+import com.mistraltech.smog.examples.model.PostCode;
+import com.mistraltech.smog.proxy.javassist.PropertyAccessTest.AnyAddresseeMatcher;
+import com.mistraltech.smog.proxy.javassist.PropertyAccessTest.Meter;
+import com.mistraltech.smog.proxy.javassist.PropertyAccessTest.MeterMatcher;
+import com.mistraltech.smog.proxy.javassist.PropertyAccessTest.Reading;
+import com.mistraltech.smog.proxy.javassist.PropertyAccessTest.ReadingMatcher;
+import org.hamcrest.Matcher;
+import org.hamcrest.StringDescription;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.mistraltech.smog.examples.simple.matcher.MatcherFactory.aPersonThat;
+import static com.mistraltech.smog.examples.simple.matcher.MatcherFactory.aPostCodeThat;
+import static com.mistraltech.smog.examples.simple.matcher.MatcherFactory.anAddressThat;
+import static com.mistraltech.smog.proxy.javassist.JavassistMatcherGenerator.matcherOf;
+import static com.mistraltech.smog.proxy.javassist.JavassistMatcherGenerator.toPredicate;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for testing objects with the predicates of generated matchers.
+ */
+public class MatcherPredicateTest {
+
+    @Test
+    public void testPredicateAgreesWithMatcher() {
+        Matcher<Person> matcher = aPersonThat()
+                .hasName("Bob")
+                .hasAge(greaterThan(40))
+                .hasAddress(anAddressThat().hasHouseNumber(3).hasPostCode(aPostCodeThat().hasOuter("AB1")));
+        List<Person> people = Arrays.asList(
+                person("Bob", 42, 3, "AB1"),
+                person("Al", 42, 3, "AB1"),
+                person("Bob", 40, 3, "AB1"),
+                person("Bob", 42, 4, "AB1"),
+                person("Bob", 42, 3, "CD2"),
+                new Person("Bob", 42, null),
+                null);
+
+        MatcherPredicate<Person> predicate = toPredicate(matcher);
+
+        for (Person person : people) {
+            assertEquals(String.valueOf(person), matcher.matches(person), predicate.test(person));
+        }
+    }
+
+    @Test
+    public void testPredicateComparesPrimitivePropertiesAsIfBoxed() {
+        assertTrue(toPredicate(matcherOf(ReadingMatcher.class).hasValue(Double.NaN)).test(new Reading(Double.NaN, 5L)));
+        assertFalse(toPredicate(matcherOf(ReadingMatcher.class).hasValue(0.0)).test(new Reading(-0.0, 5L)));
+        assertFalse(toPredicate(matcherOf(ReadingMatcher.class).hasCount(6L)).test(new Reading(1.5, 5L)));
+    }
+
+    @Test
+    public void testPredicateWithReflectivelyReadPropertyUsesMatcher() {
+        MatcherPredicate<Addressee> predicate = toPredicate(matcherOf(AnyAddresseeMatcher.class)
+                .hasName("bob")
+                .hasAge(36));
+
+        assertTrue(predicate.test(person("bob", 36, 21, "AB1")));
+        assertFalse(predicate.test(person("bob", 40, 21, "AB1")));
+    }
+
+    @Test
+    public void testPredicateDoesNotRecordMismatch() {
+        MeterMatcher matcher = matcherOf(MeterMatcher.class).hasSerial("A1").hasUnits(5);
+        Meter input = new Meter("A1", 4);
+
+        assertFalse(toPredicate(matcher).test(input));
+
+        StringDescription description = new StringDescription();
+        matcher.describeMismatch(input, description);
+        assertEquals("units was <4> (expected <5>)", description.toString());
+        assertEquals(2, input.serialReads);
+        assertEquals(2, input.unitsReads);
+    }
+
+    @Test
+    public void testPredicateIsTheFrozenMatcher() {
+        Matcher<Person> frozenMatcher = JavassistMatcherGenerator.freeze(aPersonThat().hasName("Bob"));
+
+        assertSame(frozenMatcher, toPredicate(frozenMatcher));
+    }
+
+    private static Person person(String name, int age, int houseNumber, String outer) {
+        return new Person(name, age, new Address(houseNumber, new PostCode(outer, "2CD")));
+    }
+}
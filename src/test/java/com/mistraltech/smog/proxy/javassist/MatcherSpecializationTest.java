@@ -0,0 +1,211 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.examples.model.Address;
+import com.mistraltech.smog.examples.model.Addressee;
+import com.mistraltech.smog.examples.model.Person;
+import com.mistraltech.smog.examples.model.PostCode;
+import com.mistraltech.smog.examples.simple.matcher.PersonMatcher;
+import com.mistraltech.smog.proxy.javassist.PropertyAccessTest.AnyAddresseeMatcher;
+import com.mistraltech.smog.proxy.javassist.PropertyAccessTest.Meter;
+import com.mistraltech.smog.proxy.javassist.PropertyAccessTest.MeterMatcher;
+import com.mistraltech.smog.proxy.javassist.PropertyAccessTest.Reading;
+import com.mistraltech.smog.proxy.javassist.PropertyAccessTest.ReadingMatcher;
+import com.mistraltech.smog.proxy.javassist.PropertyAccessTest.Switch;
+import com.mistraltech.smog.proxy.javassist.PropertyAccessTest.SwitchMatcher;
+import org.hamcrest.Matcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static com.mistraltech.smog.examples.simple.matcher.MatcherFactory.aPersonThat;
+import static com.mistraltech.smog.examples.simple.matcher.MatcherFactory.aPostCodeThat;
+import static com.mistraltech.smog.examples.simple.matcher.MatcherFactory.anAddressThat;
+import static com.mistraltech.smog.examples.utils.MatcherTestUtils.assertMismatch;
+import static com.mistraltech.smog.proxy.javassist.JavassistMatcherGenerator.matcherOf;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for specializing frozen matchers that have matched many objects.
+ */
+public class MatcherSpecializationTest {
+    private static final String EXAMPLES_PACKAGE = "com.mistraltech.smog.examples";
+    private static final int THRESHOLD = 3;
+
+    private String previousThreshold;
+
+    @Before
+    public void setUp() {
+        previousThreshold = System.setProperty(FrozenMatcher.SPECIALIZATION_THRESHOLD_PROPERTY, String.valueOf(THRESHOLD));
+    }
+
+    @After
+    public void tearDown() {
+        if (previousThreshold == null) {
+            System.clearProperty(FrozenMatcher.SPECIALIZATION_THRESHOLD_PROPERTY);
+        } else {
+            System.setProperty(FrozenMatcher.SPECIALIZATION_THRESHOLD_PROPERTY, previousThreshold);
+        }
+    }
+
+    @Test
+    public void testMatcherIsSpecializedAtThreshold() {
+        FrozenMatcher<Person> matcher = freeze(aPersonThat().hasName("Bob"));
+        Person bob = person("Bob", 42, 3, "AB1");
+
+        for (int i = 1; i < THRESHOLD; i++) {
+            assertTrue(matcher.matches(bob));
+        }
+
+        assertFalse(matcher.isSpecialized());
+        assertTrue(matcher.test(bob));
+        assertTrue(matcher.isSpecialized());
+    }
+
+    @Test
+    public void testMatcherIsNotSpecializedWithoutThreshold() {
+        System.clearProperty(FrozenMatcher.SPECIALIZATION_THRESHOLD_PROPERTY);
+        FrozenMatcher<Person> matcher = freeze(aPersonThat().hasName("Bob"));
+
+        specialize(matcher);
+
+        assertFalse(matcher.isSpecialized());
+    }
+
+    @Test
+    public void testSpecializedMatcherAgreesWithMatcher() {
+        FrozenMatcher<Person> matcher = freeze(aBobThatLivesAtNumberThree());
+        List<Person> people = Arrays.asList(
+                person("Bob", 42, 3, "AB1"),
+                person("Al", 42, 3, "AB1"),
+                person("Bob", 40, 3, "AB1"),
+                person("Bob", 42, 4, "AB1"),
+                person("Bob", 42, 3, "CD2"),
+                new Person("Bob", 42, null),
+                null);
+
+        specialize(matcher);
+
+        assertTrue(matcher.isSpecialized());
+        Matcher<Person> unspecializedMatcher = aBobThatLivesAtNumberThree();
+        for (Person person : people) {
+            assertEquals(String.valueOf(person), unspecializedMatcher.matches(person), matcher.matches(person));
+            assertEquals(String.valueOf(person), unspecializedMatcher.matches(person), matcher.test(person));
+        }
+        assertFalse(matcher.matches("Bob"));
+    }
+
+    @Test
+    public void testSpecializedMatcherComparesPrimitivePropertiesAsIfBoxed() {
+        assertSpecializedMatch(true, matcherOf(ReadingMatcher.class).hasValue(Double.NaN), new Reading(Double.NaN, 5L));
+        assertSpecializedMatch(false, matcherOf(ReadingMatcher.class).hasValue(0.0), new Reading(-0.0, 5L));
+        assertSpecializedMatch(true, matcherOf(ReadingMatcher.class).hasValue(-0.0), new Reading(-0.0, 5L));
+        assertSpecializedMatch(true, matcherOf(ReadingMatcher.class).hasCount(Long.MIN_VALUE), new Reading(1.5, Long.MIN_VALUE));
+        assertSpecializedMatch(false, matcherOf(ReadingMatcher.class).hasCount(6L), new Reading(1.5, 5L));
+        assertSpecializedMatch(true, matcherOf(MeterMatcher.class).hasUnits(Integer.MIN_VALUE), new Meter("A1", Integer.MIN_VALUE));
+        assertSpecializedMatch(false, matcherOf(MeterMatcher.class).hasUnits(-1), new Meter("A1", 1));
+        assertSpecializedMatch(true, matcherOf(SwitchMatcher.class).hasOn(false).hasLabel("hall"), new Switch("hall", false));
+        assertSpecializedMatch(false, matcherOf(SwitchMatcher.class).hasOn(true), new Switch("hall", false));
+    }
+
+    @Test
+    public void testMatcherWithReflectivelyReadPropertyIsNotSpecialized() {
+        FrozenMatcher<Addressee> matcher = freeze(matcherOf(AnyAddresseeMatcher.class)
+                .hasName("bob")
+                .hasAge(36));
+
+        specialize(matcher);
+
+        assertFalse(matcher.isSpecialized());
+        assertTrue(matcher.matches(person("bob", 36, 21, "AB1")));
+        assertFalse(matcher.matches(person("bob", 40, 21, "AB1")));
+    }
+
+    @Test
+    public void testSpecializedMatcherDescribesMismatch() {
+        FrozenMatcher<Person> matcher = freeze(aBobThatLivesAtNumberThree());
+
+        specialize(matcher);
+
+        assertTrue(matcher.isSpecialized());
+        assertMismatch(person("Bob", 42, 4, "AB1"), matcher, "address.houseNumber was <4> (expected <3>)");
+    }
+
+    @Test
+    public void testNestedMatchersAreSpecializedWithTheirMatcher() {
+        long specializedClassCount = MatcherMetrics.getInstance().getSpecializedClassCount();
+        FrozenMatcher<Person> matcher = freeze(aPersonThat().hasAddress(anAddressThat().hasHouseNumber(3)));
+
+        specialize(matcher);
+
+        assertTrue(matcher.isSpecialized());
+        assertEquals(specializedClassCount + 2, MatcherMetrics.getInstance().getSpecializedClassCount());
+    }
+
+    @Test
+    public void testMatcherIsLeftUnspecializedIfSpecializedClassCannotBeInitialised() throws Exception {
+        // The specialized class takes its constants through this class loader's own copies of the frozen matcher and
+        // the specializer, which have none, so the class fails to initialise
+        final ClassLoader classLoader = new ChildFirstClassLoader(getClass().getClassLoader(), EXAMPLES_PACKAGE) {
+            @Override
+            protected boolean isChildFirst(String name) {
+                return super.isChildFirst(name) || name.equals(FrozenMatcher.class.getName()) ||
+                        name.equals(MatcherClassSpecializer.class.getName());
+            }
+        };
+        final Class<?> matcherInterface = Class.forName(PersonMatcher.class.getName(), false, classLoader);
+        final FrozenMatcher<?> matcher = freeze((Matcher<?>) matcherOf(matcherInterface));
+        final long failureCount = MatcherMetrics.getInstance().getFailureCount();
+        final Logger logger = Logger.getLogger(MatcherClassSpecializer.class.getName());
+        final boolean useParentHandlers = logger.getUseParentHandlers();
+
+        logger.setUseParentHandlers(false);
+        try {
+            for (int i = 0; i < THRESHOLD + 1; i++) {
+                assertFalse(matcher.matches("not a person"));
+            }
+        } finally {
+            logger.setUseParentHandlers(useParentHandlers);
+        }
+
+        assertFalse(matcher.isSpecialized());
+        assertEquals(failureCount + 1, MatcherMetrics.getInstance().getFailureCount());
+    }
+
+    private static PersonMatcher aBobThatLivesAtNumberThree() {
+        return aPersonThat()
+                .hasName("Bob")
+                .hasAge(greaterThan(40))
+                .hasAddress(anAddressThat().hasHouseNumber(3).hasPostCode(aPostCodeThat().hasOuter("AB1")));
+    }
+
+    private static <T> void assertSpecializedMatch(boolean expected, Matcher<T> unfrozenMatcher, T item) {
+        FrozenMatcher<T> matcher = freeze(unfrozenMatcher);
+
+        specialize(matcher);
+
+        assertTrue(matcher.isSpecialized());
+        assertEquals(expected, matcher.matches(item));
+        assertEquals(expected, matcher.test(item));
+    }
+
+    private static <T> FrozenMatcher<T> freeze(Matcher<T> matcher) {
+        return (FrozenMatcher<T>) JavassistMatcherGenerator.freeze(matcher);
+    }
+
+    private static void specialize(FrozenMatcher<?> matcher) {
+        for (int i = 0; i < THRESHOLD; i++) {
+            matcher.matches(null);
+        }
+    }
+
+    private static Person person(String name, int age, int houseNumber, String outer) {
+        return new Person(name, age, new Address(houseNumber, new PostCode(outer, "2CD")));
+    }
+}
@@ -0,0 +1,363 @@
+package com.mistraltech.smog.proxy.javassist;
+
+import com.mistraltech.smog.core.annotation.Matches;
+import com.mistraltech.smog.examples.model.Address;
+import com.mistraltech.smog.examples.model.Addressee;
+import com.mistraltech.smog.examples.model.Person;
+import com.mistraltech.smog.examples.model.PostCode;
+import org.hamcrest.Matcher;
+import org.hamcrest.StringDescription;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.mistraltech.smog.examples.utils.MatcherTestUtils.assertMismatch;
+import static com.mistraltech.smog.proxy.javassist.JavassistMatcherGenerator.matcherOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests for the ways generated matchers read the properties of matched objects.
+ */
+public class PropertyAccessTest {
+
+    @Test
+    public void testBooleanPropertyIsReadDirectly() {
+        Switch input = new Switch("hall", true);
+
+        assertThat(input, is(matcherOf(SwitchMatcher.class).hasLabel("hall").hasOn(true)));
+        assertMismatch(input, matcherOf(SwitchMatcher.class).hasOn(false), "on was <true> (expected <false>)");
+    }
+
+    @Test
+    public void testPropertyThatIsNotConfiguredIsNotRead() {
+        Switch input = new Switch("hall", true);
+
+        assertThat(input, is(matcherOf(SwitchMatcher.class).hasLabel("hall")));
+    }
+
+    @Test
+    public void testPropertiesConfiguredInReverseOrderAreDescribedInDeclarationOrder() {
+        Switch input = new Switch("hall", false);
+        SwitchMatcher declarationOrder = matcherOf(SwitchMatcher.class).hasLabel("landing").hasOn(true);
+        SwitchMatcher reverseOrder = matcherOf(SwitchMatcher.class).hasOn(true).hasLabel("landing");
+
+        assertEquals("a Switch that (has label (\"landing\") and has on (<true>))",
+                StringDescription.toString(reverseOrder));
+        assertEquals(StringDescription.toString(declarationOrder), StringDescription.toString(reverseOrder));
+        assertEquals(describeMismatch(declarationOrder, input), describeMismatch(reverseOrder, input));
+    }
+
+    @Test
+    public void testMatchStopsAtFirstMismatchedProperty() {
+        Switch input = new Switch("hall", true);
+
+        assertFalse(matcherOf(SwitchMatcher.class).hasLabel("landing").hasWattage(60).matches(input));
+    }
+
+    @Test
+    public void testPrimitivePropertiesAreComparedAsIfBoxed() {
+        assertThat(new Reading(Double.NaN, 5L), is(matcherOf(ReadingMatcher.class).hasValue(Double.NaN).hasCount(5L)));
+        assertFalse(matcherOf(ReadingMatcher.class).hasValue(0.0).matches(new Reading(-0.0, 5L)));
+        assertMismatch(new Reading(1.5, 5L), matcherOf(ReadingMatcher.class).hasValue(1.5).hasCount(6L),
+                "count was <5L> (expected <6L>)");
+    }
+
+    @Test
+    public void testPrimitivePropertyMatcherReplacesExpectedValue() {
+        Reading input = new Reading(3.0, 5L);
+
+        assertThat(input, is(matcherOf(ReadingMatcher.class).hasValue(1.0).hasValue(greaterThan(2.0))));
+        assertFalse(matcherOf(ReadingMatcher.class).hasValue(greaterThan(2.0)).hasValue(1.0).matches(input));
+    }
+
+    @Test
+    public void testPropertyNotDeclaredByMatchedClassIsReadReflectively() {
+        Person input = new Person("bob", 36, new Address(21, new PostCode("out", "in")));
+
+        assertThat(input, is(matcherOf(AnyAddresseeMatcher.class).hasName("bob").hasAge(36)));
+        assertMismatch(input, matcherOf(AnyAddresseeMatcher.class).hasName("bob").hasAge(40),
+                "age was <36> (expected <40>)");
+    }
+
+    @Test
+    public void testMismatchDescribedAfterMatchDoesNotReadPropertiesBeforeItAgain() {
+        Meter input = new Meter("A1", 4);
+
+        assertMismatch(input, matcherOf(MeterMatcher.class).hasSerial("A1").hasUnits(5),
+                "units was <4> (expected <5>)");
+        assertEquals(1, input.serialReads);
+        assertEquals(2, input.unitsReads);
+    }
+
+    @Test
+    public void testPropertiesAfterRecordedMismatchAreDescribed() {
+        Meter input = new Meter("A1", 4);
+
+        assertMismatch(input, matcherOf(MeterMatcher.class).hasSerial("B2").hasUnits(5),
+                "serial was \"A1\" (expected \"B2\")\n     and: units was <4> (expected <5>)");
+        assertEquals(2, input.serialReads);
+        assertEquals(1, input.unitsReads);
+    }
+
+    @Test
+    public void testMismatchRecordedBeforeMatcherIsConfiguredAgainIsNotUsed() {
+        MeterMatcher matcher = matcherOf(MeterMatcher.class).hasSerial("A1").hasUnits(5);
+        Meter input = new Meter("A1", 4);
+
+        assertFalse(matcher.matches(input));
+        matcher.hasSerial("B2");
+
+        StringDescription description = new StringDescription();
+        matcher.describeMismatch(input, description);
+        assertEquals("serial was \"A1\" (expected \"B2\")\n     and: units was <4> (expected <5>)",
+                description.toString());
+    }
+
+    @Test
+    public void testObjectChangedAfterRecordedMismatchIsDescribedInFull() {
+        MutableMeter input = new MutableMeter("A1", 4);
+        MeterMatcher matcher = matcherOf(MeterMatcher.class).hasSerial("A1").hasUnits(5);
+
+        assertFalse(matcher.matches(input));
+        input.serial = "B2";
+        input.units = 5;
+
+        StringDescription description = new StringDescription();
+        matcher.describeMismatch(input, description);
+        assertEquals("serial was \"B2\" (expected \"A1\")", description.toString());
+    }
+
+    @Test
+    public void testMismatchOfAnotherObjectIsDescribedInFull() {
+        MeterMatcher matcher = matcherOf(MeterMatcher.class).hasSerial("A1").hasUnits(5);
+        Meter other = new Meter("A1", 6);
+
+        assertFalse(matcher.matches(new Meter("A1", 4)));
+
+        StringDescription description = new StringDescription();
+        matcher.describeMismatch(other, description);
+        assertEquals("units was <6> (expected <5>)", description.toString());
+        assertEquals(1, other.serialReads);
+        assertEquals(1, other.unitsReads);
+    }
+
+    @Test
+    public void testMismatchesAreDescribedWhileOtherThreadsMatch() throws Exception {
+        final MeterMatcher matcher = matcherOf(MeterMatcher.class).hasSerial("A1").hasUnits(5);
+        final int threadCount = 4;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        final List<String> expectedDescriptions = new ArrayList<String>();
+        final List<Future<String>> descriptions = new ArrayList<Future<String>>();
+
+        try {
+            for (int i = 0; i < threadCount; i++) {
+                // Alternate threads mismatch at the first and the second property
+                final Meter input = i % 2 == 0 ? new Meter("B" + i, 5) : new Meter("A1", i);
+                final String expectedDescription = i % 2 == 0
+                        ? "serial was \"B" + i + "\" (expected \"A1\")"
+                        : "units was <" + i + "> (expected <5>)";
+                expectedDescriptions.add(expectedDescription);
+
+                descriptions.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        startLatch.await();
+
+                        for (int j = 0; j < 2000; j++) {
+                            assertFalse(matcher.matches(input));
+                            StringDescription description = new StringDescription();
+                            matcher.describeMismatch(input, description);
+
+                            if (!expectedDescription.equals(description.toString())) {
+                                return description.toString();
+                            }
+                        }
+
+                        return expectedDescription;
+                    }
+                }));
+            }
+
+            startLatch.countDown();
+
+            for (int i = 0; i < threadCount; i++) {
+                assertEquals(expectedDescriptions.get(i), descriptions.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMismatchRecordedByAnotherThreadIsDescribedInFull() throws InterruptedException {
+        final MeterMatcher matcher = matcherOf(MeterMatcher.class).hasSerial("A1").hasUnits(5);
+        final Meter input = new Meter("A1", 4);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                matcher.matches(input);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        StringDescription description = new StringDescription();
+        matcher.describeMismatch(input, description);
+        assertEquals("units was <4> (expected <5>)", description.toString());
+        assertEquals(2, input.serialReads);
+        assertEquals(2, input.unitsReads);
+    }
+
+    @Test
+    public void testRecordedMismatchDoesNotKeepObjectAlive() throws InterruptedException {
+        final MeterMatcher matcher = matcherOf(MeterMatcher.class).hasSerial("A1").hasUnits(5);
+        final WeakReference<Meter> inputReference = mismatch(matcher, new Meter("A1", 4));
+
+        for (int i = 0; i < 10 && inputReference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+
+        assertNull("Object was not collected", inputReference.get());
+    }
+
+    private static String describeMismatch(Matcher<?> matcher, Object input) {
+        StringDescription description = new StringDescription();
+        matcher.describeMismatch(input, description);
+        return description.toString();
+    }
+
+    private static <T> WeakReference<T> mismatch(Matcher<? super T> matcher, T input) {
+        assertFalse(matcher.matches(input));
+        return new WeakReference<T>(input);
+    }
+
+    public static class Switch {
+        private final String label;
+        private final boolean on;
+
+        public Switch(String label, boolean on) {
+            this.label = label;
+            this.on = on;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public boolean isOn() {
+            return on;
+        }
+
+        public int getWattage() {
+            throw new UnsupportedOperationException("wattage is not known");
+        }
+    }
+
+    public static class Reading {
+        private final double value;
+        private final long count;
+
+        public Reading(double value, long count) {
+            this.value = value;
+            this.count = count;
+        }
+
+        public double getValue() {
+            return value;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    public static class Meter {
+        private final String serial;
+        private final int units;
+        int serialReads;
+        int unitsReads;
+
+        public Meter(String serial, int units) {
+            this.serial = serial;
+            this.units = units;
+        }
+
+        public String getSerial() {
+            serialReads++;
+            return serial;
+        }
+
+        public int getUnits() {
+            unitsReads++;
+            return units;
+        }
+    }
+
+    public static class MutableMeter extends Meter {
+        String serial;
+        int units;
+
+        public MutableMeter(String serial, int units) {
+            super(serial, units);
+            this.serial = serial;
+            this.units = units;
+        }
+
+        @Override
+        public String getSerial() {
+            return serial;
+        }
+
+        @Override
+        public int getUnits() {
+            return units;
+        }
+    }
+
+    @Matches(value = Switch.class, description = "a Switch")
+    public interface SwitchMatcher extends Matcher<Switch> {
+        SwitchMatcher hasLabel(String label);
+
+        SwitchMatcher hasOn(boolean on);
+
+        SwitchMatcher hasWattage(int wattage);
+    }
+
+    @Matches(value = Reading.class, description = "a Reading")
+    public interface ReadingMatcher extends Matcher<Reading> {
+        ReadingMatcher hasValue(double value);
+
+        ReadingMatcher hasValue(Matcher<? super Double> valueMatcher);
+
+        ReadingMatcher hasCount(long count);
+    }
+
+    @Matches(value = Addressee.class, description = "an Addressee")
+    public interface AnyAddresseeMatcher extends Matcher<Addressee> {
+        AnyAddresseeMatcher hasName(String name);
+
+        AnyAddresseeMatcher hasAge(int age);
+    }
+
+    @Matches(value = Meter.class, description = "a Meter")
+    public interface MeterMatcher extends Matcher<Meter> {
+        MeterMatcher hasSerial(String serial);
+
+        MeterMatcher hasUnits(int units);
+    }
+}
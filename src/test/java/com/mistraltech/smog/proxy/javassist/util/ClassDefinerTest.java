@@ -0,0 +1,38 @@
+package com.mistraltech.smog.proxy.javassist.util;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ClassDefinerTest {
+    private final ClassPool classPool = ClassPoolRegistry.getClassPool(getClass().getClassLoader());
+
+    @Test
+    public void testDefiningClassInClassLoaderEitherSucceedsOrNamesRequiredJvmOption() throws Exception {
+        final String className = getClass().getName() + "$Defined";
+        final CtClass ctClass = classPool.makeClass(className);
+        final byte[] bytecode = ctClass.toBytecode();
+        ctClass.detach();
+
+        final Class<?> definedClass;
+        try {
+            definedClass = ClassDefiner.defineClassInClassLoader(getClass(), className, bytecode);
+        } catch (IllegalStateException e) {
+            // Java 16 and later, without java.lang opened to this library
+            assertTrue(e.getMessage(), e.getMessage().contains(ClassDefiner.ADD_OPENS_OPTION));
+            assertTrue(isInaccessibleObjectException(e.getCause()));
+            return;
+        }
+
+        assertEquals(className, definedClass.getName());
+        assertSame(getClass().getClassLoader(), definedClass.getClassLoader());
+    }
+
+    private static boolean isInaccessibleObjectException(Throwable throwable) {
+        return throwable != null && throwable.getClass().getName().equals("java.lang.reflect.InaccessibleObjectException");
+    }
+}
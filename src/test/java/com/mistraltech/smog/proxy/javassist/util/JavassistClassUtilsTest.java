@@ -0,0 +1,75 @@
+package com.mistraltech.smog.proxy.javassist.util;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class JavassistClassUtilsTest {
+    private final ClassPool classPool = ClassPoolRegistry.getClassPool(getClass().getClassLoader());
+
+    @Test
+    public void testGetMethodsIncludesDiamondInheritedMethodsOnce() {
+        final List<String> methodNames = new ArrayList<String>();
+
+        for (CtMethod method : JavassistClassUtils.getMethods(getCtClass(Bottom.class))) {
+            methodNames.add(method.getName());
+        }
+
+        assertThat(methodNames.toString(), equalTo("[top, left, right, bottom]"));
+    }
+
+    @Test
+    public void testGetMethodsIsCachedForUnmodifiedClass() {
+        final CtClass bottom = getCtClass(Bottom.class);
+
+        assertSame(JavassistClassUtils.getMethods(bottom), JavassistClassUtils.getMethods(bottom));
+    }
+
+    @Test
+    public void testIsSubTypeOfFollowsAllPaths() {
+        assertTrue(JavassistClassUtils.isSubTypeOf(getCtClass(Bottom.class), getCtClass(Top.class)));
+        assertTrue(JavassistClassUtils.isSubTypeOf(getCtClass(Bottom.class), getCtClass(Serializable.class)));
+        assertTrue(JavassistClassUtils.isSubTypeOf(getCtClass(Bottom.class), getCtClass(Object.class)));
+        assertFalse(JavassistClassUtils.isSubTypeOf(getCtClass(Top.class), getCtClass(Bottom.class)));
+        assertFalse(JavassistClassUtils.isSubTypeOf(getCtClass(Left.class), getCtClass(Right.class)));
+    }
+
+    @Test
+    public void testIsSubTypeOfHandlesPrimitivesAndArrays() {
+        assertTrue(JavassistClassUtils.isSubTypeOf(CtClass.intType, CtClass.intType));
+        assertFalse(JavassistClassUtils.isSubTypeOf(CtClass.intType, getCtClass(Object.class)));
+        assertTrue(JavassistClassUtils.isSubTypeOf(getCtClass(Bottom[].class), getCtClass(Top[].class)));
+        assertTrue(JavassistClassUtils.isSubTypeOf(getCtClass(Bottom[].class), getCtClass(Object.class)));
+    }
+
+    private CtClass getCtClass(Class<?> type) {
+        return JavassistClassUtils.getCtClass(classPool, type.getName());
+    }
+
+    public interface Top extends Serializable {
+        void top();
+    }
+
+    public interface Left extends Top {
+        void left();
+    }
+
+    public interface Right extends Top {
+        void right();
+    }
+
+    public interface Bottom extends Left, Right {
+        void bottom();
+    }
+}